@@ -7,6 +7,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +16,8 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 
 import ru.myx.distro.prepare.Distro;
+import ru.myx.distro.prepare.DistroIndexSnapshot;
+import ru.myx.distro.prepare.DistroIndexTable;
 import ru.myx.distro.prepare.OptionList;
 import ru.myx.distro.prepare.OptionListItem;
 import ru.myx.distro.prepare.Project;
@@ -89,6 +92,52 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 		context.doImportFromIndex(Paths.get(context.arguments.next()).normalize());
 		return true;
 	    }, "--import-from-index");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.useIndexSnapshot = true;
+		return true;
+	    }, "--use-index-snapshot");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.useIndexSnapshot = false;
+		return true;
+	    }, "--no-index-snapshot");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.useIndexTable = true;
+		return true;
+	    }, "--use-index-table");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.useIndexTable = false;
+		return true;
+	    }, "--no-index-table");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("number of threads is expected");
+		}
+		context.syncThreads = Integer.parseInt(context.arguments.next().trim());
+		return true;
+	    }, "--sync-threads");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("number of threads is expected");
+		}
+		context.packThreads = Integer.parseInt(context.arguments.next().trim());
+		return true;
+	    }, "--pack-threads");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.packReproducible = true;
+		return true;
+	    }, "--pack-reproducible");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.useContentStore = true;
+		return true;
+	    }, "--use-content-store");
 	}
 
 	{
@@ -518,6 +567,38 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
     public Path outputRoot = null;
     public Path sourceRoot = null;
 
+    /**
+     * Import from index via 'distro-index.snapshot' when it is up to date
+     */
+    public boolean useIndexSnapshot = true;
+
+    /**
+     * Import from {@link DistroIndexTable} when there is one, write it with other
+     * index files
+     */
+    public boolean useIndexTable = false;
+
+    /**
+     * Copy threads for folders synced by {@link #doSyncDistroFromCached()}
+     */
+    public int syncThreads = 0;
+
+    /**
+     * Compress threads for archives made by {@link MakePackagesFromFolders}
+     */
+    public int packThreads = 0;
+
+    /**
+     * Archives made by {@link MakePackagesFromFolders} do not depend on host
+     */
+    public boolean packReproducible = false;
+
+    /**
+     * Files synced by {@link #doSyncDistroFromCached()} are links into
+     * 'cached/.cas'
+     */
+    public boolean useContentStore = false;
+
     protected AbstractDistroCommand() {
 	super();
     }
@@ -533,6 +614,22 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 	    this.outputRoot = ((AbstractDistroCommand) command).outputRoot;
 	    this.sourceRoot = ((AbstractDistroCommand) command).sourceRoot;
 	    this.buildQueue = ((AbstractDistroCommand) command).buildQueue;
+	    this.useIndexSnapshot = ((AbstractDistroCommand) command).useIndexSnapshot;
+	    this.useIndexTable = ((AbstractDistroCommand) command).useIndexTable;
+	    this.syncThreads = ((AbstractDistroCommand) command).syncThreads;
+	    this.packThreads = ((AbstractDistroCommand) command).packThreads;
+	    this.packReproducible = ((AbstractDistroCommand) command).packReproducible;
+	    this.useContentStore = ((AbstractDistroCommand) command).useContentStore;
+	}
+    }
+
+    /**
+     * The table is written when requested and missing, once it is there
+     * {@link Distro} keeps it up to date with other index files.
+     */
+    protected void doPrepareIndexTable(final Path outputTarget) throws Exception {
+	if (this.useIndexTable && !Files.isRegularFile(outputTarget.resolve(DistroIndexTable.FILE_NAME))) {
+	    DistroIndexTable.save(this, this.repositories, outputTarget);
 	}
     }
 
@@ -543,6 +640,15 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 	    throw new IllegalArgumentException("distro: Path " + distroRoot + " does not exsist or not a directory!");
 	}
 
+	if (this.useIndexTable
+		&& DistroIndexTable.load(this, this.repositories, distroRoot.resolve(DistroIndexTable.FILE_NAME))) {
+	    return;
+	}
+
+	if (this.useIndexSnapshot && DistroIndexSnapshot.load(this.console, this.repositories, distroRoot)) {
+	    return;
+	}
+
 	final List<String> repositoryNames = Files.readAllLines(distroRoot.resolve("distro-namespaces.txt"));
 
 	for (final String repositoryName : repositoryNames) {
@@ -555,6 +661,13 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 	    }
 	}
 
+	if (this.useIndexSnapshot) {
+	    try {
+		DistroIndexSnapshot.save(this.console, this.repositories, distroRoot, repositoryNames);
+	    } catch (final Exception e) {
+		this.console.outDebug("snapshot is not saved, path: ", distroRoot, ", error: ", e);
+	    }
+	}
     }
 
     public ClasspathBuilder doMakeFillProjectRuntimeClasspath(final Project project, final ClasspathBuilder classpath) {
@@ -781,18 +894,23 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 	final Map<String, Project> seen = new TreeMap<>();
 	final Map<String, Project> know = new TreeMap<>();
 
+	// affected projects are queued in the order of getProjects()
+	final Map<Project, Integer> order = new IdentityHashMap<>();
+	for (final Project candidate : this.repositories.getProjects().values()) {
+	    order.put(candidate, order.size());
+	}
+
 	this.buildQueue.clear();
 
-	queue: for (;;) {
-	    final Project project = queue.peekFirst();
+	for (;;) {
+	    final Project project = queue.pollFirst();
 	    if (project == null) {
 		this.console.outDebug("BQ-DONE");
-		break queue;
+		break;
 	    }
 
 	    if (know.containsKey(project.getFullName())) {
-		queue.removeFirst();
-		continue queue;
+		continue;
 	    }
 
 	    final OptionList provides = project.getProvides();
@@ -801,26 +919,36 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 			"provided items unknown, name: " + this.repositories.getProject(project.getName()));
 	    }
 
-	    check: for (final Project candidate : this.repositories.getProjects().values()) {
-		if (know.containsKey(candidate.getFullName()) || candidate.projectSourceRoot == null) {
-		    continue check;
+	    final Map<Integer, Project> affected = new TreeMap<>();
+	    for (final OptionListItem provide : provides) {
+		final Set<Project> candidates = this.repositories.getRequiredBy(provide);
+		if (candidates == null) {
+		    continue;
 		}
-
-		for (final OptionListItem requires : candidate.getRequires()) {
-		    for (final OptionListItem provide : provides) {
-			if (provide.equals(requires) && seen.putIfAbsent(candidate.getFullName(), candidate) == null) {
-			    queue.addLast(candidate);
-			    continue queue;
+		check: for (final Project candidate : candidates) {
+		    final Integer index = order.get(candidate);
+		    if (index == null || know.containsKey(candidate.getFullName()) || candidate.projectSourceRoot == null
+			    || seen.containsKey(candidate.getFullName())) {
+			continue check;
+		    }
+		    for (final OptionListItem requires : candidate.getRequires()) {
+			if (provide.equals(requires)) {
+			    affected.put(index, candidate);
+			    continue check;
 			}
 		    }
 		}
 	    }
 
+	    for (final Project candidate : affected.values()) {
+		if (seen.putIfAbsent(candidate.getFullName(), candidate) == null) {
+		    queue.addLast(candidate);
+		}
+	    }
+
 	    if (know.putIfAbsent(project.getFullName(), project) == null) {
 		this.buildQueue.add(project);
 	    }
-
-	    continue queue;
 	}
 
     }
@@ -840,6 +968,10 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 
 	this.console.outDebug("synching cached-to-distro: distro: ", distroRoot);
 
+	final ContentStore contentStore = this.useContentStore
+		? new ContentStore(cachedRoot.resolve(ContentStore.FOLDER_NAME))
+		: null;
+
 	for (final Repository repository : this.repositories.getRepositories()) {
 	    final String repositoryName = repository.getName();
 	    final Path repositoryCached = cachedRoot.resolve(repositoryName);
@@ -854,6 +986,7 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 			FileSyncOption.KEEP_DATE);
 
 		command.console = this.console;
+		command.setContentStore(contentStore);
 		command.setSourceFile(repositoryCached.resolve(fileName));
 		command.setTargetFile(repositoryDistro.resolve(fileName));
 
@@ -874,6 +1007,7 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 			    FileSyncOption.KEEP_DATE);
 
 		    command.console = this.console;
+		    command.setContentStore(contentStore);
 		    command.setSourceFile(projectCached.resolve(fileName));
 		    command.setTargetFile(projectDistro.resolve(fileName));
 
@@ -889,6 +1023,8 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 		    );
 
 		    command.console = this.console;
+		    command.setContentStore(contentStore);
+		    command.setThreads(this.syncThreads);
 		    command.addSourceRoot(projectCached.resolve(folderName));
 		    command.setTargetRoot(projectDistro.resolve(folderName));
 		    command.addExcludeName("CVS");
@@ -897,6 +1033,11 @@ public abstract class AbstractDistroCommand extends AbstractRepositoryCommand {
 		}
 	    }
 	}
+
+	if (contentStore != null) {
+	    contentStore.prune(this.console);
+	    contentStore.save(this.console);
+	}
     }
 
     public void doUnselectProject(final String projectName) {
@@ -1,6 +1,5 @@
 package ru.myx.distro;
 
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -66,6 +65,21 @@ public abstract class AbstractRepositoryCommand extends AbstractCommand {
 		context.doAddSourceRepository(repositorySourceRoot);
 		return true;
 	    }, "--add-source-repository");
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.discoveryParallelism = Runtime.getRuntime().availableProcessors();
+		return true;
+	    }, "--parallel-discovery");
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.discoveryParallelism = 0;
+		return true;
+	    }, "--serial-discovery");
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("number is expected for --discovery-threads agrument");
+		}
+		context.discoveryParallelism = Integer.parseInt(context.arguments.next().trim());
+		return true;
+	    }, "--discovery-threads");
 	    AbstractCommand.registerOperation(operations, context -> {
 		if (!context.arguments.hasNext()) {
 		    throw new IllegalArgumentException("path is expected for --add-all-source-repositories agrument");
@@ -115,6 +129,12 @@ public abstract class AbstractRepositoryCommand extends AbstractCommand {
 
     public Path cachedRoot = null;
 
+    /**
+     * 0 or 1 - serial source discovery, more - parallel with given number of
+     * threads.
+     */
+    public int discoveryParallelism = 0;
+
     protected AbstractRepositoryCommand() {
 	this.repositories = new Distro();
     }
@@ -129,6 +149,7 @@ public abstract class AbstractRepositoryCommand extends AbstractCommand {
 	if (command instanceof AbstractRepositoryCommand) {
 	    this.repositories = ((AbstractRepositoryCommand) command).repositories;
 	    this.cachedRoot = ((AbstractRepositoryCommand) command).cachedRoot;
+	    this.discoveryParallelism = ((AbstractRepositoryCommand) command).discoveryParallelism;
 	}
     }
 
@@ -141,24 +162,18 @@ public abstract class AbstractRepositoryCommand extends AbstractCommand {
 	    throw new IllegalArgumentException("sourceRoot " + sourceRoot + " does not exsist or not a directory!");
 	}
 
-	try (final DirectoryStream<Path> repositories = Files.newDirectoryStream(sourceRoot)) {
-	    for (final Path repositorySourceRoot : repositories) {
-		if (Repository.checkIfRepository(repositorySourceRoot)) {
-		    this.console.outProgress("R(");
-
-		    final Repository repository = Repository.staticLoadFromLocalSource(this.repositories,
-			    repositorySourceRoot);
-		    if (repository != null) {
-			repository.loadFromLocalSource(this.console, this.repositories, repositorySourceRoot);
-		    }
+	final long timeStarted = System.currentTimeMillis();
 
-		    this.console.outProgress(")");
-		    continue;
-		}
-	    }
+	if (this.discoveryParallelism > 1) {
+	    this.repositories.loadFromLocalSource(this.console, sourceRoot, this.discoveryParallelism);
+	} else {
+	    this.repositories.loadFromLocalSource(this.console, sourceRoot);
 	}
 
 	this.console.outProgress(")");
+
+	this.console.outDebug("source repositories added, parallelism: ", this.discoveryParallelism, ", took: ",
+		System.currentTimeMillis() - timeStarted, "ms");
     }
 
     protected void doAddRemoteRepository(final String repositorySpec) throws Exception {
@@ -0,0 +1,211 @@
+package ru.myx.distro;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ru.myx.distro.prepare.ConsoleOutput;
+
+/**
+ * Local store of file contents, usually 'cached/.cas'. Blobs are read-only
+ * files named by SHA-256 of contents, mtime and permissions, since hardlinks
+ * share them. A blob has permissions of its source without write bits, so
+ * executables stay executable. Targets become hardlinks to blobs, copies when
+ * the file system does not allow a link. Hashes of sources are kept in
+ * 'sources.manifest' and are reused while size and mtime of a source are the
+ * same. Blobs no target links to any more are removed by
+ * {@link #prune(ConsoleOutput)}.
+ *
+ * @author myx
+ *
+ */
+final class ContentStore {
+
+    static final String FOLDER_NAME = ".cas";
+
+    /**
+     * @return octal digits, like '555'
+     */
+    private static String getMode(final Set<PosixFilePermission> permissions) {
+	int mode = 0;
+	for (final PosixFilePermission permission : permissions) {
+	    // OWNER_READ is the first, OTHERS_EXECUTE is the last
+	    mode |= 0400 >> permission.ordinal();
+	}
+	return Integer.toOctalString(mode);
+    }
+
+    private static void move(final Path source, final Path target) throws Exception {
+	try {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} catch (final AtomicMoveNotSupportedException e) {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    private final Path root;
+
+    private final FolderSyncManifest hashes;
+
+    /**
+     * Target file stores that refuse links to blobs: other device or no links
+     * there. Other failures, like too many links to one blob, only make that
+     * one target a copy.
+     */
+    private final Set<String> linkRefused = ConcurrentHashMap.newKeySet();
+
+    final AtomicLong bytesStored = new AtomicLong();
+
+    final AtomicLong bytesLinked = new AtomicLong();
+
+    final AtomicLong bytesCopied = new AtomicLong();
+
+    ContentStore(final Path root) throws Exception {
+	this.root = root;
+	this.hashes = new FolderSyncManifest(root.resolve("sources.manifest"));
+    }
+
+    /**
+     * Blob for the contents of source, stored when missing.
+     */
+    private Path getBlob(final Path source, final BasicFileAttributes attributes) throws Exception {
+	final String hash = this.hashes.getHash(source, attributes);
+	final long modified = attributes.lastModifiedTime().toMillis();
+	final PosixFileAttributeView sourceView = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+	final Set<PosixFilePermission> permissions;
+	if (sourceView != null) {
+	    permissions = EnumSet.copyOf(sourceView.readAttributes().permissions());
+	    permissions.removeAll(EnumSet.of(//
+		    PosixFilePermission.OWNER_WRITE, //
+		    PosixFilePermission.GROUP_WRITE, //
+		    PosixFilePermission.OTHERS_WRITE//
+	    ));
+	} else {
+	    permissions = null;
+	}
+	final Path blob = this.root.resolve(hash.substring(0, 2)).resolve(permissions == null
+		? hash + '-' + modified
+		: hash + '-' + modified + '-' + ContentStore.getMode(permissions));
+	if (Files.isRegularFile(blob)) {
+	    return blob;
+	}
+
+	Files.createDirectories(blob.getParent());
+	final Path tempFile = Files.createTempFile(blob.getParent(), "." + hash + ".", ".tmp");
+	try {
+	    Utils.copyFile(source, tempFile);
+	    Files.setLastModifiedTime(tempFile, FileTime.fromMillis(modified));
+	    final PosixFileAttributeView view = Files.getFileAttributeView(tempFile, PosixFileAttributeView.class);
+	    if (view != null && permissions != null) {
+		view.setPermissions(permissions);
+	    } else {
+		tempFile.toFile().setReadOnly();
+	    }
+	    ContentStore.move(tempFile, blob);
+	} finally {
+	    Files.deleteIfExists(tempFile);
+	}
+	this.bytesStored.addAndGet(attributes.size());
+	return blob;
+    }
+
+    /**
+     * Replaces target with a link to the blob of source, target gets mtime of
+     * the source in any case.
+     *
+     * @return true when linked, false when copied
+     */
+    boolean link(final Path source, final Path target) throws Exception {
+	final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+	if (!attributes.isRegularFile()) {
+	    throw new IllegalArgumentException("source is not a file: " + source);
+	}
+	final Path folder = target.toAbsolutePath().getParent();
+
+	if (this.linkRefused.isEmpty() || !this.linkRefused.contains(Files.getFileStore(folder).toString())) {
+	    final Path blob = this.getBlob(source, attributes);
+	    final Path tempLink = Files.createTempFile(folder, "." + target.getFileName() + ".", ".tmp");
+	    try {
+		Files.delete(tempLink);
+		Files.createLink(tempLink, blob);
+		ContentStore.move(tempLink, target);
+		this.bytesLinked.addAndGet(attributes.size());
+		return true;
+	    } catch (final UnsupportedOperationException e) {
+		// no links there
+		this.linkRefused.add(Files.getFileStore(folder).toString());
+	    } catch (final FileSystemException e) {
+		final String store = Files.getFileStore(folder).toString();
+		if (!store.equals(Files.getFileStore(blob).toString())) {
+		    // other device
+		    this.linkRefused.add(store);
+		}
+	    } finally {
+		Files.deleteIfExists(tempLink);
+	    }
+	}
+
+	Utils.copyFile(source, target);
+	Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+	this.bytesCopied.addAndGet(attributes.size());
+	return false;
+    }
+
+    /**
+     * Deletes blobs that are only linked from the store itself. Nothing is
+     * deleted when the file system does not report link counts.
+     *
+     * @return number of blobs deleted
+     */
+    @SuppressWarnings("boxing")
+    int prune(final ConsoleOutput console) throws Exception {
+	if (!Files.isDirectory(this.root)) {
+	    return 0;
+	}
+	int count = 0;
+	long bytes = 0;
+	try (DirectoryStream<Path> folders = Files.newDirectoryStream(this.root, Files::isDirectory)) {
+	    for (final Path folder : folders) {
+		try (DirectoryStream<Path> blobs = Files.newDirectoryStream(folder)) {
+		    for (final Path blob : blobs) {
+			if (blob.getFileName().toString().startsWith(".") || !Files.isRegularFile(blob)) {
+			    // temporary file of a store in progress
+			    continue;
+			}
+			final int links;
+			try {
+			    links = ((Integer) Files.getAttribute(blob, "unix:nlink")).intValue();
+			} catch (final UnsupportedOperationException | IllegalArgumentException e) {
+			    console.outDebug("content store, link counts are not available, not pruned");
+			    return count;
+			}
+			if (links == 1) {
+			    bytes += Files.size(blob);
+			    Files.delete(blob);
+			    ++count;
+			}
+		    }
+		}
+	    }
+	}
+	console.outDebug("content store, pruned: ", count, " blobs, ", bytes, " bytes");
+	return count;
+    }
+
+    boolean save(final ConsoleOutput console) throws Exception {
+	console.outDebug("content store, stored: ", this.bytesStored, ", linked: ", this.bytesLinked, ", copied: ",
+		this.bytesCopied);
+	return this.hashes.save(console);
+    }
+}
@@ -0,0 +1,51 @@
+package ru.myx.distro;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Forwards its arguments to a running {@link DistroDaemonCommand} and prints
+ * what the daemon has printed. Loads nothing but the socket code, so it starts
+ * faster than any command.
+ *
+ * Exits with 3 when the daemon is not running, callers may run the command
+ * directly then.
+ *
+ * @author myx
+ *
+ */
+public class DistroDaemonClient {
+
+    public static void main(final String[] args) throws Exception {
+	if (args.length < 1) {
+	    System.err.println(DistroDaemonClient.class.getSimpleName() + ": 'socket-path' [command options...]");
+	    Runtime.getRuntime().exit(-1);
+	    return;
+	}
+	final SocketChannel channel;
+	try {
+	    channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+	    channel.connect(UnixDomainSocketAddress.of(args[0]));
+	} catch (final Exception e) {
+	    System.err.println(DistroDaemonClient.class.getSimpleName() + ": daemon is not available: " + e);
+	    Runtime.getRuntime().exit(3);
+	    return;
+	}
+	final int code;
+	try (channel) {
+	    final DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(Channels.newOutputStream(channel)));
+	    DistroDaemonProtocol.writeArguments(out, Arrays.asList(args).subList(1, args.length));
+	    code = DistroDaemonProtocol
+		    .readResponse(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));
+	}
+	Runtime.getRuntime().exit(code);
+    }
+}
@@ -0,0 +1,487 @@
+package ru.myx.distro;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ru.myx.distro.prepare.ConsoleOutput;
+import ru.myx.distro.prepare.Distro;
+import ru.myx.distro.prepare.DistroIndexUpdater;
+
+/**
+ * Keeps the distro model loaded and answers queries ('--print-*',
+ * '--select-*' and the like of {@link DistroSourceCommand}) sent by
+ * {@link DistroDaemonClient} over a unix domain socket:
+ *
+ * <code>DistroDaemonCommand --source-root ... --output-root ... --daemon-listen
+ * socket-path --import-from-source</code>
+ *
+ * Options after the socket path load the model. When a project changes only
+ * that project is loaded again (see {@link DistroIndexUpdater}), with
+ * '--daemon-update-index' given before '--daemon-listen' index files in the
+ * output and cached folders are updated as well. Other changes run the loading
+ * options again. Queries run one at a time, each with
+ * its own selection, what they print is sent back to the client. Loading
+ * options in a query are skipped when the daemon has loaded the model the same
+ * way, other options that change the model (including '--prepare-sequence')
+ * are refused with exit code 3, the client is expected to run such commands
+ * directly.
+ *
+ * @author myx
+ *
+ */
+public class DistroDaemonCommand extends AbstractDistroCommand {
+
+    protected static final Map<String, OperationObject<? super DistroDaemonCommand>> OPERATIONS;
+
+    /**
+     * Options allowed in queries besides '--print*', '--select-*' and
+     * '--unselect-*'
+     */
+    private static final Set<String> QUERY_OPTIONS = new HashSet<>(Arrays.asList(//
+	    "--help", //
+	    "--verbose", "-v", //
+	    "--debug", "-vv", //
+	    "--quiet", "--silent", "-q", //
+	    "--no-fail", //
+	    "--fail-if-errors", //
+	    "-p", "-w", "--warn", "-i", "--info", //
+	    "--done", "-T", "--fail", "-F" //
+    ));
+
+    /**
+     * Options loading the model -> number of values they take. Skipped in
+     * queries when the model is loaded the same way.
+     */
+    private static final Map<String, Integer> LOAD_OPTIONS = new HashMap<>();
+
+    static {
+	for (final String option : Arrays.asList("--source-root", "--output-root", "--cached-root",
+		"--import-from-index")) {
+	    DistroDaemonCommand.LOAD_OPTIONS.put(option, Integer.valueOf(1));
+	}
+	for (final String option : Arrays.asList("--import-from-source", "--import-from-cached",
+		"--import-from-distro", "--use-index-snapshot", "--no-index-snapshot", "--use-index-table",
+		"--no-index-table")) {
+	    DistroDaemonCommand.LOAD_OPTIONS.put(option, Integer.valueOf(0));
+	}
+    }
+
+    /**
+     * Exit code for queries the daemon does not run
+     */
+    static final int EXIT_REFUSED = 3;
+
+    static {
+	OPERATIONS = new HashMap<>();
+	DistroDaemonCommand.OPERATIONS.putAll(AbstractDistroCommand.OPERATIONS);
+
+	final Map<String, OperationObject<DistroDaemonCommand>> operations = new HashMap<>();
+	{
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("socket path is expected for --daemon-listen argument");
+		}
+		final Path socketPath = Paths.get(context.arguments.next());
+		final List<String> loadArguments = new ArrayList<>();
+		while (context.arguments.hasNext()) {
+		    loadArguments.add(context.arguments.next());
+		}
+		context.doListen(socketPath, loadArguments);
+		return true;
+	    }, "--daemon-listen");
+
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.updateIndex = true;
+		return true;
+	    }, "--daemon-update-index");
+	}
+
+	DistroDaemonCommand.OPERATIONS.putAll(operations);
+    }
+
+    /**
+     * @return true when the option does not change the model
+     */
+    static boolean isQueryOption(final String argument) {
+	if (!argument.startsWith("-")) {
+	    // value of an option
+	    return true;
+	}
+	return argument.startsWith("--print") || argument.startsWith("--select-")
+		|| argument.startsWith("--unselect-") || DistroDaemonCommand.QUERY_OPTIONS.contains(argument);
+    }
+
+    /**
+     *
+     * @param args
+     */
+    public static void main(final String[] args) throws Throwable {
+	final DistroDaemonCommand context = new DistroDaemonCommand();
+	context.console = new ConsoleOutput();
+	context.repositories = new Distro();
+	context.arguments = Arrays.asList(args).iterator();
+
+	if (args.length == 0) {
+	    AbstractCommand.doPrintSyntax(context, DistroDaemonCommand.OPERATIONS);
+	    return;
+	}
+
+	context.execute(context);
+    }
+
+    /**
+     * Held while loading and while a query runs
+     */
+    private final Object lock = new Object();
+
+    private List<String> loadArguments = null;
+
+    /**
+     * Context the model is loaded into, queries derive from it
+     */
+    private DistroSourceCommand model = null;
+
+    /**
+     * null when there is no source root
+     */
+    private DistroIndexUpdater updater = null;
+
+    /**
+     * Paths changed since the model was loaded or updated
+     */
+    private final Set<Path> changes = new LinkedHashSet<>();
+
+    private boolean updateIndex = false;
+
+    private volatile boolean stale = false;
+
+    /**
+     * Next reload runs the loading options, changes are not applied one by one
+     */
+    private volatile boolean reloadFully = false;
+
+    private volatile boolean reloadScheduled = false;
+
+    private volatile ServerSocketChannel server = null;
+
+    private ScheduledExecutorService reloader = null;
+
+    protected DistroDaemonCommand() {
+	//
+    }
+
+    private DistroSourceCommand doLoad() throws Exception {
+	final long started = System.nanoTime();
+	final DistroSourceCommand command = new DistroSourceCommand();
+	command.deriveFrom(this);
+	command.repositories = new Distro();
+	command.buildQueue = new QueueSelection();
+	command.arguments = this.loadArguments.iterator();
+	if (!this.loadArguments.isEmpty() && !command.execute(command)) {
+	    throw new IllegalStateException("loading options have failed: " + this.loadArguments);
+	}
+	command.buildQueue.clear();
+	this.console.outInfo("daemon: model loaded, ms: " + (System.nanoTime() - started) / 1_000_000L);
+
+	if (this.sourceRoot == null) {
+	    this.updater = null;
+	} else {
+	    this.updater = new DistroIndexUpdater(command, command.repositories, this.sourceRoot);
+	    if (this.updateIndex) {
+		if (command.outputRoot != null) {
+		    this.updater.addTarget(command.outputRoot.resolve("distro"), true);
+		}
+		if (command.cachedRoot != null) {
+		    this.updater.addTarget(command.cachedRoot, false);
+		}
+	    }
+	}
+	return command;
+    }
+
+    /**
+     * Loads the model, serves queries until '--daemon-stop' is received.
+     */
+    public void doListen(final Path socketPath, final List<String> loadArguments) throws Exception {
+	this.loadArguments = loadArguments;
+	this.model = this.doLoad();
+
+	final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+	    final Thread thread = new Thread(runnable, "daemon-query");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+	    final Thread thread = new Thread(runnable, "daemon-reload");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	final DistroSourceWatcher watcher = this.sourceRoot == null
+		? null
+		: new DistroSourceWatcher(this.sourceRoot, path -> {
+		    synchronized (this.changes) {
+			this.changes.add(path);
+		    }
+		    this.doMarkStale();
+		});
+
+	Files.deleteIfExists(socketPath);
+	try (final ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+	    server.bind(UnixDomainSocketAddress.of(socketPath));
+	    this.server = server;
+	    this.console.outInfo("daemon: listening, socket: " + socketPath);
+	    for (;;) {
+		final SocketChannel channel;
+		try {
+		    channel = server.accept();
+		} catch (final ClosedChannelException e) {
+		    // stopped
+		    break;
+		}
+		executor.execute(() -> this.serve(channel));
+	    }
+	} finally {
+	    this.server = null;
+	    if (watcher != null) {
+		watcher.close();
+	    }
+	    this.reloader.shutdownNow();
+	    executor.shutdownNow();
+	    Files.deleteIfExists(socketPath);
+	}
+	this.console.outInfo("daemon: stopped, socket: " + socketPath);
+    }
+
+    /**
+     * The model is loaded again shortly, or by the next query, whichever comes
+     * first. Changes coming in a burst make one reload.
+     */
+    void doMarkStale() {
+	this.stale = true;
+	if (this.reloadScheduled || this.reloader == null) {
+	    return;
+	}
+	this.reloadScheduled = true;
+	this.reloader.schedule(() -> {
+	    this.reloadScheduled = false;
+	    synchronized (this.lock) {
+		this.doReloadIfStale();
+	    }
+	}, 250, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Call with {@link #lock} held.
+     */
+    private void doReloadIfStale() {
+	if (!this.stale) {
+	    return;
+	}
+	this.stale = false;
+	final List<Path> changed;
+	synchronized (this.changes) {
+	    changed = new ArrayList<>(this.changes);
+	    this.changes.clear();
+	}
+	try {
+	    if (!this.reloadFully && this.updater != null) {
+		final long started = System.nanoTime();
+		if (this.updater.update(changed)) {
+		    if (this.updater.getUpdatedProjects() > 0) {
+			this.console.outInfo("daemon: model updated, projects: " + this.updater.getUpdatedProjects()
+				+ ", dependents: " + this.updater.getUpdatedDependents() + ", ms: "
+				+ (System.nanoTime() - started) / 1_000_000L);
+		    }
+		    return;
+		}
+	    }
+	    this.reloadFully = false;
+	    this.model = this.doLoad();
+	} catch (final Exception e) {
+	    // next query tries again and reports, a partial update is not trusted
+	    this.stale = true;
+	    this.reloadFully = true;
+	    this.console.outError("daemon: reload failed: " + e);
+	}
+    }
+
+    @Override
+    public boolean execute(final OperationContext context) throws Exception {
+	if (!context.arguments.hasNext()) {
+	    return false;
+	}
+	for (;;) {
+	    final String command = context.arguments.next();
+	    final OperationObject<? super DistroDaemonCommand> operation = DistroDaemonCommand.OPERATIONS.get(command);
+	    if (operation == null) {
+		throw new IllegalArgumentException("Unknown option: " + command);
+	    }
+	    if (!operation.execute(this)) {
+		this.console.outDebug("operation signalled a stop, exiting with: okState=",
+			String.valueOf(this.okState));
+		return this.okState;
+	    }
+	    if (!context.arguments.hasNext()) {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * @param option
+     *            loading option with its values
+     * @return true when the model is loaded with the same option
+     */
+    private boolean isLoadedWith(final List<String> option) {
+	final Path root;
+	switch (option.get(0)) {
+	case "--source-root":
+	    root = this.model.sourceRoot;
+	    break;
+	case "--output-root":
+	    root = this.model.outputRoot;
+	    break;
+	case "--cached-root":
+	    root = this.model.cachedRoot;
+	    break;
+	default:
+	    return Collections.indexOfSubList(this.loadArguments, option) != -1;
+	}
+	return option.size() == 2 && root != null && root.toAbsolutePath().normalize()
+		.equals(Paths.get(option.get(1)).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Runs a query with stdout and stderr captured.
+     *
+     * @return exit code
+     */
+    private int query(final List<String> arguments, final ByteArrayOutputStream out, final ByteArrayOutputStream err) {
+	synchronized (this.lock) {
+	    final List<String> query = new ArrayList<>(arguments.size());
+	    for (int i = 0; i < arguments.size(); ++i) {
+		final String argument = arguments.get(i);
+		final Integer values = DistroDaemonCommand.LOAD_OPTIONS.get(argument);
+		if (values == null) {
+		    if (DistroDaemonCommand.isQueryOption(argument)) {
+			query.add(argument);
+			continue;
+		    }
+		} else if (this.isLoadedWith(
+			arguments.subList(i, Math.min(arguments.size(), i + 1 + values.intValue())))) {
+		    // loaded already
+		    i += values.intValue();
+		    continue;
+		}
+		final byte[] message = ("daemon: not a query option, run the command directly: " + argument + '\n')
+			.getBytes(StandardCharsets.UTF_8);
+		err.write(message, 0, message.length);
+		return DistroDaemonCommand.EXIT_REFUSED;
+	    }
+
+	    this.doReloadIfStale();
+	    if (this.stale) {
+		final byte[] message = "daemon: model is not loaded, see daemon output\n".getBytes(StandardCharsets.UTF_8);
+		err.write(message, 0, message.length);
+		return 1;
+	    }
+	    final PrintStream systemOut = System.out;
+	    final PrintStream systemErr = System.err;
+	    final PrintStream queryOut = new PrintStream(out, false, StandardCharsets.UTF_8);
+	    final PrintStream queryErr = new PrintStream(err, false, StandardCharsets.UTF_8);
+	    System.setOut(queryOut);
+	    System.setErr(queryErr);
+	    try {
+		final DistroSourceCommand command = new DistroSourceCommand();
+		command.deriveFrom(this.model);
+		command.console = new ConsoleOutput();
+		command.buildQueue = new QueueSelection();
+		command.arguments = query.iterator();
+		if (query.isEmpty()) {
+		    return 0;
+		}
+		return command.execute(command)
+			? 0
+			: 1;
+	    } catch (final Throwable e) {
+		e.printStackTrace();
+		return 1;
+	    } finally {
+		queryOut.flush();
+		queryErr.flush();
+		System.setOut(systemOut);
+		System.setErr(systemErr);
+	    }
+	}
+    }
+
+    private void serve(final SocketChannel channel) {
+	try (channel) {
+	    final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+	    final DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+	    final List<String> arguments = DistroDaemonProtocol.readArguments(in);
+
+	    if (arguments.size() == 1 && DistroDaemonProtocol.STOP.equals(arguments.get(0))) {
+		DistroDaemonProtocol.writeExit(out, 0);
+		final ServerSocketChannel server = this.server;
+		if (server != null) {
+		    server.close();
+		}
+		return;
+	    }
+	    if (arguments.size() == 1 && DistroDaemonProtocol.RELOAD.equals(arguments.get(0))) {
+		final boolean loaded;
+		synchronized (this.lock) {
+		    this.stale = true;
+		    this.reloadFully = true;
+		    this.doReloadIfStale();
+		    loaded = !this.stale;
+		}
+		DistroDaemonProtocol.writeExit(out, loaded
+			? 0
+			: 1);
+		return;
+	    }
+
+	    final ByteArrayOutputStream queryOut = new ByteArrayOutputStream(4096);
+	    final ByteArrayOutputStream queryErr = new ByteArrayOutputStream(256);
+	    final int code = this.query(arguments, queryOut, queryErr);
+	    DistroDaemonProtocol.writeFrame(out, DistroDaemonProtocol.FRAME_OUT, queryOut.toByteArray(),
+		    queryOut.size());
+	    DistroDaemonProtocol.writeFrame(out, DistroDaemonProtocol.FRAME_ERR, queryErr.toByteArray(),
+		    queryErr.size());
+	    DistroDaemonProtocol.writeExit(out, code);
+	} catch (final IOException e) {
+	    this.console.outDebug("daemon: client failed: ", e);
+	}
+    }
+}
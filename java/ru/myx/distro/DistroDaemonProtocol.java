@@ -0,0 +1,137 @@
+package ru.myx.distro;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames exchanged by {@link DistroDaemonCommand} and
+ * {@link DistroDaemonClient}. A request is the argument vector: count, then
+ * each argument as length and UTF-8 bytes. A response is a sequence of
+ * frames: kind byte, length, payload; it ends with the {@link #FRAME_EXIT}
+ * frame holding the exit code.
+ *
+ * @author myx
+ *
+ */
+final class DistroDaemonProtocol {
+
+    /**
+     * Text for stdout
+     */
+    static final byte FRAME_OUT = 'o';
+
+    /**
+     * Text for stderr
+     */
+    static final byte FRAME_ERR = 'e';
+
+    /**
+     * Exit code, 4 bytes, last frame of a response
+     */
+    static final byte FRAME_EXIT = 'x';
+
+    /**
+     * Request to stop the daemon
+     */
+    static final String STOP = "--daemon-stop";
+
+    /**
+     * Request to reload the model on the next query
+     */
+    static final String RELOAD = "--daemon-reload";
+
+    private static final int MAX_ARGUMENTS = 64 * 1024;
+
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    static List<String> readArguments(final DataInputStream in) throws IOException {
+	final int count = in.readInt();
+	if (count < 0 || count > DistroDaemonProtocol.MAX_ARGUMENTS) {
+	    throw new IOException("invalid argument count: " + count);
+	}
+	final List<String> arguments = new ArrayList<>(count);
+	for (int i = 0; i < count; ++i) {
+	    arguments.add(new String(DistroDaemonProtocol.readBytes(in), StandardCharsets.UTF_8));
+	}
+	return arguments;
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+	final int length = in.readInt();
+	if (length < 0 || length > DistroDaemonProtocol.MAX_LENGTH) {
+	    throw new IOException("invalid frame length: " + length);
+	}
+	final byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return bytes;
+    }
+
+    /**
+     * Copies response frames to stdout and stderr.
+     *
+     * @return exit code
+     */
+    static int readResponse(final DataInputStream in) throws IOException {
+	for (;;) {
+	    final int kind = in.read();
+	    if (kind == -1) {
+		throw new EOFException("response is incomplete");
+	    }
+	    final byte[] payload = DistroDaemonProtocol.readBytes(in);
+	    switch (kind) {
+	    case FRAME_OUT:
+		System.out.write(payload, 0, payload.length);
+		continue;
+	    case FRAME_ERR:
+		System.err.write(payload, 0, payload.length);
+		continue;
+	    case FRAME_EXIT:
+		System.out.flush();
+		System.err.flush();
+		if (payload.length != 4) {
+		    throw new IOException("invalid exit frame");
+		}
+		return (payload[0] & 0xFF) << 24 | (payload[1] & 0xFF) << 16 | (payload[2] & 0xFF) << 8
+			| payload[3] & 0xFF;
+	    default:
+		throw new IOException("unknown frame: " + kind);
+	    }
+	}
+    }
+
+    static void writeArguments(final DataOutputStream out, final List<String> arguments) throws IOException {
+	out.writeInt(arguments.size());
+	for (final String argument : arguments) {
+	    final byte[] bytes = argument.getBytes(StandardCharsets.UTF_8);
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	}
+	out.flush();
+    }
+
+    static void writeExit(final DataOutputStream out, final int code) throws IOException {
+	out.write(DistroDaemonProtocol.FRAME_EXIT);
+	out.writeInt(4);
+	out.writeInt(code);
+	out.flush();
+    }
+
+    static void writeFrame(final DataOutputStream out, final byte kind, final byte[] bytes, final int length)
+	    throws IOException {
+	if (length == 0) {
+	    return;
+	}
+	out.write(kind);
+	out.writeInt(length);
+	out.write(bytes, 0, length);
+    }
+
+    private DistroDaemonProtocol() {
+	//
+    }
+}
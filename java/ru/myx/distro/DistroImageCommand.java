@@ -75,6 +75,7 @@ public class DistroImageCommand extends AbstractDistroCommand {
 			context, //
 			context.outputRoot.resolve("distro").normalize()//
 		);
+		context.doPrepareIndexTable(context.outputRoot.resolve("distro").normalize());
 		return true;
 	    }, "--prepare-build-compile-index");
 
@@ -85,6 +86,7 @@ public class DistroImageCommand extends AbstractDistroCommand {
 			true, //
 			false //
 		);
+		context.doPrepareIndexTable(context.outputRoot.resolve("distro").normalize());
 		return true;
 	    }, "--prepare-build-distro-index");
 
@@ -99,10 +101,12 @@ public class DistroImageCommand extends AbstractDistroCommand {
 			true, //
 			true //
 		);
+		context.doPrepareIndexTable(context.outputRoot.resolve("distro").normalize());
 		context.repositories.buildPrepareCompileIndex(//
 			context, //
 			context.cachedRoot.normalize()//
 		);
+		context.doPrepareIndexTable(context.cachedRoot.normalize());
 		return true;
 	    }, "--prepare-build");
 
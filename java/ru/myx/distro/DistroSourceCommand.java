@@ -220,12 +220,14 @@ public class DistroSourceCommand extends AbstractDistroCommand {
     }
 
     private void doPrepareBuildDistroIndex() throws Exception {
+	final Path distro = this.outputRoot.resolve("distro").normalize();
 	this.repositories.buildPrepareDistroIndex(//
 		this, //
-		this.outputRoot.resolve("distro").normalize(), //
+		distro, //
 		true, //
 		true //
 	);
+	this.doPrepareIndexTable(distro);
     }
 
     public void doPrepareBuildRoots() throws IOException {
@@ -260,6 +262,7 @@ public class DistroSourceCommand extends AbstractDistroCommand {
 		true, //
 		false //
 	);
+	this.doPrepareIndexTable(this.cachedRoot.normalize());
     }
 
     public void doPrepareBuildCompileIndex() throws Exception {
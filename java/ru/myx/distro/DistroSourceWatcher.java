@@ -0,0 +1,212 @@
+package ru.myx.distro;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import ru.myx.distro.prepare.Project;
+
+/**
+ * Watches the source root, repository folders, group folders and project
+ * folders found the way 'Repository.loadFromLocalSource' finds them
+ * (including 'source-projects' of a project) and 'jars' folders of projects
+ * (not their contents deeper than that) and tells the listener which path has
+ * changed. Folders created there are watched too. When events are lost the
+ * source root itself is reported.
+ *
+ * @author myx
+ *
+ */
+final class DistroSourceWatcher implements AutoCloseable {
+
+    private static final class Folder {
+	final Path path;
+
+	/**
+	 * One of KIND_* constants
+	 */
+	final int kind;
+
+	Folder(final Path path, final int kind) {
+	    this.path = path;
+	    this.kind = kind;
+	}
+    }
+
+    private static final int KIND_ROOT = 0;
+
+    private static final int KIND_REPOSITORY = 1;
+
+    /**
+     * Folder in a repository or a group that is not a project (yet)
+     */
+    private static final int KIND_GROUP = 2;
+
+    private static final int KIND_PROJECT = 3;
+
+    /**
+     * 'source-projects' of a project
+     */
+    private static final int KIND_SOURCE_PROJECTS = 4;
+
+    /**
+     * Folder in 'source-projects', a project or not (yet)
+     */
+    private static final int KIND_SOURCE_PROJECT = 5;
+
+    private static final int KIND_JARS = 6;
+
+    /**
+     * @return kind of the folder when it is watched, -1 otherwise
+     */
+    private static int getKind(final Path folder, final int parentKind) {
+	if (!Files.isDirectory(folder)) {
+	    return -1;
+	}
+	final String name = folder.getFileName().toString();
+	switch (parentKind) {
+	case KIND_ROOT:
+	    return name.startsWith(".")
+		    ? -1
+		    : DistroSourceWatcher.KIND_REPOSITORY;
+	case KIND_REPOSITORY:
+	case KIND_GROUP:
+	    if (Project.checkIfProject(folder)) {
+		return DistroSourceWatcher.KIND_PROJECT;
+	    }
+	    // same as Repository.loadFromLocalSource
+	    return name.length() < 2 || name.charAt(0) == '.'
+		    ? -1
+		    : DistroSourceWatcher.KIND_GROUP;
+	case KIND_PROJECT:
+	    if ("source-projects".equals(name)) {
+		return DistroSourceWatcher.KIND_SOURCE_PROJECTS;
+	    }
+	    return "jars".equals(name)
+		    ? DistroSourceWatcher.KIND_JARS
+		    : -1;
+	case KIND_SOURCE_PROJECT:
+	    return "jars".equals(name)
+		    ? DistroSourceWatcher.KIND_JARS
+		    : -1;
+	case KIND_SOURCE_PROJECTS:
+	    return DistroSourceWatcher.KIND_SOURCE_PROJECT;
+	default:
+	    return -1;
+	}
+    }
+
+    private final Path sourceRoot;
+
+    private final Consumer<Path> listener;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Folder> keys = new HashMap<>();
+
+    private final Thread thread;
+
+    DistroSourceWatcher(final Path sourceRoot, final Consumer<Path> listener) throws IOException {
+	this.sourceRoot = sourceRoot.toAbsolutePath().normalize();
+	this.listener = listener;
+	this.watchService = FileSystems.getDefault().newWatchService();
+	this.register(this.sourceRoot, DistroSourceWatcher.KIND_ROOT);
+	this.thread = new Thread(this::run, "watch: " + this.sourceRoot);
+	this.thread.setDaemon(true);
+	this.thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+	this.watchService.close();
+	this.thread.interrupt();
+    }
+
+    /**
+     * Registering a folder again (a group has become a project) replaces its
+     * kind.
+     */
+    private void register(final Path folder, final int kind) throws IOException {
+	final WatchKey key = folder.register(this.watchService, //
+		StandardWatchEventKinds.ENTRY_CREATE, //
+		StandardWatchEventKinds.ENTRY_DELETE, //
+		StandardWatchEventKinds.ENTRY_MODIFY //
+	);
+	synchronized (this.keys) {
+	    this.keys.put(key, new Folder(folder, kind));
+	}
+	if (kind == DistroSourceWatcher.KIND_JARS) {
+	    return;
+	}
+	try (final DirectoryStream<Path> children = Files.newDirectoryStream(folder)) {
+	    for (final Path child : children) {
+		final int childKind = DistroSourceWatcher.getKind(child, kind);
+		if (childKind != -1) {
+		    this.register(child, childKind);
+		}
+	    }
+	}
+    }
+
+    private void run() {
+	for (;;) {
+	    final WatchKey key;
+	    try {
+		key = this.watchService.take();
+	    } catch (final InterruptedException | ClosedWatchServiceException e) {
+		return;
+	    }
+	    final Folder folder;
+	    synchronized (this.keys) {
+		folder = this.keys.get(key);
+	    }
+	    if (folder == null) {
+		key.cancel();
+		continue;
+	    }
+	    for (final WatchEvent<?> event : key.pollEvents()) {
+		if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+		    this.listener.accept(this.sourceRoot);
+		    continue;
+		}
+		final Path path = folder.path.resolve((Path) event.context());
+		try {
+		    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+			final int kind = DistroSourceWatcher.getKind(path, folder.kind);
+			if (kind != -1) {
+			    this.register(path, kind);
+			}
+		    }
+		    final boolean groupOrProject = folder.kind == DistroSourceWatcher.KIND_GROUP
+			    || folder.kind == DistroSourceWatcher.KIND_PROJECT;
+		    if (groupOrProject && "project.inf".equals(path.getFileName().toString())) {
+			final int kind = Project.checkIfProject(folder.path)
+				? DistroSourceWatcher.KIND_PROJECT
+				: DistroSourceWatcher.KIND_GROUP;
+			if (kind != folder.kind) {
+			    this.register(folder.path, kind);
+			}
+		    }
+		} catch (final IOException e) {
+		    // gone already, the event is reported anyway
+		}
+		this.listener.accept(path);
+	    }
+	    if (!key.reset()) {
+		synchronized (this.keys) {
+		    this.keys.remove(key);
+		}
+	    }
+	}
+    }
+}
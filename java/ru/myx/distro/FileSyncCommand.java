@@ -3,7 +3,6 @@ package ru.myx.distro;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -65,6 +64,10 @@ public class FileSyncCommand extends AbstractCommand {
 		System.out.println(context.updates);
 		return true;
 	    }, "--print-updates");
+	    AbstractCommand.registerOperation(operations, context -> {
+		System.out.println(Utils.getCopyStatistics());
+		return true;
+	    }, "--print-copy-statistics");
 	}
 
 	FileSyncCommand.OPERATIONS.putAll(operations);
@@ -97,6 +100,11 @@ public class FileSyncCommand extends AbstractCommand {
 
     int updates = 0;
 
+    /**
+     * Target becomes a link into the store, with source date
+     */
+    private ContentStore contentStore = null;
+
     protected FileSyncCommand(final FileSyncOption... options) {
 	if (options != null) {
 	    this.setOptions(options);
@@ -139,9 +147,13 @@ public class FileSyncCommand extends AbstractCommand {
 	this.console.outDebug("updating: ", this.sourceFile);
 	this.console.outProgress('w');
 	if (!this.doDryRun) {
-	    Files.copy(this.sourceFile, this.targetFile, StandardCopyOption.REPLACE_EXISTING);
-	    if (this.doKeepDates) {
-		Files.setLastModifiedTime(this.targetFile, sourceModified);
+	    if (this.contentStore != null) {
+		this.contentStore.link(this.sourceFile, this.targetFile);
+	    } else {
+		Utils.copyFile(this.sourceFile, this.targetFile);
+		if (this.doKeepDates) {
+		    Files.setLastModifiedTime(this.targetFile, sourceModified);
+		}
 	    }
 	}
 	++this.updates;
@@ -198,6 +210,10 @@ public class FileSyncCommand extends AbstractCommand {
 	}
     }
 
+    void setContentStore(final ContentStore contentStore) {
+	this.contentStore = contentStore;
+    }
+
     public void setSourceFile(final Path sourceFile) {
 	if (sourceFile == null) {
 	    throw new IllegalStateException("sourceFile parameter is null");
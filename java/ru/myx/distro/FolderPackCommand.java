@@ -1,17 +1,341 @@
 package ru.myx.distro;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
 import ru.myx.distro.prepare.ConsoleOutput;
 
 public class FolderPackCommand extends FolderScanCommand {
+    /**
+     * Entry contents coming through a pipe shared by all entries of one pack
+     * type, entries must be read in the order of 'knownFiles'.
+     */
+    private static final class PipeFileRecord extends ScanFileRecord {
+	final InputStream pipe;
+
+	final ScanFileRecord source;
+
+	PipeFileRecord(final ScanFileRecord source, final InputStream pipe) {
+	    super(source.modified, source.size);
+	    this.source = source;
+	    this.pipe = pipe;
+	}
+
+	@Override
+	public byte[] bytes() throws Exception {
+	    try (final InputStream in = this.openStream()) {
+		return in.readAllBytes();
+	    }
+	}
+
+	@Override
+	public boolean copy(final Path path) throws Exception {
+	    final boolean copied = this.source.copy(path);
+	    // skip the entry, so the pipe stays at the start of the next one
+	    this.openStream().close();
+	    return copied;
+	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+	    return new InputStream() {
+		private long left = PipeFileRecord.this.size;
+
+		@Override
+		public void close() throws IOException {
+		    // keep the pipe at the start of the next entry
+		    final byte[] buffer = new byte[8192];
+		    while (this.left > 0 && this.read(buffer, 0, buffer.length) != -1) {
+			//
+		    }
+		}
+
+		@Override
+		public int read() throws IOException {
+		    if (this.left <= 0) {
+			return -1;
+		    }
+		    final int result = PipeFileRecord.this.pipe.read();
+		    if (result != -1) {
+			--this.left;
+		    }
+		    return result;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+		    if (this.left <= 0) {
+			return -1;
+		    }
+		    final int read = PipeFileRecord.this.pipe.read(b, off, (int) Math.min(len, this.left));
+		    if (read > 0) {
+			this.left -= read;
+		    }
+		    return read;
+		}
+	    };
+	}
+    }
+
+    /**
+     * Previous tar based archive, read along with 'knownFiles': entries are in
+     * the same order.
+     */
+    private static final class ArchivedTar implements Closeable {
+	final TarArchiveInputStream in;
+
+	TarArchiveEntry next = null;
+
+	/**
+	 * Reading has failed, the rest is read from sources
+	 */
+	boolean broken = false;
+
+	ArchivedTar(final InputStream tar) {
+	    this.in = new TarArchiveInputStream(tar);
+	}
+
+	@Override
+	public void close() throws IOException {
+	    this.in.close();
+	}
+
+	/**
+	 * Skips entries before the key. getNextTarEntry() is deprecated, but
+	 * getNextEntry() of commons-compress 1.12 used at runtime is not typed.
+	 *
+	 * @return contents of the entry, closing it keeps the archive open. null
+	 *         when there is no such entry of this size.
+	 */
+	@SuppressWarnings("deprecation")
+	InputStream open(final Path key, final long size) throws IOException {
+	    if (this.broken) {
+		return null;
+	    }
+	    for (;;) {
+		if (this.next == null && (this.next = this.in.getNextTarEntry()) == null) {
+		    return null;
+		}
+		final int compare = key.getFileSystem().getPath(this.next.getName()).compareTo(key);
+		if (compare > 0) {
+		    return null;
+		}
+		final TarArchiveEntry entry = this.next;
+		this.next = null;
+		if (compare == 0) {
+		    return entry.getSize() == size
+			    ? new FilterInputStream(this.in) {
+				@Override
+				public void close() {
+				    // next entry is read from the same stream
+				}
+			    }
+			    : null;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Unchanged file packed into a tar based type, contents are taken from the
+     * previous archive instead of the file and checked against the hash of
+     * the manifest. The file is read when they differ, when the archive is not
+     * readable or the file is too large to be checked before it is written.
+     */
+    private static final class ArchivedTarFileRecord extends ScanFileRecord {
+
+	/**
+	 * Contents are kept in memory until checked
+	 */
+	private static final long MAX_SIZE = 8L * 1024 * 1024;
+
+	final ScanFileRecord source;
+
+	final ArchivedTar archive;
+
+	final Path key;
+
+	final String hash;
+
+	ArchivedTarFileRecord(final ScanFileRecord source, final ArchivedTar archive, final Path key,
+		final String hash) {
+	    super(source.modified, source.size);
+	    this.source = source;
+	    this.archive = archive;
+	    this.key = key;
+	    this.hash = hash;
+	}
+
+	@Override
+	public byte[] bytes() throws Exception {
+	    try (final InputStream in = this.openStream()) {
+		return in.readAllBytes();
+	    }
+	}
+
+	@Override
+	public boolean copy(final Path path) throws Exception {
+	    return this.source.copy(path);
+	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+	    if (this.size > ArchivedTarFileRecord.MAX_SIZE) {
+		return this.source.openStream();
+	    }
+	    final byte[] bytes;
+	    try (final InputStream in = this.archive.open(this.key, this.size)) {
+		if (in == null) {
+		    return this.source.openStream();
+		}
+		bytes = in.readAllBytes();
+	    } catch (final IOException e) {
+		this.archive.broken = true;
+		return this.source.openStream();
+	    }
+	    final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	    if (bytes.length != this.size || !this.hash.equals(Utils.toHex(digest.digest(bytes)))) {
+		// previous archive differs from its manifest
+		return this.source.openStream();
+	    }
+	    return new ByteArrayInputStream(bytes);
+	}
+    }
+
+    /**
+     * Entry of the previous archive, copied as is when packed into a jar or
+     * zip.
+     */
+    static final class ArchivedFileRecord extends ScanFileRecord {
+	final ZipFile archive;
+
+	/**
+	 * Entry of the previous archive
+	 */
+	final ZipArchiveEntry archived;
+
+	/**
+	 * Entry to write, differs from 'archived' by mtime when the file was
+	 * touched
+	 */
+	final ZipArchiveEntry entry;
+
+	ArchivedFileRecord(final ScanFileRecord source, final ZipFile archive, final ZipArchiveEntry archived,
+		final ZipArchiveEntry entry) {
+	    super(source.modified, source.size);
+	    this.archive = archive;
+	    this.archived = archived;
+	    this.entry = entry;
+	}
+
+	@Override
+	public byte[] bytes() throws Exception {
+	    try (final InputStream in = this.openStream()) {
+		return in.readAllBytes();
+	    }
+	}
+
+	@Override
+	public boolean copy(final Path path) throws Exception {
+	    try (final InputStream in = this.openStream()) {
+		Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    Files.setLastModifiedTime(path, FileTime.fromMillis(this.modified));
+	    return true;
+	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+	    return this.archive.getInputStream(this.archived);
+	}
+
+	InputStream openRawStream() throws Exception {
+	    return this.archive.getRawInputStream(this.archived);
+	}
+    }
+
+    /**
+     * Puts content hash of the file into the manifest once the stream is
+     * read and closed.
+     */
+    private static final class HashingFileRecord extends ScanFileRecord {
+	final ScanFileRecord source;
+
+	final FolderPackManifest manifest;
+
+	final Path key;
+
+	HashingFileRecord(final ScanFileRecord source, final FolderPackManifest manifest, final Path key) {
+	    super(source.modified, source.size);
+	    this.source = source;
+	    this.manifest = manifest;
+	    this.key = key;
+	}
+
+	@Override
+	public byte[] bytes() throws Exception {
+	    try (final InputStream in = this.openStream()) {
+		return in.readAllBytes();
+	    }
+	}
+
+	@Override
+	public boolean copy(final Path path) throws Exception {
+	    return this.source.copy(path);
+	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+	    final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	    return new DigestInputStream(this.source.openStream(), digest) {
+		private boolean closed = false;
+
+		@Override
+		public void close() throws IOException {
+		    super.close();
+		    if (!this.closed) {
+			this.closed = true;
+			HashingFileRecord.this.manifest.put(HashingFileRecord.this.key, new FolderPackManifest.Entry(
+				Utils.toHex(digest.digest()), HashingFileRecord.this.size,
+				HashingFileRecord.this.modified));
+		    }
+		}
+	    };
+	}
+    }
+
+    /**
+     * Bytes buffered between the reader and each pack type of --pack-all-types
+     */
+    private static final int PIPE_SIZE = 1024 * 1024;
+
     public static final Map<String, OperationObject<? super FolderPackCommand>> OPERATIONS;
     static {
 	OPERATIONS = new HashMap<>();
@@ -44,6 +368,21 @@ public class FolderPackCommand extends FolderScanCommand {
 		context.doDryRun = true;
 		return true;
 	    }, "--dry-run");
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.doIncremental = true;
+		return true;
+	    }, "--incremental");
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.doReproducible = true;
+		return true;
+	    }, "--reproducible");
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("number expected after --compress-threads option");
+		}
+		context.setCompressThreads(Integer.parseInt(context.arguments.next().trim()));
+		return true;
+	    }, "--compress-threads");
 	    AbstractCommand.registerOperation(operations, context -> {
 		if (!context.arguments.hasNext()) {
 		    throw new IllegalArgumentException("source expected after --source option");
@@ -98,6 +437,15 @@ public class FolderPackCommand extends FolderScanCommand {
     public boolean doKeepDate = false;
     public boolean doAppendExtension = false;
     public boolean doDryRun = false;
+    /**
+     * Keep entry manifest next to each archive, repack changed entries only.
+     */
+    public boolean doIncremental = false;
+    /**
+     * Same files make the same archive bytes, see
+     * {@link FolderPackType#compressTar(FolderScanCommand, OutputStream, boolean)}
+     */
+    public boolean doReproducible = false;
 
     int updates = 0;
 
@@ -105,13 +453,18 @@ public class FolderPackCommand extends FolderScanCommand {
 
     public FolderPackType pack;
 
+    /**
+     * 0 - single stream codecs, otherwise tbz, tgz and txz are compressed in
+     * blocks by this number of threads.
+     */
+    private int compressThreads = 0;
+
     protected FolderPackCommand(final FolderPackOption... options) {
 	if (options != null) {
 	    this.setOptions(options);
 	}
     }
 
-    @SuppressWarnings("boxing")
     public int doPack() throws Exception {
 
 	if (this.pack == null) {
@@ -122,58 +475,217 @@ public class FolderPackCommand extends FolderScanCommand {
 	    throw new IllegalStateException("targetFile is not set!");
 	}
 
-	final Path targetFile = this.doAppendExtension
-		? this.targetFile.resolveSibling(this.targetFile.getFileName() + "." + this.pack.getExtension())
-		: this.targetFile;
-
-	if (Files.isDirectory(targetFile)) {
-	    throw new IllegalStateException("target file is directory, path: " + targetFile.normalize());
-	}
+	final Path targetFile = this.getTargetFile(this.pack);
 
 	if (!this.loadedMaps) {
-	    this.doPreloadBytes = true;
 	    this.doScan();
 	    this.loadedMaps = true;
 	}
 
+	final FolderPackManifest previous = this.doIncremental
+		? FolderPackManifest.load(targetFile)
+		: null;
+
+	final int checked = this.doPackCheck(targetFile, previous);
+	if (checked >= 0) {
+	    return checked;
+	}
+
+	return this.doPackSingle(this.pack, targetFile, previous);
+    }
+
+    /**
+     * @return -1 when target has to be packed
+     */
+    private int doPackCheck(final Path targetFile, final FolderPackManifest previous) throws Exception {
 	if (this.selectedFiles == 0 && this.doDeleteMissing) {
 	    if (Files.isRegularFile(targetFile)) {
 		if (!this.doDryRun) {
 		    Files.delete(targetFile);
+		    FolderPackManifest.delete(targetFile);
 		}
 		this.console.outProgress('-');
 	    }
 	    return 1;
 	}
 
-	if (!this.doOverwriteAll && Files.isRegularFile(targetFile)
-		&& this.selectedYoungest == Files.getLastModifiedTime(targetFile).toMillis()) {
+	if (!this.doOverwriteAll && Files.isRegularFile(targetFile) && (this.doIncremental
+		? previous != null && previous.matches(this.knownFiles)
+		: this.selectedYoungest == Files.getLastModifiedTime(targetFile).toMillis())) {
 	    this.console.outProgress('.');
 	    return 0;
 	}
 
+	return -1;
+    }
+
+    /**
+     * In '--incremental' mode unchanged entries are copied from the previous
+     * archive without recompressing when pack type is able to (files with
+     * only mtime changed are compared by hash then), tar based types read
+     * contents of unchanged files from the previous archive.
+     */
+    @SuppressWarnings("boxing")
+    private int doPackSingle(final FolderPackType pack, final Path targetFile, final FolderPackManifest previous)
+	    throws Exception {
 	final long timeStarted = System.currentTimeMillis();
 
-	final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	this.pack.doPack(this, bos);
+	final FolderPackManifest manifest = this.doIncremental
+		? new FolderPackManifest()
+		: null;
+
+	ZipFile archive = null;
+	ArchivedTar archivedTar = null;
+	final Path tempFile = FolderPackCommand.createTempFile(targetFile);
+	try {
+	    FolderScanCommand data = this;
+	    if (manifest != null) {
+		if (previous != null && pack.canCopyEntries() && !this.doReproducible) {
+		    try {
+			archive = FolderPackCommand.openZipFile(targetFile);
+		    } catch (final IOException e) {
+			this.console.outDebug("previous archive is not readable, path: ", targetFile, ", error: ", e);
+		    }
+		}
+		if (previous != null && !pack.canCopyEntries()) {
+		    archivedTar = this.openArchivedTar(pack, targetFile);
+		}
+		data = new FolderScanCommand();
+		int copied = 0;
+		for (final Map.Entry<Path, ScanFileRecord> file : this.knownFiles.entrySet()) {
+		    final Path key = file.getKey();
+		    final ScanFileRecord item = file.getValue();
+		    if (archivedTar != null) {
+			final FolderPackManifest.Entry entry = previous.get(key, item);
+			if (entry != null) {
+			    data.knownFiles.put(key, new ArchivedTarFileRecord(item, archivedTar, key, entry.hash));
+			    manifest.put(key, entry);
+			    ++copied;
+			} else {
+			    data.knownFiles.put(key, new HashingFileRecord(item, manifest, key));
+			}
+			continue;
+		    }
+		    final FolderPackManifest.Entry entry = previous == null || archive == null
+			    ? null
+			    : previous.getSameContents(key, item);
+		    final ZipArchiveEntry archived = entry == null
+			    ? null
+			    : archive.getEntry(key.toString());
+		    if (archived != null) {
+			ZipArchiveEntry written = archived;
+			if (entry.modified != item.modified) {
+			    // same contents, touched
+			    written = new ZipArchiveEntry(archived);
+			    written.setLastModifiedTime(FileTime.fromMillis(item.modified));
+			}
+			data.knownFiles.put(key, new ArchivedFileRecord(item, archive, archived, written));
+			manifest.put(key, new FolderPackManifest.Entry(entry.hash, item.size, item.modified));
+			++copied;
+		    } else {
+			data.knownFiles.put(key, new HashingFileRecord(item, manifest, key));
+		    }
+		}
+		this.console.outDebug("incremental, type: ", pack, ", copied: ", copied, ", packed: ",
+			this.knownFiles.size() - copied);
+	    }
+
+	    try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), 65536)) {
+		pack.doPack(data, out, this.compressThreads, this.doReproducible);
+	    }
+	    return this.doPackFinish(pack, targetFile, tempFile, timeStarted, manifest);
+	} finally {
+	    if (archive != null) {
+		archive.close();
+	    }
+	    if (archivedTar != null) {
+		archivedTar.close();
+	    }
+	    Files.deleteIfExists(tempFile);
+	}
+    }
 
-	final long packedSize = bos.size();
+    /**
+     * @return null when the archive is not readable
+     */
+    /**
+     * @return null when the archive is not readable or reading it is slower
+     *         than reading sources, see {@link FolderPackType#openTar}
+     */
+    private ArchivedTar openArchivedTar(final FolderPackType pack, final Path archive) throws Exception {
+	final InputStream file = new BufferedInputStream(Files.newInputStream(archive), 65536);
+	try {
+	    final InputStream tar = pack.openTar(file);
+	    if (tar != null) {
+		return new ArchivedTar(tar);
+	    }
+	} catch (final IOException e) {
+	    this.console.outDebug("previous archive is not readable, path: ", archive, ", error: ", e);
+	}
+	file.close();
+	return null;
+    }
+
+    /**
+     * Builder is not available in commons-compress 1.12 used at runtime.
+     */
+    @SuppressWarnings("deprecation")
+    private static ZipFile openZipFile(final Path archive) throws IOException {
+	return new ZipFile(archive.toFile());
+    }
+
+    /**
+     * Moves packed temporary file into place unless target is the same.
+     *
+     * @param manifest
+     *            entries packed, null when not in '--incremental' mode
+     */
+    @SuppressWarnings("boxing")
+    private int doPackFinish(final FolderPackType pack, final Path targetFile, final Path tempFile,
+	    final long timeStarted, final FolderPackManifest manifest) throws Exception {
+	final long packedSize = Files.size(tempFile);
 
 	final long duration = System.currentTimeMillis() - timeStarted;
 
-	this.console.outDebug("packed, type: ", this.pack, ", inputSize: ", this.selectedBytes, ", output size: ",
+	this.console.outDebug("packed, type: ", pack, ", inputSize: ", this.selectedBytes, ", output size: ",
 		packedSize, ", took: ", duration, "ms");
 
 	if (!this.doOverwriteAll && Files.isRegularFile(targetFile) && Files.size(targetFile) == packedSize
 		&& this.selectedYoungest <= Files.getLastModifiedTime(targetFile).toMillis()) {
+	    // target is kept, so is its manifest: the new one describes the
+	    // archive just discarded
+	    this.console.outProgress('.');
+	    return 0;
+	}
+
+	if (this.doReproducible && Files.isRegularFile(targetFile) && Files.size(targetFile) == packedSize
+		&& Files.mismatch(tempFile, targetFile) == -1L) {
+	    // same bytes, target is kept
+	    if (!this.doDryRun) {
+		if (this.doKeepDate && Files.getLastModifiedTime(targetFile).toMillis() != this.selectedYoungest) {
+		    Files.setLastModifiedTime(targetFile, FileTime.fromMillis(this.selectedYoungest));
+		}
+		if (manifest != null) {
+		    manifest.save(this.console, targetFile);
+		}
+	    }
 	    this.console.outProgress('.');
 	    return 0;
 	}
 
 	if (!this.doDryRun) {
-	    Files.write(targetFile, bos.toByteArray());
 	    if (this.doKeepDate) {
-		Files.setLastModifiedTime(targetFile, FileTime.fromMillis(this.selectedYoungest));
+		Files.setLastModifiedTime(tempFile, FileTime.fromMillis(this.selectedYoungest));
+	    }
+	    try {
+		Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    } catch (final AtomicMoveNotSupportedException e) {
+		Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    if (manifest != null) {
+		manifest.save(this.console, targetFile);
+	    } else {
+		FolderPackManifest.delete(targetFile);
 	    }
 	}
 	this.console.outProgress('W');
@@ -181,6 +693,204 @@ public class FolderPackCommand extends FolderScanCommand {
 	return 1;
     }
 
+    /**
+     * Every file is read once and its contents are passed to all pack types,
+     * each type is compressed in its own thread behind a bounded pipe. Takes
+     * about as long as the slowest type alone.
+     *
+     * In '--incremental' mode contents of unchanged files are read from one of
+     * the previous archives instead, the one of gzip when there is a choice.
+     *
+     * @param previousManifests
+     *            manifests of previous archives, null when not valid
+     */
+    private int doPackTypes(final List<FolderPackType> packs, final List<Path> targetFiles,
+	    final List<FolderPackManifest> previousManifests) throws Exception {
+	final int count = packs.size();
+	final Path[] tempFiles = new Path[count];
+	final PipedOutputStream[] pipes = new PipedOutputStream[count];
+	final Thread[] threads = new Thread[count];
+	final Throwable[] failures = new Throwable[count];
+
+	final int compressThreads = this.compressThreads;
+	final boolean reproducible = this.doReproducible;
+	final FolderPackManifest manifest = this.doIncremental
+		? new FolderPackManifest()
+		: null;
+	final long timeStarted = System.currentTimeMillis();
+
+	try {
+	    int broken = -1;
+	    try {
+		for (int i = 0; i < count; ++i) {
+		    final FolderPackType pack = packs.get(i);
+		    final Path tempFile = FolderPackCommand.createTempFile(targetFiles.get(i));
+		    tempFiles[i] = tempFile;
+
+		    final PipedInputStream input = new PipedInputStream(FolderPackCommand.PIPE_SIZE);
+		    pipes[i] = new PipedOutputStream(input);
+
+		    final FolderScanCommand sink = new FolderScanCommand();
+		    for (final Map.Entry<Path, ScanFileRecord> file : this.knownFiles.entrySet()) {
+			sink.knownFiles.put(file.getKey(), new PipeFileRecord(file.getValue(), input));
+		    }
+
+		    final int index = i;
+		    threads[i] = new Thread(() -> {
+			try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), 65536)) {
+			    pack.doPack(sink, out, compressThreads, reproducible);
+			} catch (final Throwable e) {
+			    failures[index] = e;
+			} finally {
+			    try {
+				input.close();
+			    } catch (final IOException e) {
+				// ignore
+			    }
+			}
+		    }, "pack-" + pack.getExtension());
+		    threads[i].start();
+		}
+
+		// uncompressed tar is the cheapest to read, then gzip
+		int reuse = -1;
+		if (manifest != null) {
+		    for (int i = 0; i < count; ++i) {
+			if (previousManifests.get(i) == null) {
+			    continue;
+			}
+			if (packs.get(i) == FolderPackType.PACK_TAR
+				|| packs.get(i) == FolderPackType.PACK_TGZ && reuse == -1) {
+			    reuse = i;
+			}
+		    }
+		}
+		try (final ArchivedTar archivedTar = reuse == -1
+			? null
+			: this.openArchivedTar(packs.get(reuse), targetFiles.get(reuse))) {
+		    broken = this.doPackRead(pipes, manifest, archivedTar, archivedTar == null
+			    ? null
+			    : previousManifests.get(reuse));
+		}
+	    } finally {
+		for (final PipedOutputStream pipe : pipes) {
+		    if (pipe != null) {
+			pipe.close();
+		    }
+		}
+		for (final Thread thread : threads) {
+		    if (thread != null) {
+			thread.join();
+		    }
+		}
+	    }
+
+	    // others fail on a truncated pipe then, report the one that broke it
+	    if (broken != -1) {
+		FolderPackCommand.throwFailure(failures[broken]);
+		throw new IllegalStateException("pack stopped before all files were read, type: " + packs.get(broken));
+	    }
+	    for (final Throwable failure : failures) {
+		FolderPackCommand.throwFailure(failure);
+	    }
+
+	    int result = 0;
+	    for (int i = 0; i < count; ++i) {
+		result += this.doPackFinish(packs.get(i), targetFiles.get(i), tempFiles[i], timeStarted, manifest);
+	    }
+	    return result;
+	} finally {
+	    for (final Path tempFile : tempFiles) {
+		if (tempFile != null) {
+		    Files.deleteIfExists(tempFile);
+		}
+	    }
+	}
+    }
+
+    /**
+     * @param archivedTar
+     *            previous archive to read unchanged files from, null when
+     *            there is none
+     * @return index of a pipe closed by its pack type, -1 when all files are
+     *         passed.
+     */
+    private int doPackRead(final PipedOutputStream[] pipes, final FolderPackManifest manifest,
+	    final ArchivedTar archivedTar, final FolderPackManifest previous) throws Exception {
+	final byte[] buffer = new byte[65536];
+	for (final Map.Entry<Path, ScanFileRecord> file : this.knownFiles.entrySet()) {
+	    final FolderPackManifest.Entry entry = archivedTar == null
+		    ? null
+		    : previous.get(file.getKey(), file.getValue());
+	    final ScanFileRecord item;
+	    if (manifest == null) {
+		item = file.getValue();
+	    } else if (entry != null) {
+		item = new ArchivedTarFileRecord(file.getValue(), archivedTar, file.getKey(), entry.hash);
+		manifest.put(file.getKey(), entry);
+	    } else {
+		item = new HashingFileRecord(file.getValue(), manifest, file.getKey());
+	    }
+	    long left = item.size;
+	    try (final InputStream in = item.openStream()) {
+		for (int read; left > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, left))) != -1;) {
+		    for (int i = 0; i < pipes.length; ++i) {
+			try {
+			    pipes[i].write(buffer, 0, read);
+			    // wakes the reader now, pipe polls otherwise
+			    pipes[i].flush();
+			} catch (final IOException e) {
+			    return i;
+			}
+		    }
+		    left -= read;
+		}
+		if (left != 0 || in.read() != -1) {
+		    throw new IllegalStateException("file changed while packing, path: " + file.getKey());
+		}
+	    }
+	}
+	return -1;
+    }
+
+    private Path getTargetFile(final FolderPackType pack) {
+	if (this.targetFile == null) {
+	    throw new IllegalStateException("targetFile is not set!");
+	}
+
+	final Path targetFile = this.doAppendExtension
+		? this.targetFile.resolveSibling(this.targetFile.getFileName() + "." + pack.getExtension())
+		: this.targetFile;
+
+	if (Files.isDirectory(targetFile)) {
+	    throw new IllegalStateException("target file is directory, path: " + targetFile.normalize());
+	}
+	return targetFile;
+    }
+
+    /**
+     * Hidden file next to the target, so the move into place is a rename
+     * within the same folder.
+     */
+    static Path createTempFile(final Path targetFile) throws Exception {
+	final Path folder = targetFile.toAbsolutePath().getParent();
+	final String prefix = "." + targetFile.getFileName() + ".";
+	if (folder.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+	    return Files.createTempFile(folder, prefix, ".tmp",
+		    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
+	}
+	return Files.createTempFile(folder, prefix, ".tmp");
+    }
+
+    private static void throwFailure(final Throwable failure) throws Exception {
+	if (failure instanceof Error) {
+	    throw (Error) failure;
+	}
+	if (failure != null) {
+	    throw (Exception) failure;
+	}
+    }
+
     public int doPackAllTypes() throws Exception {
 	if (!this.doAppendExtension) {
 	    throw new IllegalArgumentException("--append-extension must be enabled for --pack-all-types");
@@ -189,11 +899,38 @@ public class FolderPackCommand extends FolderScanCommand {
 	    throw new IllegalStateException("pack should not be set for --pack-all-types");
 	}
 
+	if (!this.loadedMaps) {
+	    this.doScan();
+	    this.loadedMaps = true;
+	}
+
 	int result = 0;
 
+	final List<FolderPackType> packs = new ArrayList<>();
+	final List<Path> targetFiles = new ArrayList<>();
+	final List<FolderPackManifest> previousManifests = new ArrayList<>();
 	for (final FolderPackType pack : FolderPackType.TRY) {
-	    this.setPackType(pack);
-	    result += this.doPack();
+	    final Path targetFile = this.getTargetFile(pack);
+	    final FolderPackManifest previous = this.doIncremental
+		    ? FolderPackManifest.load(targetFile)
+		    : null;
+	    final int checked = this.doPackCheck(targetFile, previous);
+	    if (checked >= 0) {
+		result += checked;
+		continue;
+	    }
+	    if (previous != null && pack.canCopyEntries() && !this.doReproducible) {
+		// reads changed files only
+		result += this.doPackSingle(pack, targetFile, previous);
+		continue;
+	    }
+	    packs.add(pack);
+	    targetFiles.add(targetFile);
+	    previousManifests.add(previous);
+	}
+
+	if (!packs.isEmpty()) {
+	    result += this.doPackTypes(packs, targetFiles, previousManifests);
 	}
 
 	return result;
@@ -208,6 +945,9 @@ public class FolderPackCommand extends FolderScanCommand {
 	this.doDryRun = false;
 	this.loadedMaps = false;
 	this.pack = null;
+	this.compressThreads = 0;
+	this.doIncremental = false;
+	this.doReproducible = false;
     }
 
     @Override
@@ -239,10 +979,23 @@ public class FolderPackCommand extends FolderScanCommand {
 	    case DRY_RUN:
 		this.doDryRun = true;
 		continue option;
+	    case INCREMENTAL:
+		this.doIncremental = true;
+		continue option;
+	    case REPRODUCIBLE:
+		this.doReproducible = true;
+		continue option;
 	    }
 	}
     }
 
+    public void setCompressThreads(final int threads) {
+	if (threads < 0) {
+	    throw new IllegalArgumentException("threads must not be negative: " + threads);
+	}
+	this.compressThreads = threads;
+    }
+
     public void setPackType(final FolderPackType pack) {
 	this.pack = pack;
     }
@@ -0,0 +1,162 @@
+package ru.myx.distro;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ru.myx.distro.prepare.ConsoleOutput;
+
+/**
+ * Entries of an archive made by {@link FolderPackCommand} in '--incremental'
+ * mode, stored as '.&lt;archive&gt;.manifest' next to the archive. First line
+ * is 'archive size mtime' of the archive described, each next line is 'hash
+ * size mtime path' of an entry.
+ *
+ * @author myx
+ *
+ */
+final class FolderPackManifest {
+
+    static final class Entry {
+	final String hash;
+
+	final long size;
+
+	final long modified;
+
+	Entry(final String hash, final long size, final long modified) {
+	    this.hash = hash;
+	    this.size = size;
+	    this.modified = modified;
+	}
+    }
+
+    static void delete(final Path archive) throws Exception {
+	Files.deleteIfExists(FolderPackManifest.getManifestFile(archive));
+    }
+
+    static Path getManifestFile(final Path archive) {
+	return archive.resolveSibling("." + archive.getFileName() + ".manifest");
+    }
+
+    /**
+     * @return null when there is no manifest or it was written for another
+     *         archive
+     */
+    static FolderPackManifest load(final Path archive) throws Exception {
+	final Path manifestFile = FolderPackManifest.getManifestFile(archive);
+	if (!Files.isRegularFile(manifestFile) || !Files.isRegularFile(archive)) {
+	    return null;
+	}
+	final BasicFileAttributes attributes = Files.readAttributes(archive, BasicFileAttributes.class);
+	final FolderPackManifest manifest = new FolderPackManifest();
+	try (final BufferedReader reader = Files.newBufferedReader(manifestFile)) {
+	    final String header = reader.readLine();
+	    if (header == null || !header.equals(
+		    "archive " + attributes.size() + ' ' + attributes.lastModifiedTime().toMillis())) {
+		return null;
+	    }
+	    for (String line; (line = reader.readLine()) != null;) {
+		final String[] fields = line.split(" ", 4);
+		if (fields.length != 4) {
+		    return null;
+		}
+		try {
+		    manifest.entries.put(//
+			    fields[3], //
+			    new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]))//
+		    );
+		} catch (final NumberFormatException e) {
+		    return null;
+		}
+	    }
+	}
+	return manifest;
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    FolderPackManifest() {
+	//
+    }
+
+    /**
+     * @return entry when size and mtime are the same, null otherwise
+     */
+    synchronized Entry get(final Path key, final FolderScanCommand.ScanFileRecord item) {
+	final Entry entry = this.entries.get(key.toString());
+	return entry != null && entry.size == item.size && entry.modified == item.modified
+		? entry
+		: null;
+    }
+
+    /**
+     * Same as {@link #get(Path, FolderScanCommand.ScanFileRecord)}, when only
+     * mtime differs the file is read and its hash is compared.
+     *
+     * @return entry of the previous archive, its mtime may differ from the
+     *         file's one
+     */
+    Entry getSameContents(final Path key, final FolderScanCommand.ScanFileRecord item) throws Exception {
+	final Entry entry;
+	synchronized (this) {
+	    entry = this.entries.get(key.toString());
+	}
+	if (entry == null || entry.size != item.size) {
+	    return null;
+	}
+	if (entry.modified == item.modified) {
+	    return entry;
+	}
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	final byte[] buffer = new byte[65536];
+	try (final InputStream in = item.openStream()) {
+	    for (int read; (read = in.read(buffer)) != -1;) {
+		digest.update(buffer, 0, read);
+	    }
+	}
+	return entry.hash.equals(Utils.toHex(digest.digest()))
+		? entry
+		: null;
+    }
+
+    /**
+     * @return true when there are the same files, of the same size and mtime
+     */
+    boolean matches(final Map<Path, ? extends FolderScanCommand.ScanFileRecord> files) {
+	if (this.entries.size() != files.size()) {
+	    return false;
+	}
+	for (final Map.Entry<Path, ? extends FolderScanCommand.ScanFileRecord> file : files.entrySet()) {
+	    if (this.get(file.getKey(), file.getValue()) == null) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    synchronized void put(final Path key, final Entry entry) {
+	this.entries.put(key.toString(), entry);
+    }
+
+    /**
+     * Call after the archive is in its place and has its final mtime.
+     */
+    synchronized boolean save(final ConsoleOutput console, final Path archive) throws Exception {
+	final BasicFileAttributes attributes = Files.readAttributes(archive, BasicFileAttributes.class);
+	final List<String> lines = new ArrayList<>(this.entries.size() + 1);
+	lines.add("archive " + attributes.size() + ' ' + attributes.lastModifiedTime().toMillis());
+	for (final Map.Entry<String, Entry> record : this.entries.entrySet()) {
+	    final Entry entry = record.getValue();
+	    lines.add(entry.hash + ' ' + entry.size + ' ' + entry.modified + ' ' + record.getKey());
+	}
+	return Utils.save(console, FolderPackManifest.getManifestFile(archive), lines);
+    }
+}
@@ -7,5 +7,7 @@ public enum FolderPackOption {
     KEEP_DATE, //
     APPEND_EXTENSION, //
     DRY_RUN, //
+    INCREMENTAL, //
+    REPRODUCIBLE, //
     ;
 }
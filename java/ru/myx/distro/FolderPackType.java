@@ -1,10 +1,13 @@
 package ru.myx.distro;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
@@ -20,8 +23,14 @@ public enum FolderPackType {
     PACK_JAR {
 
 	@Override
-	void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
-	    FolderPackType.compressJar(data, out);
+	void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+		final boolean reproducible) throws Exception {
+	    FolderPackType.compressJar(data, out, reproducible);
+	}
+
+	@Override
+	boolean canCopyEntries() {
+	    return true;
 	}
 
 	@Override
@@ -33,8 +42,14 @@ public enum FolderPackType {
     PACK_ZIP {
 
 	@Override
-	void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
-	    FolderPackType.compressZip(data, out);
+	void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+		final boolean reproducible) throws Exception {
+	    FolderPackType.compressZip(data, out, reproducible);
+	}
+
+	@Override
+	boolean canCopyEntries() {
+	    return true;
 	}
 
 	@Override
@@ -46,9 +61,12 @@ public enum FolderPackType {
     PACK_TBZ {
 
 	@Override
-	void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
-	    try (final OutputStream jos = new BZip2CompressorOutputStream(out)) {
-		FolderPackType.compressTar(data, jos);
+	void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+		final boolean reproducible) throws Exception {
+	    try (final OutputStream jos = threads < 1
+		    ? new BZip2CompressorOutputStream(out)
+		    : ParallelCompressorOutputStream.bzip2(out, threads)) {
+		FolderPackType.compressTar(data, jos, reproducible);
 	    }
 	}
 
@@ -61,9 +79,12 @@ public enum FolderPackType {
     PACK_TGZ {
 
 	@Override
-	void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
-	    try (final OutputStream jos = new GZIPOutputStream(out)) {
-		FolderPackType.compressTar(data, jos);
+	void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+		final boolean reproducible) throws Exception {
+	    try (final OutputStream jos = threads < 1
+		    ? new GZIPOutputStream(out)
+		    : ParallelCompressorOutputStream.gzip(out, threads)) {
+		FolderPackType.compressTar(data, jos, reproducible);
 	    }
 
 	    /**
@@ -81,13 +102,21 @@ public enum FolderPackType {
 	    return "tgz";
 	}
 
+	@Override
+	InputStream openTar(final InputStream in) throws IOException {
+	    return new GZIPInputStream(in, 65536);
+	}
+
     }, //
     PACK_TXZ {
 
 	@Override
-	void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
-	    try (final OutputStream jos = new XZCompressorOutputStream(out, 7)) {
-		FolderPackType.compressTar(data, jos);
+	void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+		final boolean reproducible) throws Exception {
+	    try (final OutputStream jos = threads < 1
+		    ? new XZCompressorOutputStream(out, 7)
+		    : ParallelCompressorOutputStream.xz(out, threads, 7)) {
+		FolderPackType.compressTar(data, jos, reproducible);
 	    }
 	}
 
@@ -100,8 +129,9 @@ public enum FolderPackType {
     PACK_TAR {
 
 	@Override
-	void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
-	    FolderPackType.compressTar(data, out);
+	void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+		final boolean reproducible) throws Exception {
+	    FolderPackType.compressTar(data, out, reproducible);
 	}
 
 	@Override
@@ -109,9 +139,31 @@ public enum FolderPackType {
 	    return "tar";
 	}
 
+	@Override
+	InputStream openTar(final InputStream in) throws IOException {
+	    return in;
+	}
+
     }, //
     ;
 
+    /**
+     * Millis from SOURCE_DATE_EPOCH environment variable, -1 when not set
+     */
+    static final long SOURCE_DATE_EPOCH;
+    static {
+	final String epoch = System.getenv("SOURCE_DATE_EPOCH");
+	long value = -1L;
+	if (epoch != null && !epoch.isBlank()) {
+	    try {
+		value = Long.parseLong(epoch.trim()) * 1000L;
+	    } catch (final NumberFormatException e) {
+		// ignore, not set
+	    }
+	}
+	SOURCE_DATE_EPOCH = value;
+    }
+
     static FolderPackType[] TRY = new FolderPackType[] { //
 	    FolderPackType.PACK_JAR, //
 	    FolderPackType.PACK_TBZ, //
@@ -120,6 +172,11 @@ public enum FolderPackType {
     };
 
     public static void compressJar(final FolderScanCommand data, final OutputStream out) throws Exception {
+	FolderPackType.compressJar(data, out, false);
+    }
+
+    public static void compressJar(final FolderScanCommand data, final OutputStream out, final boolean reproducible)
+	    throws Exception {
 	try (final JarArchiveOutputStream jos = new JarArchiveOutputStream(out)) {
 	    jos.setLevel(9);
 
@@ -128,11 +185,22 @@ public enum FolderPackType {
 		final FolderScanCommand.ScanFileRecord item = file.getValue();
 
 		try {
+		    if (item instanceof FolderPackCommand.ArchivedFileRecord) {
+			final FolderPackCommand.ArchivedFileRecord archived = (FolderPackCommand.ArchivedFileRecord) item;
+			try (final InputStream raw = archived.openRawStream()) {
+			    jos.addRawArchiveEntry(archived.entry, raw);
+			}
+			continue;
+		    }
 		    final JarArchiveEntry entry = new JarArchiveEntry(key.toString());
 		    entry.setSize(item.size);
-		    entry.setLastModifiedTime(FileTime.fromMillis(item.modified));
+		    if (reproducible) {
+			entry.setTime(FolderPackType.getDosTime(FolderPackType.getReproducibleTime(item.modified)));
+		    } else {
+			entry.setLastModifiedTime(FileTime.fromMillis(item.modified));
+		    }
 		    jos.putArchiveEntry(entry);
-		    jos.write(item.bytes());
+		    FolderPackType.writeContents(item, jos);
 		    jos.closeArchiveEntry();
 		} catch (final IOException e) {
 		    throw new RuntimeException(e);
@@ -142,6 +210,11 @@ public enum FolderPackType {
     }
 
     public static void compressZip(final FolderScanCommand data, final OutputStream out) throws Exception {
+	FolderPackType.compressZip(data, out, false);
+    }
+
+    public static void compressZip(final FolderScanCommand data, final OutputStream out, final boolean reproducible)
+	    throws Exception {
 	try (final ZipArchiveOutputStream jos = new ZipArchiveOutputStream(out)) {
 	    jos.setLevel(9);
 
@@ -150,11 +223,22 @@ public enum FolderPackType {
 		final FolderScanCommand.ScanFileRecord item = file.getValue();
 
 		try {
+		    if (item instanceof FolderPackCommand.ArchivedFileRecord) {
+			final FolderPackCommand.ArchivedFileRecord archived = (FolderPackCommand.ArchivedFileRecord) item;
+			try (final InputStream raw = archived.openRawStream()) {
+			    jos.addRawArchiveEntry(archived.entry, raw);
+			}
+			continue;
+		    }
 		    final ZipArchiveEntry entry = new ZipArchiveEntry(key.toString());
 		    entry.setSize(item.size);
-		    entry.setLastModifiedTime(FileTime.fromMillis(item.modified));
+		    if (reproducible) {
+			entry.setTime(FolderPackType.getDosTime(FolderPackType.getReproducibleTime(item.modified)));
+		    } else {
+			entry.setLastModifiedTime(FileTime.fromMillis(item.modified));
+		    }
 		    jos.putArchiveEntry(entry);
-		    jos.write(item.bytes());
+		    FolderPackType.writeContents(item, jos);
 		    jos.closeArchiveEntry();
 		} catch (final IOException e) {
 		    throw new RuntimeException(e);
@@ -164,7 +248,21 @@ public enum FolderPackType {
     }
 
     public static void compressTar(final FolderScanCommand data, final OutputStream jos) throws Exception {
-	try (final TarArchiveOutputStream tos = new TarArchiveOutputStream(jos)) {
+	FolderPackType.compressTar(data, jos, false);
+    }
+
+    /**
+     * @param reproducible
+     *            entries get whole second times not later than
+     *            SOURCE_DATE_EPOCH, mode 0644 and owner 0:0 without names,
+     *            headers of long names are normalized as well. Same files
+     *            make the same bytes.
+     */
+    public static void compressTar(final FolderScanCommand data, final OutputStream jos, final boolean reproducible)
+	    throws Exception {
+	try (final TarArchiveOutputStream tos = new TarArchiveOutputStream(reproducible
+		? new TarHeaderNormalizer(jos)
+		: jos)) {
 	    tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
 	    tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
 	    tos.setAddPaxHeadersForNonAsciiNames(false);
@@ -176,9 +274,18 @@ public enum FolderPackType {
 		try {
 		    final TarArchiveEntry entry = new TarArchiveEntry(key.toString());
 		    entry.setSize(item.size);
-		    entry.setModTime(item.modified);
+		    if (reproducible) {
+			entry.setModTime(FolderPackType.getReproducibleTime(item.modified));
+			entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE);
+			entry.setUserId(0);
+			entry.setGroupId(0);
+			entry.setUserName("");
+			entry.setGroupName("");
+		    } else {
+			entry.setModTime(item.modified);
+		    }
 		    tos.putArchiveEntry(entry);
-		    tos.write(item.bytes());
+		    FolderPackType.writeContents(item, tos);
 		    tos.closeArchiveEntry();
 		} catch (final IOException e) {
 		    throw new RuntimeException(e);
@@ -187,7 +294,70 @@ public enum FolderPackType {
 	}
     }
 
-    abstract void doPack(final FolderScanCommand data, final OutputStream out) throws Exception;
+    /**
+     * Zip stores local date and time, shifted so every time zone writes the
+     * same fields.
+     */
+    static long getDosTime(final long time) {
+	return time - TimeZone.getDefault().getOffset(time);
+    }
+
+    /**
+     * Whole seconds, not later than SOURCE_DATE_EPOCH when it is set.
+     */
+    static long getReproducibleTime(final long modified) {
+	final long time = modified - Math.floorMod(modified, 1000L);
+	return FolderPackType.SOURCE_DATE_EPOCH != -1L && time > FolderPackType.SOURCE_DATE_EPOCH
+		? FolderPackType.SOURCE_DATE_EPOCH
+		: time;
+    }
+
+    /**
+     * Streams file contents into current archive entry.
+     */
+    static void writeContents(final FolderScanCommand.ScanFileRecord item, final OutputStream out) throws Exception {
+	try (final InputStream in = item.openStream()) {
+	    final byte[] buffer = new byte[65536];
+	    for (int read; (read = in.read(buffer)) != -1;) {
+		out.write(buffer, 0, read);
+	    }
+	}
+    }
+
+    /**
+     * @return true when entries of an existing archive can be copied without
+     *         recompressing, see {@link FolderPackCommand.ArchivedFileRecord}
+     */
+    boolean canCopyEntries() {
+	return false;
+    }
+
+    void doPack(final FolderScanCommand data, final OutputStream out) throws Exception {
+	this.doPack(data, out, 0, false);
+    }
+
+    /**
+     * @param threads
+     *            0 - single stream, as {@link #doPack(FolderScanCommand, OutputStream)};
+     *            1 or more - compressed in blocks, see
+     *            {@link ParallelCompressorOutputStream}, output does not depend
+     *            on the number.
+     * @param reproducible
+     *            see {@link #compressTar(FolderScanCommand, OutputStream, boolean)}
+     */
+    abstract void doPack(final FolderScanCommand data, final OutputStream out, final int threads,
+	    final boolean reproducible) throws Exception;
 
     abstract String getExtension();
+
+    /**
+     * Previous archives are read instead of unchanged sources only when that
+     * is cheap: bzip2 and xz decompress slower than sources are read.
+     *
+     * @return tar stream of an archive of this type, null when the type is
+     *         not tar based or too slow to read
+     */
+    InputStream openTar(final InputStream in) throws IOException {
+	return null;
+    }
 }
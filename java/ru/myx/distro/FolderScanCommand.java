@@ -1,5 +1,7 @@
 package ru.myx.distro;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -39,6 +41,11 @@ public class FolderScanCommand extends AbstractCommand {
 	    Files.setLastModifiedTime(path, FileTime.fromMillis(this.modified));
 	    return true;
 	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+	    return new ByteArrayInputStream(this.bytes);
+	}
     }
 
     protected static class ScanFilePaths extends ScanFileRecord {
@@ -59,6 +66,11 @@ public class FolderScanCommand extends AbstractCommand {
 	    Files.copy(this.file, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
 	    return true;
 	}
+
+	@Override
+	public InputStream openStream() throws Exception {
+	    return Files.newInputStream(this.file);
+	}
     }
 
     protected static abstract class ScanFileRecord {
@@ -70,9 +82,19 @@ public class FolderScanCommand extends AbstractCommand {
 	    this.size = attributes.size();
 	}
 
+	public ScanFileRecord(final long modified, final long size) {
+	    this.modified = modified;
+	    this.size = size;
+	}
+
 	public abstract byte[] bytes() throws Exception;
 
 	public abstract boolean copy(final Path path) throws Exception;
+
+	/**
+	 * Contents without loading the whole file, caller closes the stream.
+	 */
+	public abstract InputStream openStream() throws Exception;
     }
 
     protected static class ScanFolderRecord {
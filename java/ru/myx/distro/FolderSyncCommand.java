@@ -4,7 +4,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -13,6 +13,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ru.myx.distro.prepare.ConsoleOutput;
 
@@ -49,6 +56,24 @@ public class FolderSyncCommand extends AbstractCommand {
 		context.doDryRun = true;
 		return true;
 	    }, "--dry-run");
+	    AbstractCommand.registerOperation(operations, context -> {
+		context.doCompareContent = true;
+		return true;
+	    }, "--compare-content");
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("number expected after --threads option");
+		}
+		context.setThreads(Integer.parseInt(context.arguments.next().trim()));
+		return true;
+	    }, "--threads");
+	    AbstractCommand.registerOperation(operations, context -> {
+		if (!context.arguments.hasNext()) {
+		    throw new IllegalArgumentException("path expected after --content-manifest option");
+		}
+		context.contentManifest = Paths.get(context.arguments.next().trim());
+		return true;
+	    }, "--content-manifest");
 	    AbstractCommand.registerOperation(operations, context -> {
 		if (!context.arguments.hasNext()) {
 		    throw new IllegalArgumentException("source expected after --source option");
@@ -81,11 +106,49 @@ public class FolderSyncCommand extends AbstractCommand {
 		System.out.println(context.updates);
 		return true;
 	    }, "--print-updates");
+	    AbstractCommand.registerOperation(operations, context -> {
+		System.out.println(Utils.getCopyStatistics());
+		return true;
+	    }, "--print-copy-statistics");
+	    AbstractCommand.registerOperation(operations, context -> {
+		System.out.println(context.bytesWritten);
+		return true;
+	    }, "--print-bytes-written");
+	    AbstractCommand.registerOperation(operations, context -> {
+		System.out.println(context.bytesSkipped);
+		return true;
+	    }, "--print-bytes-skipped");
 	}
 
 	FolderSyncCommand.OPERATIONS.putAll(operations);
     }
 
+    /**
+     * State of one {@link #doSync()} run, shared by the walker and the copy
+     * workers.
+     */
+    private static final class SyncState {
+	final FolderSyncManifest manifest;
+
+	final Executor executor;
+
+	final AtomicInteger count = new AtomicInteger();
+
+	final AtomicReference<Exception> failure = new AtomicReference<>();
+
+	SyncState(final FolderSyncManifest manifest, final Executor executor) {
+	    this.manifest = manifest;
+	    this.executor = executor;
+	}
+
+	void checkFailure() throws Exception {
+	    final Exception e = this.failure.get();
+	    if (e != null) {
+		throw e;
+	    }
+	}
+    }
+
     /**
      *
      * @param args
@@ -111,11 +174,31 @@ public class FolderSyncCommand extends AbstractCommand {
     private boolean doIgnoreHidden = false;
     private boolean doKeepDates = false;
     private boolean doDryRun = false;
+    private boolean doCompareContent = false;
+
+    /**
+     * Hash cache for '--compare-content', default is a hidden file next to the
+     * target folder, so it never ends up in the target itself.
+     */
+    private Path contentManifest = null;
 
     private final Set<String> excludeNames = new HashSet<>();
 
     int updates = 0;
 
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong bytesSkipped = new AtomicLong();
+
+    /**
+     * Copy workers, 0 or 1 means files are copied by the walking thread
+     */
+    private int threads = 0;
+
+    /**
+     * Targets become links into the store, with source dates
+     */
+    private ContentStore contentStore = null;
+
     protected FolderSyncCommand(final FolderSyncOption... options) {
 	if (options != null) {
 	    this.setOptions(options);
@@ -180,8 +263,49 @@ public class FolderSyncCommand extends AbstractCommand {
 	    }
 	}
 
-	final int count = this.sync(null);
+	final FolderSyncManifest manifest = this.doCompareContent
+		? new FolderSyncManifest(this.contentManifest != null
+			? this.contentManifest
+			: this.targetRoot.toAbsolutePath().normalize()
+				.resolveSibling("." + this.targetRoot.getFileName() + ".sync-manifest"))
+		: null;
+
+	final int threads = this.threads;
+	final ThreadPoolExecutor executor = threads > 1
+		? new ThreadPoolExecutor(//
+			threads, //
+			threads, //
+			0L, //
+			TimeUnit.MILLISECONDS, //
+			new ArrayBlockingQueue<>(threads * 64), //
+			new ThreadPoolExecutor.CallerRunsPolicy()//
+		)
+		: null;
+
+	final SyncState state = new SyncState(manifest, executor == null
+		? Runnable::run
+		: executor);
+	try {
+	    this.sync(null, state);
+	} catch (final Exception e) {
+	    state.failure.compareAndSet(null, e);
+	} finally {
+	    if (executor != null) {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	    }
+	}
+	state.checkFailure();
+
+	final int count = state.count.get();
 	this.updates += count;
+
+	if (manifest != null) {
+	    this.console.outDebug("sync content hashes calculated: ", manifest.hashed);
+	    if (!this.doDryRun) {
+		manifest.save(this.console);
+	    }
+	}
 	return count;
     }
 
@@ -209,9 +333,13 @@ public class FolderSyncCommand extends AbstractCommand {
 	this.sourceRoots.clear();
 	this.targetRoot = null;
 	this.updates = 0;
+	this.bytesWritten.set(0);
+	this.bytesSkipped.set(0);
 	this.doDeleteMissing = false;
 	this.doOverwriteAll = false;
 	this.doIgnoreHidden = false;
+	this.doCompareContent = false;
+	this.contentManifest = null;
 	this.excludeNames.clear();
     }
 
@@ -236,10 +364,24 @@ public class FolderSyncCommand extends AbstractCommand {
 	    case DRY_RUN:
 		this.doDryRun = true;
 		continue option;
+	    case COMPARE_CONTENT:
+		this.doCompareContent = true;
+		continue option;
 	    }
 	}
     }
 
+    void setContentStore(final ContentStore contentStore) {
+	this.contentStore = contentStore;
+    }
+
+    public void setThreads(final int threads) {
+	if (threads < 0) {
+	    throw new IllegalArgumentException("threads must not be negative: " + threads);
+	}
+	this.threads = threads;
+    }
+
     public void setTargetRoot(final Path targetRoot) {
 	if (targetRoot == null) {
 	    this.targetRoot = null;
@@ -256,11 +398,11 @@ public class FolderSyncCommand extends AbstractCommand {
 	this.setTargetRoot(Paths.get(targetRoot));
     }
 
-    private int sync(final Path relativePath) throws Exception {
+    private void sync(final Path relativePath, final SyncState state) throws Exception {
 
-	this.console.outProgress('S');
+	state.checkFailure();
 
-	int count = 0;
+	this.console.outProgress('S');
 
 	final Map<String, Path> ignore = new HashMap<>();
 	final Map<String, Path> folders = new HashMap<>();
@@ -296,25 +438,21 @@ public class FolderSyncCommand extends AbstractCommand {
 			final Path targetFile = //
 				(relativePath == null ? this.targetRoot : this.targetRoot.resolve(relativePath)) //
 					.resolve(name);
-			final long sourceModified = Files.getLastModifiedTime(path).toMillis();
-			if (!this.doOverwriteAll && Files.isRegularFile(targetFile)) {
-			    if (Files.getLastModifiedTime(targetFile).toMillis() >= sourceModified) {
-				// same or newer output exists
-				this.console.outProgress('.');
-				ignore.put(name, path);
-				continue;
+			// first source root having the file wins, even if it is not copied
+			ignore.put(name, path);
+			state.executor.execute(() -> {
+			    if (state.failure.get() != null) {
+				return;
 			    }
-			}
-			this.console.outDebug("sync update target: ", targetFile);
-			if (!this.doDryRun) {
-			    Files.copy(path, targetFile, StandardCopyOption.REPLACE_EXISTING);
-			    if (this.doKeepDates) {
-				Files.setLastModifiedTime(targetFile, FileTime.fromMillis(sourceModified));
+			    try {
+				if (this.syncFile(path, targetFile, state.manifest)) {
+				    state.count.incrementAndGet();
+				}
+			    } catch (final Exception e) {
+				state.failure.compareAndSet(null, e);
 			    }
-			}
-			this.console.outProgress('w');
-			ignore.put(name, path);
-			++count;
+			});
+			state.checkFailure();
 			continue;
 		    }
 		}
@@ -326,13 +464,62 @@ public class FolderSyncCommand extends AbstractCommand {
 	    final Path targetRelative = this.targetRoot.resolve(relative);
 	    if (!Files.isDirectory(targetRelative)) {
 		this.console.outProgress('d');
-		++count;
+		state.count.incrementAndGet();
 		Files.createDirectories(targetRelative);
 	    }
-	    count += this.sync(relative);
+	    this.sync(relative, state);
 	}
+    }
 
-	return count;
+    /**
+     * @return true when target file is written
+     */
+    private boolean syncFile(final Path path, final Path targetFile, final FolderSyncManifest manifest)
+	    throws Exception {
+	final BasicFileAttributes sourceAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+	final long sourceModified = sourceAttributes.lastModifiedTime().toMillis();
+	String sourceHash = null;
+	if (!this.doOverwriteAll && Files.isRegularFile(targetFile)) {
+	    final BasicFileAttributes targetAttributes = Files.readAttributes(targetFile, BasicFileAttributes.class);
+	    if (targetAttributes.lastModifiedTime().toMillis() >= sourceModified) {
+		// same or newer output exists
+		this.console.outProgress('.');
+		this.bytesSkipped.addAndGet(sourceAttributes.size());
+		return false;
+	    }
+	    // a linked target shares its date with the store, it is re-linked instead
+	    if (manifest != null && this.contentStore == null && targetAttributes.size() == sourceAttributes.size()) {
+		sourceHash = manifest.getHash(path, sourceAttributes);
+		if (sourceHash.equals(manifest.getHash(targetFile, targetAttributes))) {
+		    // same content, only date is older
+		    this.console.outDebug("sync same content: ", targetFile);
+		    if (!this.doDryRun && this.doKeepDates) {
+			Files.setLastModifiedTime(targetFile, FileTime.fromMillis(sourceModified));
+			manifest.putHash(targetFile, sourceHash);
+		    }
+		    this.console.outProgress('=');
+		    this.bytesSkipped.addAndGet(sourceAttributes.size());
+		    return false;
+		}
+	    }
+	}
+	this.console.outDebug("sync update target: ", targetFile);
+	if (!this.doDryRun) {
+	    if (this.contentStore != null) {
+		this.contentStore.link(path, targetFile);
+	    } else {
+		Utils.copyFile(path, targetFile);
+		if (this.doKeepDates) {
+		    Files.setLastModifiedTime(targetFile, FileTime.fromMillis(sourceModified));
+		}
+	    }
+	    if (sourceHash != null) {
+		manifest.putHash(targetFile, sourceHash);
+	    }
+	}
+	this.console.outProgress('w');
+	this.bytesWritten.addAndGet(sourceAttributes.size());
+	return true;
     }
 
 }
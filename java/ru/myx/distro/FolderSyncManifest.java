@@ -0,0 +1,141 @@
+package ru.myx.distro;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ru.myx.distro.prepare.ConsoleOutput;
+
+/**
+ * Content hashes of files seen by {@link FolderSyncCommand} in
+ * '--compare-content' mode. Each line is 'hash size mtime path', a hash is
+ * reused while size and mtime of the file are the same.
+ *
+ * @author myx
+ *
+ */
+final class FolderSyncManifest {
+
+    private static final class Entry {
+	final long size;
+
+	final long modified;
+
+	final String hash;
+
+	Entry(final long size, final long modified, final String hash) {
+	    this.size = size;
+	    this.modified = modified;
+	    this.hash = hash;
+	}
+    }
+
+    static String contentHash(final Path file) throws Exception {
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	final byte[] buffer = new byte[65536];
+	try (final InputStream in = Files.newInputStream(file)) {
+	    for (int read; (read = in.read(buffer)) != -1;) {
+		digest.update(buffer, 0, read);
+	    }
+	}
+	return Utils.toHex(digest.digest());
+    }
+
+    private final Path manifestFile;
+
+    /**
+     * Entries read from the manifest file
+     */
+    private final Map<String, Entry> loaded = new HashMap<>();
+
+    /**
+     * Entries used by this run, saved together with loaded entries of files
+     * still there (files skipped by date are not hashed)
+     */
+    private final Map<String, Entry> current = new TreeMap<>();
+
+    int hashed = 0;
+
+    FolderSyncManifest(final Path manifestFile) throws Exception {
+	this.manifestFile = manifestFile;
+	if (!Files.isRegularFile(manifestFile)) {
+	    return;
+	}
+	try (final BufferedReader reader = Files.newBufferedReader(manifestFile)) {
+	    for (String line; (line = reader.readLine()) != null;) {
+		final String[] fields = line.split(" ", 4);
+		if (fields.length != 4) {
+		    continue;
+		}
+		try {
+		    this.loaded.put(//
+			    fields[3], //
+			    new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0])//
+		    );
+		} catch (final NumberFormatException e) {
+		    // skip broken line
+		}
+	    }
+	}
+    }
+
+    String getHash(final Path file, final BasicFileAttributes attributes) throws Exception {
+	final String key = file.toAbsolutePath().normalize().toString();
+	final long size = attributes.size();
+	final long modified = attributes.lastModifiedTime().toMillis();
+	synchronized (this) {
+	    Entry entry = this.current.get(key);
+	    if (entry == null) {
+		entry = this.loaded.get(key);
+	    }
+	    if (entry != null && entry.size == size && entry.modified == modified) {
+		this.current.put(key, entry);
+		return entry.hash;
+	    }
+	}
+	// outside of lock, copy workers hash in parallel
+	final String hash = FolderSyncManifest.contentHash(file);
+	synchronized (this) {
+	    this.current.put(key, new Entry(size, modified, hash));
+	    ++this.hashed;
+	}
+	return hash;
+    }
+
+    /**
+     * Records a known hash for a file just written or touched.
+     */
+    void putHash(final Path file, final String hash) throws Exception {
+	final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+	synchronized (this) {
+	    this.current.put(//
+		    file.toAbsolutePath().normalize().toString(), //
+		    new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash)//
+	    );
+	}
+    }
+
+    synchronized boolean save(final ConsoleOutput console) throws Exception {
+	final Map<String, Entry> entries = new TreeMap<>(this.current);
+	for (final Map.Entry<String, Entry> record : this.loaded.entrySet()) {
+	    if (!entries.containsKey(record.getKey()) && Files.isRegularFile(Paths.get(record.getKey()))) {
+		entries.put(record.getKey(), record.getValue());
+	    }
+	}
+	final List<String> lines = new ArrayList<>(entries.size());
+	for (final Map.Entry<String, Entry> record : entries.entrySet()) {
+	    final Entry entry = record.getValue();
+	    lines.add(entry.hash + ' ' + entry.size + ' ' + entry.modified + ' ' + record.getKey());
+	}
+	return Utils.save(console, this.manifestFile, lines);
+    }
+}
@@ -6,5 +6,6 @@ public enum FolderSyncOption {
     IGNORE_HIDDEN, //
     KEEP_DATES, //
     DRY_RUN, //
+    COMPARE_CONTENT, //
     ;
 }
@@ -6,6 +6,7 @@ import java.util.Arrays;
 
 import ru.myx.distro.prepare.ConsoleOutput;
 import ru.myx.distro.prepare.Distro;
+import ru.myx.distro.prepare.MakeCompileJava;
 import ru.myx.distro.prepare.Project;
 
 public class MakePackagesFromFolders extends AbstractDistroCommand {
@@ -46,15 +47,19 @@ public class MakePackagesFromFolders extends AbstractDistroCommand {
 	    final Path projectRoot = cachedRoot.resolve(project.repo.name).resolve(project.name);
 
 	    final Path checkJava = projectRoot.resolve("java");
-	    if (Files.isDirectory(checkJava)) {
+	    // compiled to 'java.jar' already, see '--compile-to-jar'
+	    if (Files.isDirectory(checkJava) && !MakeCompileJava.isCompiledToJar(checkJava)) {
 
 		final FolderPackCommand command = new FolderPackCommand(//
 			FolderPackOption.DELETE_MISSNG, //
 			FolderPackOption.APPEND_EXTENSION, //
-			FolderPackOption.KEEP_DATE //
+			FolderPackOption.KEEP_DATE, //
+			FolderPackOption.INCREMENTAL //
 		);
 
 		command.console = this.console;
+		command.setCompressThreads(this.packThreads);
+		command.doReproducible = this.packReproducible;
 		command.addSourceRoot(checkJava);
 		command.setTargetFile(checkJava);
 
@@ -69,10 +74,13 @@ public class MakePackagesFromFolders extends AbstractDistroCommand {
 		final FolderPackCommand command = new FolderPackCommand(//
 			FolderPackOption.DELETE_MISSNG, //
 			FolderPackOption.APPEND_EXTENSION, //
-			FolderPackOption.KEEP_DATE //
+			FolderPackOption.KEEP_DATE, //
+			FolderPackOption.INCREMENTAL //
 		);
 
 		command.console = this.console;
+		command.setCompressThreads(this.packThreads);
+		command.doReproducible = this.packReproducible;
 		command.addSourceRoot(checkData);
 		command.setTargetFile(checkData);
 
@@ -87,10 +95,13 @@ public class MakePackagesFromFolders extends AbstractDistroCommand {
 		final FolderPackCommand command = new FolderPackCommand(//
 			FolderPackOption.DELETE_MISSNG, //
 			FolderPackOption.APPEND_EXTENSION, //
-			FolderPackOption.KEEP_DATE //
+			FolderPackOption.KEEP_DATE, //
+			FolderPackOption.INCREMENTAL //
 		);
 
 		command.console = this.console;
+		command.setCompressThreads(this.packThreads);
+		command.doReproducible = this.packReproducible;
 		command.addSourceRoot(checkDocs);
 		command.setTargetFile(checkDocs);
 
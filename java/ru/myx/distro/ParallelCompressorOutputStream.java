@@ -0,0 +1,282 @@
+package ru.myx.distro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+/**
+ * Input is cut in blocks of fixed size, blocks are compressed concurrently
+ * and written in order. Block size does not depend on the number of threads,
+ * output is the same for any number of threads.
+ *
+ * bzip2 and xz blocks are complete streams, output is a concatenation of
+ * streams (like pbzip2 and 'xz -T' produce) and is read by bzip2 and xz tools,
+ * java readers need to accept concatenated streams. gzip blocks are parts of
+ * a single deflate stream like pigz produces.
+ *
+ * @author myx
+ *
+ */
+abstract class ParallelCompressorOutputStream extends OutputStream {
+
+    private static final class BZip2 extends ParallelCompressorOutputStream {
+	BZip2(final OutputStream out, final int threads) {
+	    super(out, threads, 900 * 1000);
+	}
+
+	@Override
+	byte[] compress(final byte[] block, final int length, final byte[] previous, final boolean first,
+		final boolean last) throws IOException {
+	    if (length == 0 && !first) {
+		return ParallelCompressorOutputStream.EMPTY;
+	    }
+	    final ByteArrayOutputStream result = new ByteArrayOutputStream(length / 4 + 64);
+	    try (final OutputStream out = new BZip2CompressorOutputStream(result)) {
+		out.write(block, 0, length);
+	    }
+	    return result.toByteArray();
+	}
+    }
+
+    private static final class GZip extends ParallelCompressorOutputStream {
+	private static final int DICTIONARY = 32 * 1024;
+
+	private final CRC32 crc = new CRC32();
+
+	private long inputSize = 0;
+
+	GZip(final OutputStream out, final int threads) throws IOException {
+	    super(out, threads, 128 * 1024);
+	    // same header GZIPOutputStream writes
+	    out.write(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 });
+	}
+
+	@Override
+	byte[] compress(final byte[] block, final int length, final byte[] previous, final boolean first,
+		final boolean last) throws IOException {
+	    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	    try {
+		if (previous != null) {
+		    deflater.setDictionary(previous, previous.length - GZip.DICTIONARY, GZip.DICTIONARY);
+		}
+		deflater.setInput(block, 0, length);
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+		final byte[] buffer = new byte[65536];
+		if (last) {
+		    deflater.finish();
+		    while (!deflater.finished()) {
+			result.write(buffer, 0, deflater.deflate(buffer));
+		    }
+		} else {
+		    // byte aligned end, next block continues the same stream
+		    for (int written = buffer.length; written == buffer.length;) {
+			written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+			result.write(buffer, 0, written);
+		    }
+		}
+		return result.toByteArray();
+	    } finally {
+		deflater.end();
+	    }
+	}
+
+	@Override
+	void consumed(final byte[] b, final int off, final int len) {
+	    this.crc.update(b, off, len);
+	    this.inputSize += len;
+	}
+
+	@Override
+	void finish(final OutputStream out) throws IOException {
+	    final long crc = this.crc.getValue();
+	    final long size = this.inputSize;
+	    out.write(new byte[] { //
+		    (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24), //
+		    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24), //
+	    });
+	}
+    }
+
+    private static final class XZ extends ParallelCompressorOutputStream {
+	private final int preset;
+
+	XZ(final OutputStream out, final int threads, final int preset) {
+	    super(out, threads, 8 * 1024 * 1024);
+	    this.preset = preset;
+	}
+
+	@Override
+	byte[] compress(final byte[] block, final int length, final byte[] previous, final boolean first,
+		final boolean last) throws IOException {
+	    if (length == 0 && !first) {
+		return ParallelCompressorOutputStream.EMPTY;
+	    }
+	    final ByteArrayOutputStream result = new ByteArrayOutputStream(length / 4 + 64);
+	    try (final OutputStream out = new XZCompressorOutputStream(result, this.preset)) {
+		out.write(block, 0, length);
+	    }
+	    return result.toByteArray();
+	}
+    }
+
+    static final byte[] EMPTY = new byte[0];
+
+    static OutputStream bzip2(final OutputStream out, final int threads) {
+	return new BZip2(out, threads);
+    }
+
+    static OutputStream gzip(final OutputStream out, final int threads) throws IOException {
+	return new GZip(out, threads);
+    }
+
+    static OutputStream xz(final OutputStream out, final int threads, final int preset) {
+	return new XZ(out, threads, preset);
+    }
+
+    private final OutputStream out;
+
+    private final int blockSize;
+
+    private final int threads;
+
+    /**
+     * null when compressing in the calling thread
+     */
+    private final ExecutorService executor;
+
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+
+    private int length = 0;
+
+    private byte[] previous = null;
+
+    private boolean closed = false;
+
+    ParallelCompressorOutputStream(final OutputStream out, final int threads, final int blockSize) {
+	this.out = out;
+	this.blockSize = blockSize;
+	this.threads = Math.max(1, threads);
+	this.executor = this.threads > 1 //
+		? Executors.newFixedThreadPool(this.threads, runnable -> {
+		    final Thread thread = new Thread(runnable, "compress");
+		    thread.setDaemon(true);
+		    return thread;
+		})
+		: null;
+	this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (this.closed) {
+	    return;
+	}
+	this.closed = true;
+	try {
+	    this.submit(true);
+	    while (!this.pending.isEmpty()) {
+		this.writeNext();
+	    }
+	    this.finish(this.out);
+	} finally {
+	    if (this.executor != null) {
+		this.executor.shutdownNow();
+	    }
+	    this.out.close();
+	}
+    }
+
+    /**
+     * @param block
+     *            array is not reused for other blocks
+     * @param previous
+     *            previous full block, null for the first one
+     */
+    abstract byte[] compress(final byte[] block, final int length, final byte[] previous, final boolean first,
+	    final boolean last) throws IOException;
+
+    /**
+     * Input as written, in order, in the writing thread.
+     */
+    void consumed(final byte[] b, final int off, final int len) {
+	//
+    }
+
+    /**
+     * After all blocks are written.
+     */
+    void finish(final OutputStream out) throws IOException {
+	//
+    }
+
+    private void submit(final boolean last) throws IOException {
+	final byte[] block = this.block;
+	final int length = this.length;
+	final byte[] previous = this.previous;
+	final boolean first = previous == null;
+
+	if (this.executor == null) {
+	    this.out.write(this.compress(block, length, previous, first, last));
+	} else {
+	    while (this.pending.size() > this.threads) {
+		this.writeNext();
+	    }
+	    this.pending.add(this.executor.submit(() -> this.compress(block, length, previous, first, last)));
+	}
+
+	this.previous = block;
+	this.block = last
+		? null
+		: new byte[this.blockSize];
+	this.length = 0;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+	if (this.closed) {
+	    throw new IOException("stream is closed");
+	}
+	this.consumed(b, off, len);
+	for (int done = 0; done < len;) {
+	    final int count = Math.min(len - done, this.blockSize - this.length);
+	    System.arraycopy(b, off + done, this.block, this.length, count);
+	    this.length += count;
+	    done += count;
+	    if (this.length == this.blockSize) {
+		this.submit(false);
+	    }
+	}
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+	this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    private void writeNext() throws IOException {
+	try {
+	    this.out.write(this.pending.removeFirst().get());
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted", e);
+	} catch (final ExecutionException e) {
+	    final Throwable cause = e.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    }
+	    throw new IOException(cause);
+	}
+    }
+}
@@ -0,0 +1,134 @@
+package ru.myx.distro;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Follows tar records written through and clears host dependent fields of
+ * extended headers ('x', 'g') and long name entries ('L', 'K') that
+ * TarArchiveOutputStream creates on its own with current time and
+ * 'user.name'.
+ *
+ * @author myx
+ *
+ */
+final class TarHeaderNormalizer extends FilterOutputStream {
+
+    private static final int RECORD = 512;
+
+    private static long readSize(final byte[] header) {
+	if ((header[124] & 0x80) != 0) {
+	    // base-256, not used for extended headers
+	    long size = 0;
+	    for (int i = 125; i < 136; ++i) {
+		size = size << 8 | header[i] & 0xFF;
+	    }
+	    return size;
+	}
+	long size = 0;
+	for (int i = 124; i < 136; ++i) {
+	    final int digit = header[i];
+	    if (digit >= '0' && digit <= '7') {
+		size = size << 3 | digit - '0';
+	    } else if (size != 0) {
+		break;
+	    }
+	}
+	return size;
+    }
+
+    private static void writeOctal(final byte[] header, final int offset, final int length, final long value) {
+	final String octal = Long.toOctalString(value);
+	Arrays.fill(header, offset, offset + length - 1, (byte) '0');
+	for (int i = 0; i < octal.length(); ++i) {
+	    header[offset + length - 1 - octal.length() + i] = (byte) octal.charAt(i);
+	}
+	header[offset + length - 1] = 0;
+    }
+
+    private final byte[] record = new byte[TarHeaderNormalizer.RECORD];
+
+    private int filled = 0;
+
+    /**
+     * Data records to pass before the next header
+     */
+    private long dataLeft = 0;
+
+    TarHeaderNormalizer(final OutputStream out) {
+	super(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (this.filled > 0) {
+	    this.out.write(this.record, 0, this.filled);
+	    this.filled = 0;
+	}
+	super.close();
+    }
+
+    private void normalize(final byte[] header) {
+	final byte type = header[156];
+	if (type != 'x' && type != 'g' && type != 'L' && type != 'K') {
+	    return;
+	}
+	// uid, gid
+	TarHeaderNormalizer.writeOctal(header, 108, 8, 0);
+	TarHeaderNormalizer.writeOctal(header, 116, 8, 0);
+	// mtime
+	TarHeaderNormalizer.writeOctal(header, 136, 12, 0);
+	// uname, gname
+	Arrays.fill(header, 265, 329, (byte) 0);
+	// checksum is computed with spaces in its place
+	Arrays.fill(header, 148, 156, (byte) ' ');
+	long checksum = 0;
+	for (final byte b : header) {
+	    checksum += b & 0xFF;
+	}
+	TarHeaderNormalizer.writeOctal(header, 148, 7, checksum);
+	header[155] = ' ';
+    }
+
+    private void process() throws IOException {
+	final byte[] record = this.record;
+	if (this.dataLeft > 0) {
+	    --this.dataLeft;
+	} else {
+	    boolean empty = true;
+	    for (final byte b : record) {
+		if (b != 0) {
+		    empty = false;
+		    break;
+		}
+	    }
+	    if (!empty) {
+		this.normalize(record);
+		this.dataLeft = (TarHeaderNormalizer.readSize(record) + TarHeaderNormalizer.RECORD - 1)
+			/ TarHeaderNormalizer.RECORD;
+	    }
+	}
+	this.out.write(record);
+	this.filled = 0;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+	for (int done = 0; done < len;) {
+	    final int count = Math.min(len - done, TarHeaderNormalizer.RECORD - this.filled);
+	    System.arraycopy(b, off + done, this.record, this.filled, count);
+	    this.filled += count;
+	    done += count;
+	    if (this.filled == TarHeaderNormalizer.RECORD) {
+		this.process();
+	    }
+	}
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+	this.write(new byte[] { (byte) b }, 0, 1);
+    }
+}
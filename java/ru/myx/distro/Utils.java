@@ -2,7 +2,12 @@ package ru.myx.distro;
 
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
@@ -10,16 +15,38 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 import ru.myx.distro.prepare.ConsoleOutput;
 
 public class Utils {
 
+    /**
+     * Smaller files are not worth starting 'cp' for.
+     */
+    private static final long COPY_REFLINK_MIN_SIZE = 1024L * 1024L;
+
+    /**
+     * 'source-store target-store' pairs where reflink failed once.
+     */
+    private static final Set<String> COPY_REFLINK_FAILED = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicLong COPY_BYTES_REFLINK = new AtomicLong();
+    private static final AtomicLong COPY_BYTES_TRANSFER = new AtomicLong();
+    private static final AtomicLong COPY_BYTES_STREAM = new AtomicLong();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     public static int clearFolderContents(final ConsoleOutput console, final Path root) throws Exception {
 
 	console.outDebug("Utils.clearFolderContents: ", root);
@@ -56,6 +83,104 @@ public class Utils {
 	return count;
     }
 
+    /**
+     * Same as {@link Files#copy(Path, Path, java.nio.file.CopyOption...)} with
+     * REPLACE_EXISTING. Tries a reflink for large files, then
+     * {@link FileChannel#transferTo}, then plain buffered copy for whatever is
+     * left.
+     *
+     * @return bytes copied
+     */
+    public static long copyFile(final Path source, final Path target) throws Exception {
+	final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+	if (!attributes.isRegularFile()) {
+	    throw new IllegalArgumentException("source is not a file: " + source);
+	}
+	final long size = attributes.size();
+
+	Files.deleteIfExists(target);
+
+	if (size >= Utils.COPY_REFLINK_MIN_SIZE && Utils.copyFileReflink(source, target)) {
+	    Utils.COPY_BYTES_REFLINK.addAndGet(size);
+	    return size;
+	}
+
+	final FileAttribute<?>[] targetAttributes;
+	{
+	    final PosixFileAttributeView view = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+	    targetAttributes = view == null
+		    ? new FileAttribute<?>[0]
+		    : new FileAttribute<?>[] { //
+			    PosixFilePermissions.asFileAttribute(view.readAttributes().permissions())//
+		    };
+	}
+
+	try (final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		final FileChannel out = FileChannel.open(target, EnumSet.of(StandardOpenOption.CREATE_NEW,
+			StandardOpenOption.WRITE), targetAttributes)) {
+	    long position = 0;
+	    try {
+		for (long moved; position < size && (moved = in.transferTo(position, size - position, out)) > 0;) {
+		    position += moved;
+		}
+	    } catch (final IOException e) {
+		if (position > 0) {
+		    throw e;
+		}
+		// not supported for these files
+	    }
+	    Utils.COPY_BYTES_TRANSFER.addAndGet(position);
+
+	    // the rest, when transferTo failed or the source has grown
+	    in.position(position);
+	    out.position(position);
+	    final InputStream input = Channels.newInputStream(in);
+	    final OutputStream output = Channels.newOutputStream(out);
+	    final byte[] buffer = new byte[65536];
+	    long copied = 0;
+	    for (int read; (read = input.read(buffer)) != -1;) {
+		output.write(buffer, 0, read);
+		copied += read;
+	    }
+	    Utils.COPY_BYTES_STREAM.addAndGet(copied);
+	    return position + copied;
+	}
+    }
+
+    private static boolean copyFileReflink(final Path source, final Path target) throws Exception {
+	final String stores = Files.getFileStore(source) //
+		+ " " + Files.getFileStore(target.toAbsolutePath().getParent());
+	if (Utils.COPY_REFLINK_FAILED.contains(stores)) {
+	    return false;
+	}
+	final Process process;
+	try {
+	    process = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(), target.toString())//
+		    .redirectErrorStream(true)//
+		    .redirectOutput(ProcessBuilder.Redirect.DISCARD)//
+		    .start();
+	} catch (final IOException e) {
+	    // no 'cp' utility
+	    Utils.COPY_REFLINK_FAILED.add(stores);
+	    return false;
+	}
+	if (process.waitFor() == 0) {
+	    return true;
+	}
+	Utils.COPY_REFLINK_FAILED.add(stores);
+	Files.deleteIfExists(target);
+	return false;
+    }
+
+    /**
+     * @return bytes moved by each {@link #copyFile(Path, Path)} strategy
+     */
+    public static String getCopyStatistics() {
+	return "reflink: " + Utils.COPY_BYTES_REFLINK.get() //
+		+ ", transfer: " + Utils.COPY_BYTES_TRANSFER.get() //
+		+ ", stream: " + Utils.COPY_BYTES_STREAM.get();
+    }
+
     public static boolean save(final ConsoleOutput console, final Path path, final byte[] contents) throws Exception {
 
 	console.outDebug("Utils.save: bytes ", path);
@@ -212,6 +337,18 @@ public class Utils {
 	return command.updates;
     }
 
+    /**
+     * @return lower case hex digits of the bytes, like digests are printed
+     */
+    public static String toHex(final byte[] bytes) {
+	final char[] chars = new char[bytes.length * 2];
+	for (int i = 0; i < bytes.length; ++i) {
+	    chars[i * 2] = Utils.HEX[(bytes[i] >> 4) & 0x0F];
+	    chars[i * 2 + 1] = Utils.HEX[bytes[i] & 0x0F];
+	}
+	return new String(chars);
+    }
+
     /**
      * <code>
     	try (final Stream<Path> paths = Files.find(root, Integer.MAX_VALUE, new BiPredicate<Path, BasicFileAttributes>(){
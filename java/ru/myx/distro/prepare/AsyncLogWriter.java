@@ -0,0 +1,257 @@
+package ru.myx.distro.prepare;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Appends lines to a log file from a background thread. The file stays open,
+ * lines queued meanwhile are written in one go and flushed when the queue is
+ * empty. When the file grows over the limit it is renamed to '.1' (older ones
+ * to '.2' and so on) and a new file is started. Queued lines are written on
+ * {@link #flush()}, {@link #close()} and on JVM exit.
+ *
+ * @author myx
+ *
+ */
+final class AsyncLogWriter implements AutoCloseable {
+
+    private static final class Marker {
+	final CountDownLatch done = new CountDownLatch(1);
+
+	final boolean close;
+
+	Marker(final boolean close) {
+	    this.close = close;
+	}
+    }
+
+    /**
+     * Lines waiting for the writer thread, blocks writers when full
+     */
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(64 * 1024);
+
+    private final Path file;
+
+    private final long rotateSize;
+
+    private final int rotateCount;
+
+    private final Thread thread;
+
+    private final Thread shutdownHook;
+
+    private Writer writer = null;
+
+    private long written = 0;
+
+    private volatile IOException failure = null;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param rotateSize
+     *            bytes, 0 to never rotate
+     * @param rotateCount
+     *            rotated files kept
+     */
+    AsyncLogWriter(final Path file, final long rotateSize, final int rotateCount) {
+	this.file = file;
+	this.rotateSize = rotateSize;
+	this.rotateCount = rotateCount;
+	this.thread = new Thread(this::run, "log: " + file.getFileName());
+	this.thread.setDaemon(true);
+	this.thread.start();
+	this.shutdownHook = new Thread(this::close, "log-close: " + file.getFileName());
+	Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    private void checkFailure() {
+	final IOException failure = this.failure;
+	if (failure != null) {
+	    throw new RuntimeException(failure);
+	}
+    }
+
+    /**
+     * Writes queued lines and stops the writer thread, lines written after this
+     * are ignored.
+     */
+    @Override
+    public void close() {
+	if (this.closed) {
+	    return;
+	}
+	this.closed = true;
+	this.waitFor(new Marker(true));
+	if (Thread.currentThread() != this.shutdownHook) {
+	    try {
+		Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+	    } catch (final IllegalStateException e) {
+		// exiting already
+	    }
+	}
+	this.checkFailure();
+    }
+
+    /**
+     * Returns when lines queued before are written to the file.
+     */
+    void flush() {
+	if (this.closed) {
+	    return;
+	}
+	this.waitFor(new Marker(false));
+	this.checkFailure();
+    }
+
+    private void open() throws IOException {
+	final Path parent = this.file.toAbsolutePath().getParent();
+	if (parent != null) {
+	    Files.createDirectories(parent);
+	}
+	this.written = Files.isRegularFile(this.file)
+		? Files.size(this.file)
+		: 0;
+	if (this.rotateSize > 0 && this.written >= this.rotateSize) {
+	    this.rotate();
+	}
+	this.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(this.file, //
+		StandardOpenOption.CREATE, //
+		StandardOpenOption.APPEND//
+	), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void rotate() throws IOException {
+	if (this.writer != null) {
+	    this.writer.close();
+	    this.writer = null;
+	}
+	final String name = this.file.getFileName().toString();
+	Files.deleteIfExists(this.file.resolveSibling(name + '.' + this.rotateCount));
+	for (int i = this.rotateCount - 1; i > 0; --i) {
+	    final Path older = this.file.resolveSibling(name + '.' + i);
+	    if (Files.exists(older)) {
+		Files.move(older, this.file.resolveSibling(name + '.' + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	}
+	if (this.rotateCount > 0) {
+	    Files.move(this.file, this.file.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+	} else {
+	    Files.deleteIfExists(this.file);
+	}
+	this.written = 0;
+    }
+
+    private void run() {
+	final List<Object> batch = new ArrayList<>();
+	for (;;) {
+	    try {
+		batch.add(this.queue.take());
+	    } catch (final InterruptedException e) {
+		return;
+	    }
+	    this.queue.drainTo(batch);
+	    boolean close = false;
+	    for (final Object item : batch) {
+		if (item instanceof Marker) {
+		    final Marker marker = (Marker) item;
+		    this.writeFlush();
+		    close |= marker.close;
+		    marker.done.countDown();
+		    continue;
+		}
+		if (close) {
+		    continue;
+		}
+		this.writeLine((String) item);
+	    }
+	    batch.clear();
+	    if (close) {
+		this.writeClose();
+		return;
+	    }
+	    if (this.queue.isEmpty()) {
+		this.writeFlush();
+	    }
+	}
+    }
+
+    private void waitFor(final Marker marker) {
+	if (!this.thread.isAlive()) {
+	    return;
+	}
+	try {
+	    this.queue.put(marker);
+	    marker.done.await();
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Queues a line, line break is added.
+     */
+    void write(final String line) {
+	if (this.closed) {
+	    return;
+	}
+	this.checkFailure();
+	try {
+	    this.queue.put(line);
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private void writeClose() {
+	try {
+	    if (this.writer != null) {
+		this.writer.close();
+		this.writer = null;
+	    }
+	} catch (final IOException e) {
+	    this.failure = e;
+	}
+    }
+
+    private void writeFlush() {
+	try {
+	    if (this.writer != null) {
+		this.writer.flush();
+	    }
+	} catch (final IOException e) {
+	    this.failure = e;
+	}
+    }
+
+    private void writeLine(final String line) {
+	if (this.failure != null) {
+	    return;
+	}
+	try {
+	    if (this.writer == null) {
+		this.open();
+	    }
+	    this.writer.write(line);
+	    this.writer.write('\n');
+	    this.written += line.length() + 1;
+	    if (this.rotateSize > 0 && this.written >= this.rotateSize) {
+		this.rotate();
+	    }
+	} catch (final IOException e) {
+	    this.failure = e;
+	}
+    }
+}
@@ -41,7 +41,7 @@ public class ConsoleOutput {
 	return this.verbose;
     }
 
-    public String[] clearCollectedErrors() {
+    public synchronized String[] clearCollectedErrors() {
 	try {
 	    return this.errors.toArray(new String[this.errors.size()]);
 	} finally {
@@ -49,7 +49,7 @@ public class ConsoleOutput {
 	}
     }
 
-    public void out(final String s) {
+    public synchronized void out(final String s) {
 	switch (this.lastState) {
 	case NRML_PROGRESS:
 	    this.outProgressDefaultStop();
@@ -64,7 +64,7 @@ public class ConsoleOutput {
 	this.lastState = STATE.NEW_LINE;
     }
 
-    public void outDebug(final Object... s) {
+    public synchronized void outDebug(final Object... s) {
 	if (!this.debug && this.verbose) {
 	    if (!this.silent && this.lastState == STATE.NRML_PROGRESS) {
 		this.outProgressDefault();
@@ -118,7 +118,7 @@ public class ConsoleOutput {
 	}
     }
 
-    public void outInfo(final String s) {
+    public synchronized void outInfo(final String s) {
 	if (!this.silent) {
 	    switch (this.lastState) {
 	    case NRML_PROGRESS:
@@ -168,7 +168,7 @@ public class ConsoleOutput {
 	this.lastProgressDate = 0;
     }
 
-    public void outProgress(final char c) {
+    public synchronized void outProgress(final char c) {
 	if (this.silent) {
 	    return;
 	}
@@ -195,7 +195,7 @@ public class ConsoleOutput {
 	}
     }
 
-    public void outProgress(final String s) {
+    public synchronized void outProgress(final String s) {
 	if (this.silent) {
 	    return;
 	}
@@ -222,7 +222,7 @@ public class ConsoleOutput {
 	}
     }
 
-    public void outProgressLine(final String s) {
+    public synchronized void outProgressLine(final String s) {
 	if (this.silent) {
 	    return;
 	}
@@ -248,13 +248,13 @@ public class ConsoleOutput {
 	}
     }
 
-    public void outError(final String s) {
+    public synchronized void outError(final String s) {
 	if (this.errors.add("⛔ " + s)) {
 	    this.outWarn("⛔ " + s);
 	}
     }
 
-    public void outWarn(final String s) {
+    public synchronized void outWarn(final String s) {
 	switch (this.lastState) {
 	case NRML_PROGRESS:
 	    this.outProgressDefaultStop();
@@ -1,6 +1,7 @@
 package ru.myx.distro.prepare;
 
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -9,10 +10,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import ru.myx.distro.ClasspathBuilder;
 import ru.myx.distro.OperationContext;
@@ -29,15 +33,39 @@ public final class Distro {
 
     private final Map<String, Set<Project>> byProvides = new LinkedHashMap<>();
 
+    /**
+     * Reverse of 'Requires', item name to projects requiring it
+     */
+    private final Map<String, Set<Project>> byRequires = new LinkedHashMap<>();
+
     private final Map<String, Repository> byRepositoryName = new HashMap<>();
 
     private final List<Project> sequenceProjects = new ArrayList<>();
 
+    /**
+     * Names and keys of project list items, see {@link OptionList#add}
+     */
+    final TokenDictionary tokens = new TokenDictionary();
+
+    /**
+     * Resolved transitive sequences, see {@link #getBuildSequence}. Cleared when
+     * projects or provides are added.
+     */
+    private final Map<Project, List<Project>> buildSequences = new HashMap<>();
+
+    /**
+     * Sequences of projects that reach a cycle, these are not reused by
+     * dependents.
+     */
+    private final Map<Project, List<Project>> buildSequencesCyclic = new HashMap<>();
+
     public Distro() {
 	//
     }
 
     boolean addKnown(final Project project) {
+	this.buildSequences.clear();
+	this.buildSequencesCyclic.clear();
 	// this.byProjectName.put(project.getName(), project);
 	this.byProjectName.put(project.getFullName(), project);
 	return true;
@@ -76,6 +104,8 @@ public final class Distro {
     }
 
     public void addProvides(final Project project, final OptionListItem provides) {
+	this.buildSequences.clear();
+	this.buildSequencesCyclic.clear();
 	Set<Project> set = this.byProvides.get(provides.getName());
 	if (set == null) {
 	    set = new HashSet<>();
@@ -84,6 +114,15 @@ public final class Distro {
 	set.add(project);
     }
 
+    public void addRequires(final Project project, final OptionListItem requires) {
+	Set<Project> set = this.byRequires.get(requires.getName());
+	if (set == null) {
+	    set = new HashSet<>();
+	    this.byRequires.put(requires.getName(), set);
+	}
+	set.add(project);
+    }
+
     public boolean buildCalculateSequence(final OperationContext context, List<Project> buildQueue) {
 	final Map<String, Project> checked = new HashMap<>();
 	this.sequenceProjects.clear();
@@ -93,66 +132,184 @@ public final class Distro {
 	return true;
     }
 
+    /**
+     * Sequence calculated before, see {@link DistroIndexTable}.
+     */
+    void buildRestoreSequence(final List<Project> sequence) {
+	this.sequenceProjects.clear();
+	this.sequenceProjects.addAll(sequence);
+    }
+
+    /**
+     * Same result as {@link Project#buildCalculateSequence} on empty 'seen' map,
+     * but built from already resolved sequences of providers.
+     */
+    List<Project> getBuildSequence(final OperationContext context, final Project project) {
+	List<Project> sequence = this.buildSequences.get(project);
+	if (sequence != null) {
+	    return sequence;
+	}
+	sequence = this.buildSequencesCyclic.get(project);
+	if (sequence != null) {
+	    return sequence;
+	}
+	sequence = this.buildResolveSequence(context, project, new HashSet<>());
+	if (sequence == null) {
+	    // cyclic requirements, order depends on the starting project
+	    sequence = Collections.unmodifiableList(//
+		    project.buildCalculateSequence(context, new ArrayList<>(), new HashMap<>())//
+	    );
+	    this.buildSequencesCyclic.put(project, sequence);
+	}
+	return sequence;
+    }
+
+    /**
+     * @return null when a cycle is reachable from the project, nothing is
+     *         cached for such project then.
+     */
+    private List<Project> buildResolveSequence(final OperationContext context, final Project project,
+	    final Set<Project> resolving) {
+	{
+	    final List<Project> cached = this.buildSequences.get(project);
+	    if (cached != null) {
+		return cached;
+	    }
+	    if (this.buildSequencesCyclic.containsKey(project)) {
+		return null;
+	    }
+	}
+
+	resolving.add(project);
+
+	final Set<Project> sequence = new LinkedHashSet<>();
+	boolean cyclic = false;
+	for (final OptionListItem requires : project.getRequires()) {
+	    final Set<Project> providers = this.getProvides(requires);
+	    if (providers == null) {
+		if (context.noFail) {
+		    context.console
+			    .outError("ERROR: required item is unknown, name: " + requires + " for " + project.name);
+		    continue;
+		}
+		throw new IllegalArgumentException(
+			"required item is unknown, name: " + requires + " for " + project.name);
+	    }
+
+	    for (final Project provider : providers) {
+		if (resolving.contains(provider)) {
+		    cyclic = true;
+		    continue;
+		}
+		if (sequence.contains(provider)) {
+		    // whole sequence of provider is there already
+		    continue;
+		}
+		final List<Project> providerSequence = this.buildResolveSequence(context, provider, resolving);
+		if (providerSequence == null) {
+		    cyclic = true;
+		    continue;
+		}
+		sequence.addAll(providerSequence);
+	    }
+	}
+
+	resolving.remove(project);
+
+	if (cyclic) {
+	    return null;
+	}
+
+	sequence.add(project);
+	final List<Project> result = Collections.unmodifiableList(new ArrayList<>(sequence));
+	this.buildSequences.put(project, result);
+	return result;
+    }
+
     public void buildPrepareCompileIndex(final OperationContext context, final Path outputTarget) throws Exception {
-	this.buildPrepareDistroIndex(context, outputTarget, false, true);
+	final DistroIndexFingerprints fingerprints = new DistroIndexFingerprints(outputTarget);
+	this.buildPrepareDistroIndex(context, outputTarget, false, true, fingerprints);
 
 	final List<String> compileJava = new ArrayList<>();
 	final ClasspathBuilder classpath = new ClasspathBuilder();
 
 	for (final Repository repo : this.byRepositoryName.values()) {
-	    repo.buildPrepareDistroIndex(context, this, outputTarget.resolve(repo.name), true);
+	    repo.buildPrepareDistroIndex(context, this, outputTarget.resolve(repo.name), true, fingerprints);
 	}
 	for (final Project project : this.sequenceProjects) {
 	    project.buildPrepareCompileIndex(context, outputTarget.resolve(project.repo.name).resolve(project.name),
-		    compileJava);
+		    compileJava, fingerprints);
 	    project.buildPrepareCompileIndexMakeClasspath(classpath);
 	}
-
-	Utils.save(//
-		context.console, //
-		outputTarget.resolve("distro-classpath.txt"), //
-		classpath//
-	);
+	final Path classpathFile = outputTarget.resolve("distro-classpath.txt");
+	if (fingerprints.checkLines("distro-classpath", classpathFile, classpath)) {
+	    Utils.save(//
+		    context.console, //
+		    classpathFile, //
+		    classpath//
+	    );
+	    fingerprints.generatedLines("distro-classpath", classpathFile, classpath);
+	}
+	fingerprints.save(context);
 
 	Utils.save(//
 		context.console, //
 		outputTarget.resolve("distro-sequence-joined.txt"), //
 		this.sequenceProjects.stream().map(Project::projectFullName)//
 	);
+	this.buildPrepareIndexTable(context, outputTarget);
     }
 
     public void buildPrepareDistroIndex(//
 	    final OperationContext context, final Path outputTarget, final boolean deep, final boolean full//
+    ) throws Exception {
+	final DistroIndexFingerprints fingerprints = new DistroIndexFingerprints(outputTarget);
+	this.buildPrepareDistroIndex(context, outputTarget, deep, full, fingerprints);
+	fingerprints.save(context);
+	this.buildPrepareIndexTable(context, outputTarget);
+    }
+
+    /**
+     * Repositories and projects (and the distro itself) with the same
+     * fingerprint as the index files were generated for are skipped.
+     */
+    private void buildPrepareDistroIndex(//
+	    final OperationContext context, final Path outputTarget, final boolean deep, final boolean full,
+	    final DistroIndexFingerprints fingerprints//
     ) throws Exception {
 	if (!Files.isDirectory(outputTarget)) {
 	    throw new IllegalStateException("outputTarget is not a folder, " + outputTarget);
 	}
 
-	{
-	    final List<String> repositoryNames = new ArrayList<>();
-	    {
-		for (final Repository repo : this.byRepositoryName.values()) {
-		    repositoryNames.add(repo.getName());
-		}
-	    }
-
-	    Files.write(outputTarget.resolve("distro-namespaces.txt"), repositoryNames, StandardCharsets.UTF_8);
-	}
-
 	if (deep) {
 	    for (final Repository repo : this.byRepositoryName.values()) {
-		repo.buildPrepareDistroIndex(context, this, outputTarget.resolve(repo.name), full);
+		repo.buildPrepareDistroIndex(context, this, outputTarget.resolve(repo.name), full, fingerprints);
 	    }
 	    for (final Project project : this.sequenceProjects) {
 		project.buildPrepareDistroIndex(//
 			context, //
 			outputTarget.resolve(project.repo.name).resolve(project.name), //
-			true, //
-			full//
+			full, //
+			fingerprints//
 		);
 	    }
 	}
 
+	if (!fingerprints.checkDistro(context, this)) {
+	    return;
+	}
+
+	{
+	    final List<String> repositoryNames = new ArrayList<>();
+	    {
+		for (final Repository repo : this.byRepositoryName.values()) {
+		    repositoryNames.add(repo.getName());
+		}
+	    }
+
+	    Files.write(outputTarget.resolve("distro-namespaces.txt"), repositoryNames, StandardCharsets.UTF_8);
+	}
+
 	{
 	    final Properties info = new Properties();
 	    {
@@ -198,6 +355,17 @@ public final class Distro {
 		    this.sequenceProjects.stream().map(Project::projectFullName)//
 	    );
 	}
+	fingerprints.generatedDistro(context, this);
+    }
+
+    /**
+     * {@link DistroIndexTable} is kept up to date once it is there, whoever
+     * writes other index files.
+     */
+    private void buildPrepareIndexTable(final OperationContext context, final Path outputTarget) throws Exception {
+	if (Files.isRegularFile(outputTarget.resolve(DistroIndexTable.FILE_NAME))) {
+	    DistroIndexTable.save(context, this, outputTarget);
+	}
     }
 
     public boolean buildPrepareIndexFromSource(final Path outputRoot, final Path sourceRoot) throws Exception {
@@ -242,10 +410,70 @@ public final class Distro {
 	return true;
     }
 
-    void compileAllJavaSource(final MakeCompileJava javaCompiler) throws Exception {
+    boolean compileAllJavaSource(final MakeCompileJava javaCompiler) throws Exception {
+	return new JavaCompileScheduler(this, javaCompiler).compile(this.byProjectName.values());
+    }
 
-	for (final Repository repository : this.byRepositoryName.values()) {
-	    repository.compileAllJavaSource(javaCompiler);
+    /**
+     * Serial discovery: walks every repository of the source root on the calling
+     * thread.
+     */
+    public void loadFromLocalSource(final ConsoleOutput console, final Path sourceRoot) throws Exception {
+	try (final DirectoryStream<Path> repositories = Files.newDirectoryStream(sourceRoot)) {
+	    for (final Path repositorySourceRoot : repositories) {
+		if (Repository.checkIfRepository(repositorySourceRoot)) {
+		    console.outProgress("R(");
+
+		    final Repository repository = Repository.staticLoadFromLocalSource(this, repositorySourceRoot);
+		    if (repository != null) {
+			repository.loadFromLocalSource(console, this, repositorySourceRoot);
+		    }
+
+		    console.outProgress(")");
+		    continue;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Parallel discovery: all repositories are scanned concurrently, projects are
+     * registered afterwards on the calling thread in the same order the serial
+     * discovery would use, so the resulting model (and all indices written from
+     * it) are identical.
+     */
+    public void loadFromLocalSource(final ConsoleOutput console, final Path sourceRoot, final int parallelism)
+	    throws Exception {
+	final List<Path> repositoryRoots = new ArrayList<>();
+	try (final DirectoryStream<Path> repositories = Files.newDirectoryStream(sourceRoot)) {
+	    for (final Path repositorySourceRoot : repositories) {
+		if (Repository.checkIfRepository(repositorySourceRoot)) {
+		    repositoryRoots.add(repositorySourceRoot);
+		}
+	    }
+	}
+
+	final ForkJoinPool pool = new ForkJoinPool(parallelism);
+	try {
+	    final List<ForkJoinTask<List<RepositorySourceScan.ProjectSource>>> scans = new ArrayList<>();
+	    for (final Path repositorySourceRoot : repositoryRoots) {
+		scans.add(pool.submit(new RepositorySourceScan(repositorySourceRoot, repositorySourceRoot, false)));
+	    }
+
+	    for (int i = 0; i < repositoryRoots.size(); ++i) {
+		final Path repositorySourceRoot = repositoryRoots.get(i);
+		console.outProgress("R(");
+
+		final List<RepositorySourceScan.ProjectSource> projects = scans.get(i).join();
+		final Repository repository = Repository.staticLoadFromLocalSource(this, repositorySourceRoot);
+		if (repository != null) {
+		    repository.loadFromLocalSource(console, projects);
+		}
+
+		console.outProgress(")");
+	    }
+	} finally {
+	    pool.shutdownNow();
 	}
     }
 
@@ -333,6 +561,14 @@ public final class Distro {
 	return this.byKeywords.get(requireString);
     }
 
+    /**
+     * @return projects having a 'Requires' item with the same name, keys are not
+     *         checked.
+     */
+    public Set<Project> getRequiredBy(final OptionListItem name) {
+	return this.byRequires.get(name.getName());
+    }
+
     public Set<Project> getProvides(final OptionListItem name) {
 	final String requireString = name.getName();
 	final Project projectExact = this.getProject(requireString);
@@ -354,7 +590,38 @@ public final class Distro {
 	return this.sequenceProjects;
     }
 
+    /**
+     * Drops the project and all items it has registered, see
+     * {@link DistroIndexUpdater}.
+     */
+    void removeKnown(final Project project) {
+	this.buildSequences.clear();
+	this.buildSequencesCyclic.clear();
+	this.byProjectName.remove(project.getFullName(), project);
+	this.sequenceProjects.remove(project);
+	Distro.removeItems(this.byDeclares, project.getDeclares(), project);
+	Distro.removeItems(this.byKeywords, project.getKeywords(), project);
+	Distro.removeItems(this.byAugments, project.getAugments(), project);
+	Distro.removeItems(this.byProvides, project.getProvides(), project);
+	Distro.removeItems(this.byRequires, project.getRequires(), project);
+    }
+
+    static void removeItems(final Map<String, Set<Project>> index, final OptionList items, final Project project) {
+	for (final OptionListItem item : items) {
+	    final Set<Project> set = index.get(item.getName());
+	    if (set != null && set.remove(project) && set.isEmpty()) {
+		index.remove(item.getName());
+	    }
+	}
+    }
+
+    void removeKnown(final Repository repo) {
+	this.byRepositoryName.remove(repo.getName(), repo);
+    }
+
     public void reset() {
+	this.buildSequences.clear();
+	this.buildSequencesCyclic.clear();
 	this.byRepositoryName.clear();
 	this.byProjectName.clear();
 	this.sequenceProjects.clear();
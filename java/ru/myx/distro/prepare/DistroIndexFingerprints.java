@@ -0,0 +1,297 @@
+package ru.myx.distro.prepare;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ru.myx.distro.OperationContext;
+import ru.myx.distro.Utils;
+
+/**
+ * Fingerprints of what index files of a distro, repository or project were
+ * generated from, kept in 'distro-index.fingerprints' of the output folder.
+ * Each line is 'hash mtime key', 'mtime' is the latest of the generated files.
+ * While the fingerprint is the same and files are there with the same mtime,
+ * generation is skipped, files are not read. Plain lists, like classpath
+ * files, are fingerprinted by their lines.
+ *
+ * @author myx
+ *
+ */
+final class DistroIndexFingerprints {
+
+    private static final class Entry {
+	final String hash;
+
+	final long modified;
+
+	Entry(final String hash, final long modified) {
+	    this.hash = hash;
+	    this.modified = modified;
+	}
+    }
+
+    static final String FILE_NAME = "distro-index.fingerprints";
+
+    /**
+     * Change when generated files change for the same input
+     */
+    private static final String VERSION = "1";
+
+    private static final String[] PROJECT_FILES = { "project-index.env.inf" };
+
+    private static final String[] PROJECT_FILES_FULL = { "project-index.env.inf", "project.inf",
+	    "project-provides.txt", "project-declares.txt", "project-keywords.txt", "project-sequence.txt" };
+
+    private static final String[] REPOSITORY_FILES = { "repository-index.env.inf", "repository.inf",
+	    "project-names.txt" };
+
+    private static final String[] REPOSITORY_FILES_FULL = { "repository-index.env.inf", "repository.inf",
+	    "project-names.txt", "repository-requires.txt", "repository-provides.txt", "repository-declares.txt",
+	    "repository-keywords.txt" };
+
+    private static final String[] DISTRO_FILES = { "distro-index.env.inf", "distro-namespaces.txt",
+	    "distro-sequence-joined.txt" };
+
+    private static String getLinesHash(final Iterable<String> lines) throws Exception {
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	DistroIndexFingerprints.update(digest, DistroIndexFingerprints.VERSION);
+	for (final String line : lines) {
+	    DistroIndexFingerprints.update(digest, line);
+	}
+	return Utils.toHex(digest.digest());
+    }
+
+    private static void update(final MessageDigest digest, final String string) {
+	digest.update(string.getBytes(StandardCharsets.UTF_8));
+	digest.update((byte) '\n');
+    }
+
+    private final Path outputTarget;
+
+    private final Map<String, Entry> loaded = new HashMap<>();
+
+    /**
+     * Entries checked or generated by this run
+     */
+    private final Map<String, Entry> current = new TreeMap<>();
+
+    private final Map<Project, String> projectHashes = new HashMap<>();
+
+    int skipped = 0;
+
+    int generated = 0;
+
+    DistroIndexFingerprints(final Path outputTarget) throws Exception {
+	this.outputTarget = outputTarget;
+	final Path file = outputTarget.resolve(DistroIndexFingerprints.FILE_NAME);
+	if (!Files.isRegularFile(file)) {
+	    return;
+	}
+	try (final BufferedReader reader = Files.newBufferedReader(file)) {
+	    for (String line; (line = reader.readLine()) != null;) {
+		final String[] fields = line.split(" ", 3);
+		if (fields.length != 3) {
+		    continue;
+		}
+		try {
+		    this.loaded.put(fields[2], new Entry(fields[0], Long.parseLong(fields[1])));
+		} catch (final NumberFormatException e) {
+		    // skip broken line
+		}
+	    }
+	}
+    }
+
+    /**
+     * @return latest mtime of the files, -1 when any of them is missing
+     */
+    private long getModified(final Path folder, final String[] files) throws Exception {
+	long modified = 0;
+	for (final String name : files) {
+	    final BasicFileAttributes attributes;
+	    try {
+		attributes = Files.readAttributes(folder.resolve(name), BasicFileAttributes.class);
+	    } catch (final NoSuchFileException e) {
+		return -1;
+	    }
+	    modified = Math.max(modified, attributes.lastModifiedTime().toMillis());
+	}
+	return modified;
+    }
+
+    private String getDistroHash(final OperationContext context, final Distro distro) throws Exception {
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	DistroIndexFingerprints.update(digest, DistroIndexFingerprints.VERSION);
+	for (final Repository repository : distro.getRepositories()) {
+	    DistroIndexFingerprints.update(digest, repository.name);
+	    DistroIndexFingerprints.update(digest, repository.fetch);
+	}
+	for (final Project project : distro.getSequenceProjects()) {
+	    DistroIndexFingerprints.update(digest, project.getFullName());
+	    DistroIndexFingerprints.update(digest, this.getProjectHash(context, project));
+	}
+	return Utils.toHex(digest.digest());
+    }
+
+    private String getProjectHash(final OperationContext context, final Project project) throws Exception {
+	final String known = this.projectHashes.get(project);
+	if (known != null) {
+	    return known;
+	}
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	DistroIndexFingerprints.update(digest, DistroIndexFingerprints.VERSION);
+	project.buildPrepareDistroIndexFingerprint(context, value -> DistroIndexFingerprints.update(digest, value));
+	final String hash = Utils.toHex(digest.digest());
+	this.projectHashes.put(project, hash);
+	return hash;
+    }
+
+    private String getRepositoryHash(final OperationContext context, final Repository repository)
+	    throws Exception {
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	DistroIndexFingerprints.update(digest, DistroIndexFingerprints.VERSION);
+	DistroIndexFingerprints.update(digest, repository.name);
+	DistroIndexFingerprints.update(digest, repository.fetch);
+	for (final Project project : repository.getProjects()) {
+	    DistroIndexFingerprints.update(digest, project.getFullName());
+	    DistroIndexFingerprints.update(digest, this.getProjectHash(context, project));
+	}
+	return Utils.toHex(digest.digest());
+    }
+
+    /**
+     * Checks the entry, records it as current when unchanged.
+     */
+    private boolean isUnchanged(final String key, final String hash, final Path folder, final String[] files)
+	    throws Exception {
+	final Entry entry = this.loaded.get(key);
+	if (entry == null || !entry.hash.equals(hash)) {
+	    return false;
+	}
+	if (this.getModified(folder, files) != entry.modified) {
+	    return false;
+	}
+	this.current.put(key, entry);
+	++this.skipped;
+	return true;
+    }
+
+    /**
+     * @return false when distro files are up to date
+     */
+    boolean checkDistro(final OperationContext context, final Distro distro) throws Exception {
+	return !this.isUnchanged("distro", this.getDistroHash(context, distro), this.outputTarget,
+		DistroIndexFingerprints.DISTRO_FILES);
+    }
+
+    /**
+     * @return false when the file has these lines
+     */
+    boolean checkLines(final String key, final Path file, final Iterable<String> lines) throws Exception {
+	return !this.isUnchanged(key, DistroIndexFingerprints.getLinesHash(lines), file.getParent(),
+		new String[] { file.getFileName().toString() });
+    }
+
+    /**
+     * @return false when project files are up to date
+     */
+    boolean checkProject(final OperationContext context, final Project project, final Path packageOutput,
+	    final boolean full) throws Exception {
+	return !this.isUnchanged(//
+		(full
+			? "project-full "
+			: "project ") + project.getFullName(), //
+		this.getProjectHash(context, project), //
+		packageOutput, //
+		full
+			? DistroIndexFingerprints.PROJECT_FILES_FULL
+			: DistroIndexFingerprints.PROJECT_FILES//
+	);
+    }
+
+    /**
+     * @return false when repository files are up to date
+     */
+    boolean checkRepository(final OperationContext context, final Repository repository,
+	    final Path repositoryOutput, final boolean full) throws Exception {
+	return !this.isUnchanged(//
+		(full
+			? "repository-full "
+			: "repository ") + repository.name, //
+		this.getRepositoryHash(context, repository), //
+		repositoryOutput, //
+		full
+			? DistroIndexFingerprints.REPOSITORY_FILES_FULL
+			: DistroIndexFingerprints.REPOSITORY_FILES//
+	);
+    }
+
+    private void generated(final String key, final String hash, final Path folder, final String[] files)
+	    throws Exception {
+	this.current.put(key, new Entry(hash, this.getModified(folder, files)));
+	++this.generated;
+    }
+
+    void generatedDistro(final OperationContext context, final Distro distro) throws Exception {
+	this.generated("distro", this.getDistroHash(context, distro), this.outputTarget,
+		DistroIndexFingerprints.DISTRO_FILES);
+    }
+
+    void generatedLines(final String key, final Path file, final Iterable<String> lines) throws Exception {
+	this.generated(key, DistroIndexFingerprints.getLinesHash(lines), file.getParent(),
+		new String[] { file.getFileName().toString() });
+    }
+
+    void generatedProject(final OperationContext context, final Project project, final Path packageOutput,
+	    final boolean full) throws Exception {
+	this.generated(//
+		(full
+			? "project-full "
+			: "project ") + project.getFullName(), //
+		this.getProjectHash(context, project), //
+		packageOutput, //
+		full
+			? DistroIndexFingerprints.PROJECT_FILES_FULL
+			: DistroIndexFingerprints.PROJECT_FILES//
+	);
+    }
+
+    void generatedRepository(final OperationContext context, final Repository repository,
+	    final Path repositoryOutput, final boolean full) throws Exception {
+	this.generated(//
+		(full
+			? "repository-full "
+			: "repository ") + repository.name, //
+		this.getRepositoryHash(context, repository), //
+		repositoryOutput, //
+		full
+			? DistroIndexFingerprints.REPOSITORY_FILES_FULL
+			: DistroIndexFingerprints.REPOSITORY_FILES//
+	);
+    }
+
+    /**
+     * Entries not checked by this run are kept, other runs may write other
+     * parts of the same folder.
+     */
+    void save(final OperationContext context) throws Exception {
+	final Map<String, Entry> entries = new TreeMap<>();
+	entries.putAll(this.loaded);
+	entries.putAll(this.current);
+	Utils.save(//
+		context.console, //
+		this.outputTarget.resolve(DistroIndexFingerprints.FILE_NAME), //
+		entries.entrySet().stream()
+			.map(e -> e.getValue().hash + ' ' + e.getValue().modified + ' ' + e.getKey())//
+	);
+	context.console.outDebug("index fingerprints: skipped ", this.skipped, ", generated ", this.generated);
+    }
+}
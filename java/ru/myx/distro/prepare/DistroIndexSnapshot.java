@@ -0,0 +1,312 @@
+package ru.myx.distro.prepare;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import ru.myx.distro.Utils;
+
+/**
+ * Binary snapshot of the model imported from an index folder, stored next to
+ * 'distro-index.env.inf'. It keeps size and mtime of every index file the
+ * import has read and is only used while all of them are unchanged.
+ *
+ * @author myx
+ *
+ */
+public final class DistroIndexSnapshot {
+
+    /**
+     * Project read from the snapshot, not registered yet
+     */
+    private static final class ProjectEntry {
+	final String name;
+
+	/**
+	 * declares, keywords, augments, provides, requires
+	 */
+	final OptionList[] lists = { new OptionList(), new OptionList(), new OptionList(), new OptionList(),
+		new OptionList() };
+
+	final List<String> contains = new ArrayList<>();
+
+	ProjectEntry(final String name) {
+	    this.name = name;
+	}
+    }
+
+    /**
+     * Repository read from the snapshot, not registered yet
+     */
+    private static final class RepositoryEntry {
+	final String name;
+
+	final String fetch;
+
+	final List<ProjectEntry> projects = new ArrayList<>();
+
+	RepositoryEntry(final String name, final String fetch) {
+	    this.name = name;
+	    this.fetch = fetch;
+	}
+    }
+
+    static final String FILE_NAME = "distro-index.snapshot";
+
+    private static final long MAGIC = 0x4D59584453534E50L;
+
+    private static final int VERSION = 1;
+
+    private static String readString(final ByteBuffer buffer) {
+	final int length = buffer.getInt();
+	if (length == -1) {
+	    return null;
+	}
+	final byte[] bytes = new byte[length];
+	buffer.get(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readList(final ByteBuffer buffer, final OptionList list) {
+	for (int items = buffer.getInt(); items > 0; --items) {
+	    final String name = DistroIndexSnapshot.readString(buffer);
+	    final String[] keys = new String[buffer.getInt()];
+	    for (int i = 0; i < keys.length; ++i) {
+		keys[i] = DistroIndexSnapshot.readString(buffer);
+	    }
+	    list.add(new OptionListItem(name, keys));
+	}
+    }
+
+    private static void writeString(final DataOutputStream out, final String string) throws Exception {
+	if (string == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static void writeList(final DataOutputStream out, final OptionList list) throws Exception {
+	out.writeInt(list.size());
+	for (final OptionListItem item : list) {
+	    DistroIndexSnapshot.writeString(out, item.name);
+	    out.writeInt(item.keys.size());
+	    for (final String key : item.keys) {
+		DistroIndexSnapshot.writeString(out, key);
+	    }
+	}
+    }
+
+    private static void writeSource(final DataOutputStream out, final Path distroRoot, final Path source)
+	    throws Exception {
+	DistroIndexSnapshot.writeString(out, distroRoot.relativize(source).toString());
+	try {
+	    final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+	    out.writeLong(attributes.size());
+	    out.writeLong(attributes.lastModifiedTime().toMillis());
+	} catch (final NoSuchFileException e) {
+	    out.writeLong(-1L);
+	    out.writeLong(0L);
+	}
+    }
+
+    private static boolean checkSource(final Path source, final long size, final long modified) throws Exception {
+	try {
+	    final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+	    return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+	} catch (final NoSuchFileException e) {
+	    return size == -1L;
+	}
+    }
+
+    /**
+     * @return false when there is no valid snapshot (missing, outdated or
+     *         truncated), nothing is imported then.
+     */
+    public static boolean load(final ConsoleOutput console, final Distro distro, final Path distroRoot)
+	    throws Exception {
+	final Path snapshotFile = distroRoot.resolve(DistroIndexSnapshot.FILE_NAME);
+	if (!Files.isRegularFile(snapshotFile)) {
+	    return false;
+	}
+
+	final ByteBuffer buffer;
+	try (final FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+
+	final List<RepositoryEntry> entries = new ArrayList<>();
+	try {
+	    if (buffer.getLong() != DistroIndexSnapshot.MAGIC || buffer.getInt() != DistroIndexSnapshot.VERSION) {
+		console.outDebug("snapshot format is unknown, path: ", snapshotFile);
+		return false;
+	    }
+
+	    for (int sources = buffer.getInt(); sources > 0; --sources) {
+		final Path source = distroRoot.resolve(DistroIndexSnapshot.readString(buffer));
+		if (!DistroIndexSnapshot.checkSource(source, buffer.getLong(), buffer.getLong())) {
+		    console.outDebug("snapshot is outdated, changed: ", source);
+		    return false;
+		}
+	    }
+
+	    // read all before anything is registered, so a broken snapshot leaves
+	    // the distro as it was
+	    for (int repositories = buffer.getInt(); repositories > 0; --repositories) {
+		final RepositoryEntry repository = new RepositoryEntry(//
+			DistroIndexSnapshot.readString(buffer), //
+			DistroIndexSnapshot.readString(buffer)//
+		);
+		for (int projects = buffer.getInt(); projects > 0; --projects) {
+		    final ProjectEntry project = new ProjectEntry(DistroIndexSnapshot.readString(buffer));
+		    for (final OptionList list : project.lists) {
+			DistroIndexSnapshot.readList(buffer, list);
+		    }
+		    for (int contains = buffer.getInt(); contains > 0; --contains) {
+			project.contains.add(DistroIndexSnapshot.readString(buffer));
+		    }
+		    repository.projects.add(project);
+		}
+		entries.add(repository);
+	    }
+	} catch (final BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+	    console.outDebug("snapshot is truncated, path: ", snapshotFile);
+	    return false;
+	}
+
+	for (final RepositoryEntry entry : entries) {
+	    final Repository repository = new Repository(entry.name, entry.fetch, distro);
+	    for (final ProjectEntry projectEntry : entry.projects) {
+		final Project project = new Project(projectEntry.name, null, repository);
+		project.getDeclares().addAll(projectEntry.lists[0]);
+		project.getKeywords().addAll(projectEntry.lists[1]);
+		project.getAugments().addAll(projectEntry.lists[2]);
+		project.getProvides().addAll(projectEntry.lists[3]);
+		project.getRequires().addAll(projectEntry.lists[4]);
+		project.getContains().addAll(projectEntry.contains);
+		project.registerIndexItems();
+	    }
+	}
+
+	console.outDebug("imported from snapshot, path: ", snapshotFile);
+	return true;
+    }
+
+    /**
+     * Writes the snapshot for repositories just imported from the index folder.
+     * The order of projects is taken from the same index files the import used,
+     * so loading the snapshot creates projects in the same order.
+     */
+    public static boolean save(final ConsoleOutput console, final Distro distro, final Path distroRoot,
+	    final List<String> repositoryNames) throws Exception {
+	final ByteArrayOutputStream sourcesBytes = new ByteArrayOutputStream();
+	final ByteArrayOutputStream modelBytes = new ByteArrayOutputStream();
+
+	int sourceCount = 0;
+	int repositoryCount = 0;
+
+	try (final DataOutputStream sources = new DataOutputStream(sourcesBytes);
+		final DataOutputStream model = new DataOutputStream(modelBytes)) {
+
+	    DistroIndexSnapshot.writeSource(sources, distroRoot, distroRoot.resolve("distro-namespaces.txt"));
+	    ++sourceCount;
+
+	    for (final String repositoryName : repositoryNames) {
+		final Path repositoryRoot = distroRoot.resolve(repositoryName);
+		DistroIndexSnapshot.writeSource(sources, distroRoot, repositoryRoot.resolve("repository.inf"));
+		++sourceCount;
+
+		if (!Repository.checkIfRepository(repositoryRoot)) {
+		    continue;
+		}
+
+		final Repository repository = distro.getRepository(repositoryName);
+		if (repository == null) {
+		    throw new IllegalStateException("repository is not imported, name: " + repositoryName);
+		}
+
+		final Collection<String> projectNames = new ArrayList<>();
+		final Path infoFile = repositoryRoot.resolve("repository-index.env.inf");
+		DistroIndexSnapshot.writeSource(sources, distroRoot, infoFile);
+		++sourceCount;
+		if (Files.isRegularFile(infoFile)) {
+		    final Properties info = new Properties();
+		    try (BufferedReader newBufferedReader = Files.newBufferedReader(infoFile)) {
+			info.load(newBufferedReader);
+		    }
+		    for (final String projectId : info.getProperty("PRJS", "").split("\\s+")) {
+			final String projectName = projectId.substring(projectId.indexOf('/') + 1).trim();
+			if (projectName.length() > 0) {
+			    projectNames.add(projectName);
+			}
+		    }
+		} else {
+		    final Path namesFile = repositoryRoot.resolve("project-names.txt");
+		    DistroIndexSnapshot.writeSource(sources, distroRoot, namesFile);
+		    ++sourceCount;
+		    for (final String projectName : Files.readAllLines(namesFile)) {
+			final Path projectRoot = repositoryRoot.resolve(projectName);
+			DistroIndexSnapshot.writeSource(sources, distroRoot, projectRoot.resolve("project.inf"));
+			DistroIndexSnapshot.writeSource(sources, distroRoot, projectRoot.resolve("project-index.env.inf"));
+			sourceCount += 2;
+			if (Files.isRegularFile(projectRoot.resolve("project.inf"))) {
+			    projectNames.add(projectName);
+			}
+		    }
+		}
+
+		DistroIndexSnapshot.writeString(model, repository.name);
+		DistroIndexSnapshot.writeString(model, repository.fetch);
+		model.writeInt(projectNames.size());
+		for (final String projectName : projectNames) {
+		    final Project project = repository.getProject(repository.name + '/' + projectName.trim());
+		    if (project == null) {
+			throw new IllegalStateException("project is not imported, name: " + projectName);
+		    }
+		    DistroIndexSnapshot.writeString(model, project.name);
+		    DistroIndexSnapshot.writeList(model, project.getDeclares());
+		    DistroIndexSnapshot.writeList(model, project.getKeywords());
+		    DistroIndexSnapshot.writeList(model, project.getAugments());
+		    DistroIndexSnapshot.writeList(model, project.getProvides());
+		    DistroIndexSnapshot.writeList(model, project.getRequires());
+		    model.writeInt(project.getContains().size());
+		    for (final String contains : project.getContains()) {
+			DistroIndexSnapshot.writeString(model, contains);
+		    }
+		}
+		++repositoryCount;
+	    }
+	}
+
+	final ByteArrayOutputStream snapshot = new ByteArrayOutputStream(sourcesBytes.size() + modelBytes.size() + 24);
+	try (final DataOutputStream out = new DataOutputStream(snapshot)) {
+	    out.writeLong(DistroIndexSnapshot.MAGIC);
+	    out.writeInt(DistroIndexSnapshot.VERSION);
+	    out.writeInt(sourceCount);
+	    sourcesBytes.writeTo(out);
+	    out.writeInt(repositoryCount);
+	    modelBytes.writeTo(out);
+	}
+
+	return Utils.save(console, distroRoot.resolve(DistroIndexSnapshot.FILE_NAME), snapshot.toByteArray());
+    }
+
+    private DistroIndexSnapshot() {
+	//
+    }
+}
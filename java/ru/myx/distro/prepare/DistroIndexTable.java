@@ -0,0 +1,385 @@
+package ru.myx.distro.prepare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.myx.distro.OperationContext;
+import ru.myx.distro.Utils;
+
+/**
+ * Whole distro index in one file, 'distro-index.table' next to
+ * 'distro-index.env.inf'. Unlike {@link DistroIndexSnapshot} it does not
+ * depend on other index files, {@link MakeIndicesFromTable} makes the usual
+ * text files from it when needed.
+ *
+ * All strings are stored once in a string table, everything else is columns
+ * of string or row numbers: repositories, projects (grouped by repository),
+ * items of each project list (declares, keywords, augments, provides,
+ * requires), keys of items, contains and the distro sequence. A column is a
+ * count followed by that many ints, ranges are stored as 'start' columns one
+ * longer than the number of rows they belong to.
+ *
+ * @author myx
+ *
+ */
+public final class DistroIndexTable {
+
+    /**
+     * Project read from the table, not registered yet
+     */
+    private static final class ProjectRow {
+	final String name;
+
+	/**
+	 * declares, keywords, augments, provides, requires
+	 */
+	final OptionList[] lists = new OptionList[DistroIndexTable.LISTS];
+
+	final List<String> contains = new ArrayList<>();
+
+	ProjectRow(final String name) {
+	    this.name = name;
+	    for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+		this.lists[list] = new OptionList();
+	    }
+	}
+    }
+
+    /**
+     * Builds the string table while columns are written
+     */
+    private static final class Strings {
+	final Map<String, Integer> ids = new LinkedHashMap<>();
+
+	int id(final String string) {
+	    final String value = string == null
+		    ? ""
+		    : string;
+	    final Integer known = this.ids.get(value);
+	    if (known != null) {
+		return known.intValue();
+	    }
+	    final int id = this.ids.size();
+	    this.ids.put(value, Integer.valueOf(id));
+	    return id;
+	}
+    }
+
+    public static final String FILE_NAME = "distro-index.table";
+
+    private static final long MAGIC = 0x4D59584454424C31L;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Lists of a project in the order their ranges are stored
+     */
+    private static final int LISTS = 5;
+
+    private static OptionList getList(final Project project, final int list) {
+	switch (list) {
+	case 0:
+	    return project.getDeclares();
+	case 1:
+	    return project.getKeywords();
+	case 2:
+	    return project.getAugments();
+	case 3:
+	    return project.getProvides();
+	case 4:
+	    return project.getRequires();
+	default:
+	    throw new IllegalArgumentException("list: " + list);
+	}
+    }
+
+    /**
+     * @return the column, buffer is positioned after it
+     */
+    private static IntBuffer readColumn(final ByteBuffer buffer) {
+	final int count = buffer.getInt();
+	if (count < 0 || count > buffer.remaining() / 4) {
+	    throw new BufferUnderflowException();
+	}
+	final IntBuffer column = buffer.slice().limit(count * 4).asIntBuffer();
+	buffer.position(buffer.position() + count * 4);
+	return column;
+    }
+
+    private static void writeColumn(final DataOutputStream out, final List<Integer> column) throws Exception {
+	out.writeInt(column.size());
+	for (final Integer value : column) {
+	    out.writeInt(value.intValue());
+	}
+    }
+
+    /**
+     * Imports repositories and projects from the table, the sequence is
+     * restored as it was stored.
+     *
+     * @return false when there is no table, its format is unknown or it is
+     *         truncated, nothing is imported then.
+     */
+    public static boolean load(final OperationContext context, final Distro distro, final Path tableFile)
+	    throws Exception {
+	if (!Files.isRegularFile(tableFile)) {
+	    return false;
+	}
+
+	final ByteBuffer buffer;
+	try (final FileChannel channel = FileChannel.open(tableFile, StandardOpenOption.READ)) {
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+
+	// everything is read before anything is registered
+	final String[] repositoryNames;
+	final String[] repositoryFetches;
+	final int[] repositoryStarts;
+	final ProjectRow[] rows;
+	final int[] sequenceRows;
+	try {
+	    if (buffer.getLong() != DistroIndexTable.MAGIC || buffer.getInt() != DistroIndexTable.VERSION) {
+		context.console.outDebug("index table format is unknown, path: ", tableFile);
+		return false;
+	    }
+
+	    final String[] strings;
+	    {
+		final IntBuffer offsets = DistroIndexTable.readColumn(buffer);
+		strings = new String[Math.max(0, offsets.limit() - 1)];
+		final int base = buffer.position();
+		for (int i = 0; i < strings.length; ++i) {
+		    final byte[] bytes = new byte[offsets.get(i + 1) - offsets.get(i)];
+		    buffer.get(base + offsets.get(i), bytes);
+		    strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		buffer.position(base + (strings.length == 0
+			? 0
+			: offsets.get(strings.length)));
+	    }
+
+	    final IntBuffer repositoryName = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer repositoryFetch = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer repositoryProjects = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer projectName = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer[] projectItems = new IntBuffer[DistroIndexTable.LISTS];
+	    for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+		projectItems[list] = DistroIndexTable.readColumn(buffer);
+	    }
+	    final IntBuffer projectContains = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer itemName = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer itemKeys = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer keys = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer contains = DistroIndexTable.readColumn(buffer);
+	    final IntBuffer sequence = DistroIndexTable.readColumn(buffer);
+
+	    rows = new ProjectRow[projectName.limit()];
+	    for (int p = 0; p < rows.length; ++p) {
+		final ProjectRow row = new ProjectRow(strings[projectName.get(p)]);
+		for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+		    for (int i = projectItems[list].get(p); i < projectItems[list].get(p + 1); ++i) {
+			final String[] itemKeyValues = new String[itemKeys.get(i + 1) - itemKeys.get(i)];
+			for (int k = 0; k < itemKeyValues.length; ++k) {
+			    itemKeyValues[k] = strings[keys.get(itemKeys.get(i) + k)];
+			}
+			row.lists[list].add(new OptionListItem(strings[itemName.get(i)], itemKeyValues));
+		    }
+		}
+		for (int c = projectContains.get(p); c < projectContains.get(p + 1); ++c) {
+		    row.contains.add(strings[contains.get(c)]);
+		}
+		rows[p] = row;
+	    }
+
+	    repositoryNames = new String[repositoryName.limit()];
+	    repositoryFetches = new String[repositoryNames.length];
+	    repositoryStarts = new int[repositoryNames.length + 1];
+	    for (int r = 0; r < repositoryNames.length; ++r) {
+		repositoryNames[r] = strings[repositoryName.get(r)];
+		repositoryFetches[r] = strings[repositoryFetch.get(r)];
+	    }
+	    for (int r = 0; r <= repositoryNames.length; ++r) {
+		repositoryStarts[r] = repositoryProjects.get(r);
+		if (repositoryStarts[r] < (r == 0
+			? 0
+			: repositoryStarts[r - 1]) || repositoryStarts[r] > rows.length) {
+		    throw new IndexOutOfBoundsException("project range of repository: " + r);
+		}
+	    }
+	    if (repositoryStarts[0] != 0 || repositoryStarts[repositoryNames.length] != rows.length) {
+		throw new IndexOutOfBoundsException("projects without repository");
+	    }
+
+	    sequenceRows = new int[sequence.limit()];
+	    for (int s = 0; s < sequenceRows.length; ++s) {
+		sequenceRows[s] = sequence.get(s);
+		if (sequenceRows[s] < 0 || sequenceRows[s] >= rows.length) {
+		    throw new IndexOutOfBoundsException("sequence row: " + sequenceRows[s]);
+		}
+	    }
+	} catch (final BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+	    context.console.outDebug("index table is truncated, path: ", tableFile);
+	    return false;
+	}
+
+	final Project[] projects = new Project[rows.length];
+	for (int r = 0; r < repositoryNames.length; ++r) {
+	    final Repository repository = new Repository(//
+		    repositoryNames[r], //
+		    repositoryFetches[r].isEmpty()
+			    ? null
+			    : repositoryFetches[r], //
+		    distro//
+	    );
+	    for (int p = repositoryStarts[r]; p < repositoryStarts[r + 1]; ++p) {
+		final ProjectRow row = rows[p];
+		final Project project = new Project(row.name, null, repository);
+		for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+		    final OptionList items = DistroIndexTable.getList(project, list);
+		    // constructor has added own names already
+		    items.clear();
+		    items.addAll(row.lists[list]);
+		}
+		project.getContains().addAll(row.contains);
+		project.registerIndexItems();
+		projects[p] = project;
+	    }
+	}
+
+	final List<Project> sequenceProjects = new ArrayList<>(sequenceRows.length);
+	for (final int row : sequenceRows) {
+	    sequenceProjects.add(projects[row]);
+	}
+	distro.buildRestoreSequence(sequenceProjects);
+
+	context.console.outDebug("imported from index table, path: ", tableFile);
+	return true;
+    }
+
+    /**
+     * Writes the table for the distro, its current sequence is stored as well.
+     *
+     * @return true when the file has changed
+     */
+    public static boolean save(final OperationContext context, final Distro distro, final Path outputTarget)
+	    throws Exception {
+	final Strings strings = new Strings();
+
+	final List<Integer> repositoryName = new ArrayList<>();
+	final List<Integer> repositoryFetch = new ArrayList<>();
+	final List<Integer> repositoryProjects = new ArrayList<>();
+	final List<Integer> projectName = new ArrayList<>();
+	final List<List<Integer>> projectItems = new ArrayList<>();
+	for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+	    projectItems.add(new ArrayList<>());
+	}
+	final List<Integer> projectContains = new ArrayList<>();
+	final List<Integer> itemName = new ArrayList<>();
+	final List<Integer> itemKeys = new ArrayList<>();
+	final List<Integer> keys = new ArrayList<>();
+	final List<Integer> contains = new ArrayList<>();
+	final List<Integer> sequence = new ArrayList<>();
+
+	final Map<Project, Integer> rows = new LinkedHashMap<>();
+	final List<List<OptionListItem>> items = new ArrayList<>();
+	for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+	    items.add(new ArrayList<>());
+	}
+
+	for (final Repository repository : distro.getRepositories()) {
+	    repositoryName.add(strings.id(repository.name));
+	    repositoryFetch.add(strings.id(repository.fetch));
+	    repositoryProjects.add(rows.size());
+	    for (final Project project : repository.getProjects()) {
+		rows.put(project, Integer.valueOf(rows.size()));
+		projectName.add(strings.id(project.name));
+		for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+		    projectItems.get(list).add(items.get(list).size());
+		    for (final OptionListItem item : DistroIndexTable.getList(project, list)) {
+			items.get(list).add(item);
+		    }
+		}
+		projectContains.add(contains.size());
+		for (final String item : project.getContains()) {
+		    contains.add(strings.id(item));
+		}
+	    }
+	}
+	repositoryProjects.add(rows.size());
+	projectContains.add(contains.size());
+
+	// items of all lists go to the same columns, list after list
+	int listBase = 0;
+	for (int list = 0; list < DistroIndexTable.LISTS; ++list) {
+	    final List<Integer> starts = projectItems.get(list);
+	    starts.add(items.get(list).size());
+	    for (int i = 0; i < starts.size(); ++i) {
+		starts.set(i, starts.get(i) + listBase);
+	    }
+	    for (final OptionListItem item : items.get(list)) {
+		itemName.add(strings.id(item.name));
+		itemKeys.add(keys.size());
+		for (final String key : item.keys) {
+		    keys.add(strings.id(key));
+		}
+	    }
+	    listBase += items.get(list).size();
+	}
+	itemKeys.add(keys.size());
+
+	for (final Project project : distro.getSequenceProjects()) {
+	    final Integer row = rows.get(project);
+	    if (row != null) {
+		sequence.add(row);
+	    }
+	}
+
+	final ByteArrayOutputStream table = new ByteArrayOutputStream(64 * 1024);
+	try (final DataOutputStream out = new DataOutputStream(table)) {
+	    out.writeLong(DistroIndexTable.MAGIC);
+	    out.writeInt(DistroIndexTable.VERSION);
+
+	    final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream(16 * 1024);
+	    final List<Integer> offsets = new ArrayList<>();
+	    for (final String string : strings.ids.keySet()) {
+		offsets.add(stringBytes.size());
+		stringBytes.write(string.getBytes(StandardCharsets.UTF_8));
+	    }
+	    offsets.add(stringBytes.size());
+	    DistroIndexTable.writeColumn(out, offsets);
+	    stringBytes.writeTo(out);
+
+	    DistroIndexTable.writeColumn(out, repositoryName);
+	    DistroIndexTable.writeColumn(out, repositoryFetch);
+	    DistroIndexTable.writeColumn(out, repositoryProjects);
+	    DistroIndexTable.writeColumn(out, projectName);
+	    for (final List<Integer> starts : projectItems) {
+		DistroIndexTable.writeColumn(out, starts);
+	    }
+	    DistroIndexTable.writeColumn(out, projectContains);
+	    DistroIndexTable.writeColumn(out, itemName);
+	    DistroIndexTable.writeColumn(out, itemKeys);
+	    DistroIndexTable.writeColumn(out, keys);
+	    DistroIndexTable.writeColumn(out, contains);
+	    DistroIndexTable.writeColumn(out, sequence);
+	}
+
+	return Utils.save(context.console, outputTarget.resolve(DistroIndexTable.FILE_NAME), table.toByteArray());
+    }
+
+    private DistroIndexTable() {
+	//
+    }
+}
@@ -0,0 +1,258 @@
+package ru.myx.distro.prepare;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ru.myx.distro.OperationContext;
+
+/**
+ * Applies changes of source folders to a {@link Distro} loaded from source
+ * without loading it anew. Only projects owning changed paths are loaded
+ * again, index files are written for them, for projects requiring them
+ * (directly or not, their 'PRJ-SEQ-*' may change), for their repositories and
+ * for the distro itself.
+ *
+ * Changes of a repository folder or 'repository.inf' are not applied, the
+ * caller is expected to load the whole model then.
+ *
+ * @author myx
+ *
+ */
+public final class DistroIndexUpdater {
+
+    /**
+     * Names in a project folder the model depends on, changes of anything else
+     * there are ignored
+     */
+    private static final Set<String> PROJECT_ITEMS = new HashSet<>(Arrays.asList(//
+	    "project.inf", //
+	    "java", //
+	    "jars", //
+	    "data", //
+	    "docs" //
+    ));
+
+    private final OperationContext context;
+
+    private final Distro distro;
+
+    private final Path sourceRoot;
+
+    /**
+     * output folder -> write full index (like 'distro' folder) or not (like
+     * 'cached' folder)
+     */
+    private final Map<Path, Boolean> targets = new LinkedHashMap<>();
+
+    private int updatedProjects = 0;
+
+    private int updatedDependents = 0;
+
+    public DistroIndexUpdater(final OperationContext context, final Distro distro, final Path sourceRoot) {
+	this.context = context;
+	this.distro = distro;
+	this.sourceRoot = sourceRoot.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Index files are written to the folder when it exists.
+     */
+    public void addTarget(final Path outputTarget, final boolean full) {
+	this.targets.put(outputTarget.normalize(), full);
+    }
+
+    /**
+     * @return project folder the change belongs to, null when it does not
+     *         change the model
+     */
+    private Path getProjectRoot(final Path changed, final Path repositoryRoot, final Map<Path, Project> byRoot) {
+	for (Path candidate = changed; candidate.getNameCount() > repositoryRoot.getNameCount(); candidate = candidate
+		.getParent()) {
+	    if (!byRoot.containsKey(candidate) && !Files.isRegularFile(candidate.resolve("project.inf"))) {
+		continue;
+	    }
+	    final Path relative = candidate.relativize(changed);
+	    if (relative.toString().isEmpty()) {
+		// project folder itself
+		return candidate;
+	    }
+	    return DistroIndexUpdater.PROJECT_ITEMS.contains(relative.getName(0).toString())
+		    ? candidate
+		    : null;
+	}
+	return null;
+    }
+
+    /**
+     * @return projects requiring updated ones, by the last update
+     */
+    public int getUpdatedDependents() {
+	return this.updatedDependents;
+    }
+
+    /**
+     * @return projects loaded again (or dropped) by the last update
+     */
+    public int getUpdatedProjects() {
+	return this.updatedProjects;
+    }
+
+    /**
+     * @param changed
+     *            paths created, deleted or modified, as reported by the watch
+     *            service
+     * @return false when changes could not be applied, the model is not
+     *         modified then
+     */
+    public boolean update(final Collection<Path> changed) throws Exception {
+	this.updatedProjects = 0;
+	this.updatedDependents = 0;
+
+	final Map<Path, Project> byRoot = new HashMap<>();
+	for (final Project project : this.distro.getProjects().values()) {
+	    if (project.projectSourceRoot != null) {
+		byRoot.put(project.projectSourceRoot.toAbsolutePath().normalize(), project);
+	    }
+	}
+
+	final Set<Path> projectRoots = new LinkedHashSet<>();
+	for (final Path path : changed) {
+	    final Path absolute = path.toAbsolutePath().normalize();
+	    if (!absolute.startsWith(this.sourceRoot)) {
+		continue;
+	    }
+	    final Path relative = this.sourceRoot.relativize(absolute);
+	    if (relative.toString().isEmpty() || relative.getNameCount() == 1) {
+		// source root or a repository folder
+		return false;
+	    }
+	    if (relative.getNameCount() == 2 && "repository.inf".equals(relative.getName(1).toString())) {
+		return false;
+	    }
+	    final Path repositoryRoot = this.sourceRoot.resolve(relative.getName(0));
+	    if (this.distro.getRepository(repositoryRoot.getFileName().toString()) == null) {
+		if (Repository.checkIfRepository(repositoryRoot)) {
+		    // not known yet
+		    return false;
+		}
+		continue;
+	    }
+	    final Path projectRoot = this.getProjectRoot(absolute, repositoryRoot, byRoot);
+	    if (projectRoot != null) {
+		projectRoots.add(projectRoot);
+	    }
+	}
+	if (projectRoots.isEmpty()) {
+	    return true;
+	}
+
+	{
+	    // projects nested in a removed folder
+	    final List<Path> nested = new ArrayList<>();
+	    for (final Path known : byRoot.keySet()) {
+		for (final Path projectRoot : projectRoots) {
+		    if (known.startsWith(projectRoot) && !known.equals(projectRoot) && !Files.isDirectory(known)) {
+			nested.add(known);
+			break;
+		    }
+		}
+	    }
+	    projectRoots.addAll(nested);
+	}
+
+	final Set<String> items = new HashSet<>();
+	final Set<Project> updated = new LinkedHashSet<>();
+	final Set<Repository> repositories = new LinkedHashSet<>();
+	for (final Path projectRoot : projectRoots) {
+	    final Path repositoryRoot = this.sourceRoot.resolve(this.sourceRoot.relativize(projectRoot).getName(0));
+	    final Repository repository = this.distro.getRepository(repositoryRoot.getFileName().toString());
+	    repositories.add(repository);
+
+	    final Project previous = byRoot.get(projectRoot);
+	    if (previous != null) {
+		for (final OptionListItem provides : previous.getProvides()) {
+		    items.add(provides.getName());
+		}
+		previous.repo.removeKnown(previous);
+		this.distro.removeKnown(previous);
+	    }
+	    if (Project.checkIfProject(projectRoot)) {
+		final Project project = Project.staticLoadFromLocalSource(//
+			this.context.console, //
+			repository, //
+			repositoryRoot.relativize(projectRoot).toString(), //
+			projectRoot//
+		);
+		if (project != null) {
+		    project.loadFromLocalSource(this.context.console, repository, projectRoot);
+		    for (final OptionListItem provides : project.getProvides()) {
+			items.add(provides.getName());
+		    }
+		    updated.add(project);
+		}
+	    }
+	    ++this.updatedProjects;
+	}
+
+	final Set<Project> dependents = new LinkedHashSet<>();
+	{
+	    final Deque<String> queue = new ArrayDeque<>(items);
+	    for (String item; (item = queue.poll()) != null;) {
+		final Set<Project> requiredBy = this.distro.getRequiredBy(new OptionListItem(item));
+		if (requiredBy == null) {
+		    continue;
+		}
+		for (final Project project : requiredBy) {
+		    if (updated.contains(project) || !dependents.add(project)) {
+			continue;
+		    }
+		    for (final OptionListItem provides : project.getProvides()) {
+			if (items.add(provides.getName())) {
+			    queue.add(provides.getName());
+			}
+		    }
+		}
+	    }
+	}
+	this.updatedDependents = dependents.size();
+
+	this.distro.buildCalculateSequence(this.context, null);
+
+	updated.addAll(dependents);
+	for (final Project project : updated) {
+	    repositories.add(project.repo);
+	}
+	for (final Map.Entry<Path, Boolean> target : this.targets.entrySet()) {
+	    final Path outputTarget = target.getKey();
+	    final boolean full = target.getValue().booleanValue();
+	    if (!Files.isDirectory(outputTarget)) {
+		continue;
+	    }
+	    for (final Repository repository : repositories) {
+		repository.buildPrepareDistroIndex(this.context, this.distro, outputTarget.resolve(repository.name), full);
+	    }
+	    for (final Project project : updated) {
+		project.buildPrepareDistroIndex(//
+			this.context, //
+			outputTarget.resolve(project.repo.name).resolve(project.name), //
+			true, //
+			full//
+		);
+	    }
+	    this.distro.buildPrepareDistroIndex(this.context, outputTarget, false, full);
+	}
+	return true;
+    }
+}
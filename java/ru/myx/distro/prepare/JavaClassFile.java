@@ -0,0 +1,277 @@
+package ru.myx.distro.prepare;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import ru.myx.distro.Utils;
+
+/**
+ * Minimal reader of a '.class' file: types referenced from the constant pool
+ * and hashes of the part of the class other classes compile against.
+ *
+ * @author myx
+ *
+ */
+final class JavaClassFile {
+
+    private static final int ACC_PRIVATE = 0x0002;
+
+    private static final int ACC_STATIC = 0x0008;
+
+    private static final int ACC_FINAL = 0x0010;
+
+    /**
+     * {@link #constantsHash} of a class without constants
+     */
+    static final String NO_CONSTANTS;
+    static {
+	try {
+	    NO_CONSTANTS = Utils.toHex(MessageDigest.getInstance("SHA-256").digest());
+	} catch (final Exception e) {
+	    throw new ExceptionInInitializerError(e);
+	}
+    }
+
+    /**
+     * Adds every 'Lname;' (or 'Lname&lt;') of a descriptor or signature.
+     */
+    private static void addDescriptorTypes(final Set<String> references, final String descriptor) {
+	final int length = descriptor.length();
+	for (int i = 0; i < length; ++i) {
+	    if (descriptor.charAt(i) != 'L') {
+		continue;
+	    }
+	    int end = i + 1;
+	    for (; end < length; ++end) {
+		final char c = descriptor.charAt(end);
+		if (c == ';' || c == '<' || c == '.' || c == '(' || c == ')' || c == '[' || c == ' ') {
+		    break;
+		}
+	    }
+	    if (end < length && end > i + 1 && (descriptor.charAt(end) == ';' || descriptor.charAt(end) == '<')) {
+		references.add(descriptor.substring(i + 1, end));
+		i = end;
+	    }
+	}
+    }
+
+    private static void hash(final MessageDigest digest, final String value) {
+	digest.update(value.getBytes(StandardCharsets.UTF_8));
+	digest.update((byte) 0);
+    }
+
+    static JavaClassFile read(final Path file) throws IOException {
+	try (final InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+	    return JavaClassFile.read(in);
+	}
+    }
+
+    static JavaClassFile read(final InputStream input) throws IOException {
+	final DataInputStream in = new DataInputStream(input);
+	if (in.readInt() != 0xCAFEBABE) {
+	    throw new IOException("not a class file");
+	}
+	in.readUnsignedShort();
+	in.readUnsignedShort();
+
+	final int count = in.readUnsignedShort();
+	// texts of Utf8, Integer, Float, Long, Double and String entries
+	final String[] texts = new String[count];
+	// Utf8 indices of Class and String entries
+	final int[] classes = new int[count];
+	final int[] strings = new int[count];
+	for (int i = 1; i < count; ++i) {
+	    final int tag = in.readUnsignedByte();
+	    switch (tag) {
+	    case 1:
+		texts[i] = in.readUTF();
+		break;
+	    case 3:
+		texts[i] = "I" + in.readInt();
+		break;
+	    case 4:
+		texts[i] = "F" + Float.floatToRawIntBits(in.readFloat());
+		break;
+	    case 5:
+		texts[i] = "J" + in.readLong();
+		++i;
+		break;
+	    case 6:
+		texts[i] = "D" + Double.doubleToRawLongBits(in.readDouble());
+		++i;
+		break;
+	    case 7:
+		classes[i] = in.readUnsignedShort();
+		break;
+	    case 8:
+		strings[i] = in.readUnsignedShort();
+		break;
+	    case 9:
+	    case 10:
+	    case 11:
+	    case 12:
+	    case 17:
+	    case 18:
+		in.readInt();
+		break;
+	    case 15:
+		in.readUnsignedByte();
+		in.readUnsignedShort();
+		break;
+	    case 16:
+	    case 19:
+	    case 20:
+		in.readUnsignedShort();
+		break;
+	    default:
+		throw new IOException("unknown constant pool tag: " + tag);
+	    }
+	}
+
+	final Set<String> references = new TreeSet<>();
+	for (int i = 1; i < count; ++i) {
+	    final String text = texts[i];
+	    if (text != null && text.indexOf('L') != -1 && text.indexOf(';') != -1) {
+		// descriptors and signatures are Utf8 entries too
+		JavaClassFile.addDescriptorTypes(references, text);
+	    }
+	}
+	for (int i = 1; i < count; ++i) {
+	    if (classes[i] == 0) {
+		continue;
+	    }
+	    final String name = texts[classes[i]];
+	    if (name.charAt(0) == '[') {
+		JavaClassFile.addDescriptorTypes(references, name);
+	    } else {
+		references.add(name);
+	    }
+	}
+
+	final MessageDigest api;
+	final MessageDigest constants;
+	try {
+	    api = MessageDigest.getInstance("SHA-256");
+	    constants = MessageDigest.getInstance("SHA-256");
+	} catch (final Exception e) {
+	    throw new RuntimeException(e);
+	}
+
+	JavaClassFile.hash(api, Integer.toString(in.readUnsignedShort()));
+	final String name = texts[classes[in.readUnsignedShort()]];
+	references.remove(name);
+	JavaClassFile.hash(api, name);
+	final List<String> supertypes = new ArrayList<>();
+	final int superIndex = in.readUnsignedShort();
+	JavaClassFile.hash(api, superIndex == 0
+		? ""
+		: texts[classes[superIndex]]);
+	if (superIndex != 0) {
+	    supertypes.add(texts[classes[superIndex]]);
+	}
+	for (int interfaces = in.readUnsignedShort(); interfaces > 0; --interfaces) {
+	    final String supertype = texts[classes[in.readUnsignedShort()]];
+	    JavaClassFile.hash(api, supertype);
+	    supertypes.add(supertype);
+	}
+
+	// fields, then methods
+	for (int kind = 0; kind < 2; ++kind) {
+	    for (int members = in.readUnsignedShort(); members > 0; --members) {
+		final int access = in.readUnsignedShort();
+		final String memberName = texts[in.readUnsignedShort()];
+		final String descriptor = texts[in.readUnsignedShort()];
+		final boolean visible = (access & JavaClassFile.ACC_PRIVATE) == 0;
+		final boolean constant = kind == 0 && visible
+			&& (access & (JavaClassFile.ACC_STATIC | JavaClassFile.ACC_FINAL)) == (JavaClassFile.ACC_STATIC
+				| JavaClassFile.ACC_FINAL);
+		if (visible) {
+		    JavaClassFile.hash(api, (kind == 0
+			    ? "F"
+			    : "M") + access + ' ' + memberName + ' ' + descriptor);
+		}
+		for (int attributes = in.readUnsignedShort(); attributes > 0; --attributes) {
+		    final String attribute = texts[in.readUnsignedShort()];
+		    final int length = in.readInt();
+		    if (visible && "Signature".equals(attribute)) {
+			JavaClassFile.hash(api, "S" + texts[in.readUnsignedShort()]);
+		    } else if (visible && "Exceptions".equals(attribute)) {
+			for (int exceptions = in.readUnsignedShort(); exceptions > 0; --exceptions) {
+			    JavaClassFile.hash(api, "E" + texts[classes[in.readUnsignedShort()]]);
+			}
+		    } else if (constant && "ConstantValue".equals(attribute)) {
+			final int index = in.readUnsignedShort();
+			final String value = strings[index] != 0
+				? "S" + texts[strings[index]]
+				: texts[index];
+			JavaClassFile.hash(constants, memberName + '=' + value);
+			JavaClassFile.hash(api, "V" + value);
+		    } else {
+			in.skipBytes(length);
+		    }
+		}
+	    }
+	}
+
+	for (int attributes = in.readUnsignedShort(); attributes > 0; --attributes) {
+	    final String attribute = texts[in.readUnsignedShort()];
+	    final int length = in.readInt();
+	    if ("Signature".equals(attribute)) {
+		JavaClassFile.hash(api, "S" + texts[in.readUnsignedShort()]);
+	    } else {
+		in.skipBytes(length);
+	    }
+	}
+
+	return new JavaClassFile(name, references, supertypes, Utils.toHex(api.digest()),
+		Utils.toHex(constants.digest()));
+    }
+
+    /**
+     * Internal name, like 'ru/myx/distro/prepare/Project'
+     */
+    final String name;
+
+    /**
+     * Internal names of other classes used
+     */
+    final Set<String> references;
+
+    /**
+     * Internal names of the superclass and interfaces, none for
+     * 'java/lang/Object'
+     */
+    final List<String> supertypes;
+
+    /**
+     * Hash of access flags, supertypes, non-private members with signatures,
+     * thrown exceptions and constant values. Members inherited are not there,
+     * see {@link MakeCompileJava} for the hash with supertypes.
+     */
+    final String apiHash;
+
+    /**
+     * Hash of values of 'static final' fields: javac copies those into classes
+     * using them and leaves no reference behind.
+     */
+    final String constantsHash;
+
+    private JavaClassFile(final String name, final Set<String> references, final List<String> supertypes,
+	    final String apiHash, final String constantsHash) {
+	this.name = name;
+	this.references = references;
+	this.supertypes = supertypes;
+	this.apiHash = apiHash;
+	this.constantsHash = constantsHash;
+    }
+}
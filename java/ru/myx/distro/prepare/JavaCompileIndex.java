@@ -0,0 +1,193 @@
+package ru.myx.distro.prepare;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ru.myx.distro.Utils;
+
+/**
+ * What {@link MakeCompileJava} compiled for a project last time, stored as
+ * '.java-compile.index' next to the 'java' output folder. For each source
+ * (path relative to the source folder) there are size and mtime it had, the
+ * classes javac wrote for it with hashes of their constants and the classes
+ * it referenced with API hashes they had at that time. The header tells if
+ * the classes were written to 'java.jar' instead of the folder, and if to the
+ * folder as well. The 'providers' line has the hash of constants of projects
+ * required, see {@link #getConstantsDigest()}.
+ *
+ * @author myx
+ *
+ */
+final class JavaCompileIndex {
+
+    static final class Source {
+	/**
+	 * -1 when the last compilation has failed
+	 */
+	long size;
+
+	long modified;
+
+	/**
+	 * internal name -> {@link JavaClassFile#constantsHash}
+	 */
+	final Map<String, String> classes = new TreeMap<>();
+
+	/**
+	 * internal name -> {@link JavaClassFile#apiHash}
+	 */
+	final Map<String, String> references = new TreeMap<>();
+
+	Source(final long size, final long modified) {
+	    this.size = size;
+	    this.modified = modified;
+	}
+    }
+
+    static final String FILE_NAME = ".java-compile.index";
+
+    private static final String HEADER = "java-compile-index 1";
+
+    private static final String HEADER_JAR = JavaCompileIndex.HEADER + " jar";
+
+    private static final String HEADER_JAR_EXPLODED = JavaCompileIndex.HEADER_JAR + " exploded";
+
+    /**
+     * @return true when classes of the last compilation are in 'java.jar'
+     */
+    static boolean isJar(final Path file) throws Exception {
+	if (!Files.isRegularFile(file)) {
+	    return false;
+	}
+	try (final BufferedReader reader = Files.newBufferedReader(file)) {
+	    final String header = reader.readLine();
+	    return JavaCompileIndex.HEADER_JAR.equals(header) || JavaCompileIndex.HEADER_JAR_EXPLODED.equals(header);
+	}
+    }
+
+    /**
+     * @return null when there is no index or it can not be read
+     */
+    static JavaCompileIndex load(final Path file) throws Exception {
+	if (!Files.isRegularFile(file)) {
+	    return null;
+	}
+	final JavaCompileIndex index = new JavaCompileIndex();
+	try (final BufferedReader reader = Files.newBufferedReader(file)) {
+	    final String header = reader.readLine();
+	    if (JavaCompileIndex.HEADER_JAR.equals(header)) {
+		index.jar = true;
+	    } else if (JavaCompileIndex.HEADER_JAR_EXPLODED.equals(header)) {
+		index.jar = true;
+		index.exploded = true;
+	    } else if (!JavaCompileIndex.HEADER.equals(header)) {
+		return null;
+	    }
+	    Source source = null;
+	    for (String line; (line = reader.readLine()) != null;) {
+		if (line.startsWith("providers ")) {
+		    index.providersConstants = line.substring("providers ".length());
+		    continue;
+		}
+		if (line.startsWith("source ")) {
+		    final String[] fields = line.split(" ", 4);
+		    if (fields.length != 4) {
+			return null;
+		    }
+		    try {
+			source = new Source(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+		    } catch (final NumberFormatException e) {
+			return null;
+		    }
+		    index.sources.put(fields[3], source);
+		    continue;
+		}
+		final String[] fields = line.split(" ", 3);
+		if (source == null || fields.length != 3) {
+		    return null;
+		}
+		if ("class".equals(fields[0])) {
+		    source.classes.put(fields[1], fields[2]);
+		    continue;
+		}
+		if ("ref".equals(fields[0])) {
+		    source.references.put(fields[1], fields[2]);
+		    continue;
+		}
+		return null;
+	    }
+	}
+	return index;
+    }
+
+    /**
+     * relative path with '/' -> source
+     */
+    final Map<String, Source> sources = new TreeMap<>();
+
+    /**
+     * Classes are in 'java.jar'
+     */
+    boolean jar = false;
+
+    /**
+     * Classes in 'java.jar' are in the folder too
+     */
+    boolean exploded = false;
+
+    /**
+     * Constants of required projects the sources were compiled with, null
+     * when not known
+     */
+    String providersConstants = null;
+
+    JavaCompileIndex() {
+	//
+    }
+
+    /**
+     * @return hash of constants of all classes, changes when classes of other
+     *         projects have to be compiled again
+     */
+    String getConstantsDigest() throws Exception {
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	for (final Source source : this.sources.values()) {
+	    for (final Map.Entry<String, String> entry : source.classes.entrySet()) {
+		if (!JavaClassFile.NO_CONSTANTS.equals(entry.getValue())) {
+		    digest.update((entry.getKey() + ' ' + entry.getValue() + '\n').getBytes(StandardCharsets.UTF_8));
+		}
+	    }
+	}
+	return Utils.toHex(digest.digest());
+    }
+
+    boolean save(final ConsoleOutput console, final Path file) throws Exception {
+	final List<String> lines = new ArrayList<>();
+	lines.add(this.jar
+		? this.exploded
+			? JavaCompileIndex.HEADER_JAR_EXPLODED
+			: JavaCompileIndex.HEADER_JAR
+		: JavaCompileIndex.HEADER);
+	if (this.providersConstants != null) {
+	    lines.add("providers " + this.providersConstants);
+	}
+	for (final Map.Entry<String, Source> record : this.sources.entrySet()) {
+	    final Source source = record.getValue();
+	    lines.add("source " + source.size + ' ' + source.modified + ' ' + record.getKey());
+	    for (final Map.Entry<String, String> entry : source.classes.entrySet()) {
+		lines.add("class " + entry.getKey() + ' ' + entry.getValue());
+	    }
+	    for (final Map.Entry<String, String> entry : source.references.entrySet()) {
+		lines.add("ref " + entry.getKey() + ' ' + entry.getValue());
+	    }
+	}
+	return Utils.save(console, file, lines);
+    }
+}
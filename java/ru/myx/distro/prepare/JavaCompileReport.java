@@ -0,0 +1,387 @@
+package ru.myx.distro.prepare;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+/**
+ * Compile report of {@link MakeCompileJava} in JSON lines, one object per
+ * line with 'type' of: 'run', 'batch' (one javac task: files, wall and CPU
+ * time, diagnostics counts, time of javac phases), 'file' (time javac spent
+ * on a source), 'diagnostic' (errors and warnings with positions) and
+ * 'project'. Phase and file times are exclusive: a source parsed while
+ * another class is analyzed counts as parse time of that source. Enter time
+ * is not charged to files, javac enters all sources of a batch at once.
+ *
+ * @author myx
+ *
+ */
+final class JavaCompileReport implements AutoCloseable {
+
+    /**
+     * One javac task, listens to its events and diagnostics.
+     */
+    final class Batch implements TaskListener, DiagnosticListener<JavaFileObject> {
+	private final class Frame {
+	    final TaskEvent.Kind kind;
+
+	    final String file;
+
+	    long resumed;
+
+	    /**
+	     * ENTER events not finished yet, they share one frame
+	     */
+	    int count = 1;
+
+	    Frame(final TaskEvent.Kind kind, final String file, final long resumed) {
+		this.kind = kind;
+		this.file = file;
+		this.resumed = resumed;
+	    }
+	}
+
+	private final ProjectRecord project;
+
+	private final DiagnosticListener<? super JavaFileObject> next;
+
+	private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+	private final Map<TaskEvent.Kind, Long> phaseNanos = new EnumMap<>(TaskEvent.Kind.class);
+
+	private final Map<String, Long> fileNanos = new HashMap<>();
+
+	private final int files;
+
+	private final long started = System.nanoTime();
+
+	private final long startedCpu = JavaCompileReport.getCpuTime();
+
+	private int errors = 0;
+
+	private int warnings = 0;
+
+	Batch(final ProjectRecord project, final int files, final DiagnosticListener<? super JavaFileObject> next) {
+	    this.project = project;
+	    this.files = files;
+	    this.next = next;
+	}
+
+	private static String getFile(final TaskEvent e) {
+	    final JavaFileObject source = e.getSourceFile();
+	    return source == null
+		    ? null
+		    : source.getName();
+	}
+
+	private void account(final Frame frame, final long now) {
+	    final long nanos = now - frame.resumed;
+	    this.phaseNanos.merge(frame.kind, nanos, Long::sum);
+	    if (frame.file != null) {
+		this.fileNanos.merge(frame.file, nanos, Long::sum);
+	    }
+	}
+
+	@Override
+	public void finished(final TaskEvent e) {
+	    final long now = System.nanoTime();
+	    final TaskEvent.Kind kind = e.getKind();
+	    final String file = kind == TaskEvent.Kind.ENTER
+		    ? null
+		    : Batch.getFile(e);
+	    Frame frame = null;
+	    for (final Frame candidate : this.frames) {
+		if (candidate.kind == kind && Objects.equals(candidate.file, file)) {
+		    frame = candidate;
+		    break;
+		}
+	    }
+	    if (frame == null || --frame.count > 0) {
+		return;
+	    }
+	    if (frame != this.frames.peek()) {
+		// not nested as expected, time is accounted up to its inner frame
+		this.frames.remove(frame);
+		return;
+	    }
+	    this.frames.pop();
+	    this.account(frame, now);
+	    final Frame outer = this.frames.peek();
+	    if (outer != null) {
+		outer.resumed = now;
+	    }
+	}
+
+	/**
+	 * Writes 'batch' and 'file' records.
+	 */
+	void finish(final boolean result) {
+	    final long wall = System.nanoTime() - this.started;
+	    final long cpu = JavaCompileReport.getCpuTime() - this.startedCpu;
+	    final String projectName = this.project == null
+		    ? null
+		    : this.project.name;
+
+	    final StringBuilder line = JavaCompileReport.start("batch", projectName);
+	    line.append(",\"files\":").append(this.files);
+	    line.append(",\"result\":").append(result);
+	    line.append(",\"wallMs\":").append(wall / 1_000_000L);
+	    line.append(",\"cpuMs\":").append(cpu / 1_000_000L);
+	    line.append(",\"errors\":").append(this.errors);
+	    line.append(",\"warnings\":").append(this.warnings);
+	    for (final TaskEvent.Kind kind : JavaCompileReport.PHASES) {
+		final Long nanos = this.phaseNanos.get(kind);
+		line.append(",\"").append(kind.name().toLowerCase(Locale.ROOT)).append("Ms\":").append(nanos == null
+			? 0
+			: nanos / 1_000_000L);
+	    }
+	    JavaCompileReport.this.writer.write(line.append('}').toString());
+
+	    for (final Map.Entry<String, Long> entry : this.fileNanos.entrySet()) {
+		final long millis = entry.getValue() / 1_000_000L;
+		final StringBuilder fileLine = JavaCompileReport.start("file", projectName);
+		fileLine.append(",\"file\":");
+		JavaCompileReport.quote(fileLine, entry.getKey());
+		fileLine.append(",\"ms\":").append(millis);
+		JavaCompileReport.this.writer.write(fileLine.append('}').toString());
+		synchronized (JavaCompileReport.this.fileMillis) {
+		    JavaCompileReport.this.fileMillis.merge(entry.getKey(), millis, Long::sum);
+		}
+	    }
+
+	    if (this.project != null) {
+		synchronized (this.project) {
+		    ++this.project.batches;
+		    this.project.files += this.files;
+		    this.project.errors += this.errors;
+		    this.project.warnings += this.warnings;
+		}
+	    }
+	}
+
+	@Override
+	public void report(final Diagnostic<? extends JavaFileObject> d) {
+	    final Diagnostic.Kind kind = d.getKind();
+	    if (kind == Diagnostic.Kind.ERROR) {
+		++this.errors;
+	    } else if (kind == Diagnostic.Kind.WARNING || kind == Diagnostic.Kind.MANDATORY_WARNING) {
+		++this.warnings;
+	    }
+	    if (kind != Diagnostic.Kind.NOTE && kind != Diagnostic.Kind.OTHER) {
+		final StringBuilder line = JavaCompileReport.start("diagnostic", this.project == null
+			? null
+			: this.project.name);
+		line.append(",\"kind\":");
+		JavaCompileReport.quote(line, kind.name());
+		line.append(",\"file\":");
+		JavaCompileReport.quote(line, d.getSource() == null
+			? null
+			: d.getSource().getName());
+		line.append(",\"line\":").append(d.getLineNumber());
+		line.append(",\"column\":").append(d.getColumnNumber());
+		line.append(",\"code\":");
+		JavaCompileReport.quote(line, d.getCode());
+		line.append(",\"message\":");
+		JavaCompileReport.quote(line, d.getMessage(Locale.ROOT));
+		JavaCompileReport.this.writer.write(line.append('}').toString());
+	    }
+	    this.next.report(d);
+	}
+
+	@Override
+	public void started(final TaskEvent e) {
+	    final long now = System.nanoTime();
+	    final TaskEvent.Kind kind = e.getKind();
+	    final Frame outer = this.frames.peek();
+	    if (kind == TaskEvent.Kind.ENTER && outer != null && outer.kind == TaskEvent.Kind.ENTER) {
+		++outer.count;
+		return;
+	    }
+	    if (outer != null) {
+		this.account(outer, now);
+	    }
+	    this.frames.push(new Frame(kind, kind == TaskEvent.Kind.ENTER
+		    ? null
+		    : Batch.getFile(e), now));
+	}
+    }
+
+    static final class ProjectRecord {
+	final String name;
+
+	int sources;
+
+	int batches;
+
+	int files;
+
+	int errors;
+
+	int warnings;
+
+	long wallMillis;
+
+	long cpuMillis;
+
+	ProjectRecord(final String name) {
+	    this.name = name;
+	}
+    }
+
+    private static final TaskEvent.Kind[] PHASES = { //
+	    TaskEvent.Kind.PARSE, //
+	    TaskEvent.Kind.ENTER, //
+	    TaskEvent.Kind.ANALYZE, //
+	    TaskEvent.Kind.GENERATE, //
+    };
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return nanoseconds, 0 when not supported
+     */
+    static long getCpuTime() {
+	return JavaCompileReport.THREADS.isCurrentThreadCpuTimeSupported()
+		? JavaCompileReport.THREADS.getCurrentThreadCpuTime()
+		: 0;
+    }
+
+    static void quote(final StringBuilder builder, final String value) {
+	if (value == null) {
+	    builder.append("null");
+	    return;
+	}
+	builder.append('"');
+	for (int i = 0; i < value.length(); ++i) {
+	    final char c = value.charAt(i);
+	    switch (c) {
+	    case '"':
+		builder.append("\\\"");
+		break;
+	    case '\\':
+		builder.append("\\\\");
+		break;
+	    case '\n':
+		builder.append("\\n");
+		break;
+	    case '\r':
+		builder.append("\\r");
+		break;
+	    case '\t':
+		builder.append("\\t");
+		break;
+	    default:
+		if (c < 0x20) {
+		    builder.append(String.format("\\u%04x", (int) c));
+		} else {
+		    builder.append(c);
+		}
+	    }
+	}
+	builder.append('"');
+    }
+
+    private static StringBuilder start(final String type, final String project) {
+	final StringBuilder line = new StringBuilder(256);
+	line.append("{\"type\":\"").append(type).append("\",\"time\":").append(System.currentTimeMillis());
+	line.append(",\"project\":");
+	JavaCompileReport.quote(line, project);
+	return line;
+    }
+
+    private final AsyncLogWriter writer;
+
+    private final Map<String, ProjectRecord> projects = new LinkedHashMap<>();
+
+    /**
+     * source file -> milliseconds, all batches
+     */
+    private final Map<String, Long> fileMillis = new HashMap<>();
+
+    JavaCompileReport(final Path file) {
+	this.writer = new AsyncLogWriter(file, 64L * 1024 * 1024, 3);
+	this.writer.write(JavaCompileReport.start("run", null).append('}').toString());
+    }
+
+    Batch batch(final ProjectRecord project, final int files, final DiagnosticListener<? super JavaFileObject> next) {
+	return new Batch(project, files, next);
+    }
+
+    @Override
+    public void close() {
+	this.writer.close();
+    }
+
+    /**
+     * Record to pass to batches of the project, see
+     * {@link #projectFinished}.
+     */
+    ProjectRecord project(final String name) {
+	final ProjectRecord record = new ProjectRecord(name);
+	synchronized (this.projects) {
+	    this.projects.put(name, record);
+	}
+	return record;
+    }
+
+    /**
+     * Writes the 'project' record.
+     */
+    void projectFinished(final ProjectRecord project, final boolean result, final long wallNanos,
+	    final long cpuNanos) {
+	final StringBuilder line = JavaCompileReport.start("project", project.name);
+	synchronized (project) {
+	    project.wallMillis = wallNanos / 1_000_000L;
+	    project.cpuMillis = cpuNanos / 1_000_000L;
+	    line.append(",\"sources\":").append(project.sources);
+	    line.append(",\"compiled\":").append(project.files);
+	    line.append(",\"batches\":").append(project.batches);
+	    line.append(",\"result\":").append(result);
+	    line.append(",\"wallMs\":").append(project.wallMillis);
+	    line.append(",\"cpuMs\":").append(project.cpuMillis);
+	    line.append(",\"errors\":").append(project.errors);
+	    line.append(",\"warnings\":").append(project.warnings);
+	}
+	this.writer.write(line.append('}').toString());
+    }
+
+    /**
+     * @return projects, slowest first
+     */
+    List<ProjectRecord> getProjects() {
+	final List<ProjectRecord> result;
+	synchronized (this.projects) {
+	    result = new ArrayList<>(this.projects.values());
+	}
+	result.sort((a, b) -> Long.compare(b.wallMillis, a.wallMillis));
+	return result;
+    }
+
+    /**
+     * @return source file -> milliseconds, slowest first
+     */
+    List<Map.Entry<String, Long>> getFiles() {
+	final List<Map.Entry<String, Long>> result;
+	synchronized (this.fileMillis) {
+	    result = new ArrayList<>(this.fileMillis.entrySet());
+	}
+	result.sort(Map.Entry.<String, Long> comparingByValue().reversed());
+	return result;
+    }
+}
@@ -0,0 +1,337 @@
+package ru.myx.distro.prepare;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compiles projects along 'Requires' of projects: a project starts when all
+ * its providers are compiled, up to {@link MakeCompileJava#threads} projects
+ * at once. Projects requiring each other (a cycle) are compiled one after
+ * another as one task. When a task fails, tasks depending on it are skipped.
+ * The longest chain of tasks (critical path) is reported at the end.
+ *
+ * @author myx
+ *
+ */
+final class JavaCompileScheduler {
+
+    private static final class Task {
+	/**
+	 * More than one for a cycle
+	 */
+	final List<Project> projects = new ArrayList<>();
+
+	final Set<Task> providers = new HashSet<>();
+
+	final Set<Task> dependents = new HashSet<>();
+
+	final String name;
+
+	int waiting;
+
+	/**
+	 * Tasks depending on this one, directly or not, started first
+	 */
+	int weight;
+
+	boolean failed = false;
+
+	boolean skipped = false;
+
+	Throwable error = null;
+
+	long millis;
+
+	/**
+	 * Provider on the longest chain ending with this task
+	 */
+	Task critical;
+
+	long criticalMillis;
+
+	Task(final String name) {
+	    this.name = name;
+	}
+    }
+
+    private final Distro distro;
+
+    private final MakeCompileJava javaCompiler;
+
+    JavaCompileScheduler(final Distro distro, final MakeCompileJava javaCompiler) {
+	this.distro = distro;
+	this.javaCompiler = javaCompiler;
+    }
+
+    private List<Task> buildTasks(final Collection<Project> projects) {
+	final Set<Project> included = new HashSet<>(projects);
+	final Map<Project, Set<Project>> providers = new HashMap<>();
+	for (final Project project : projects) {
+	    final Set<Project> set = new LinkedHashSet<>();
+	    for (final OptionListItem requires : project.getRequires()) {
+		final Set<Project> provided = this.distro.getProvides(requires);
+		if (provided == null) {
+		    // unknown items are reported by sequence calculation
+		    continue;
+		}
+		for (final Project provider : provided) {
+		    if (provider != project && included.contains(provider)) {
+			set.add(provider);
+		    }
+		}
+	    }
+	    providers.put(project, set);
+	}
+
+	// strongly connected components (Tarjan), a component is a task
+	final Map<Project, Task> taskOf = new HashMap<>();
+	final List<Task> tasks = new ArrayList<>();
+	final Map<Project, Integer> index = new HashMap<>();
+	final Map<Project, Integer> lowLink = new HashMap<>();
+	final ArrayDeque<Project> stack = new ArrayDeque<>();
+	final Set<Project> onStack = new HashSet<>();
+	for (final Project project : projects) {
+	    if (!index.containsKey(project)) {
+		this.connect(project, providers, index, lowLink, stack, onStack, taskOf, tasks);
+	    }
+	}
+
+	for (final Map.Entry<Project, Set<Project>> entry : providers.entrySet()) {
+	    final Task task = taskOf.get(entry.getKey());
+	    for (final Project provider : entry.getValue()) {
+		final Task providerTask = taskOf.get(provider);
+		if (providerTask != task) {
+		    task.providers.add(providerTask);
+		    providerTask.dependents.add(task);
+		}
+	    }
+	}
+	for (final Task task : tasks) {
+	    task.waiting = task.providers.size();
+	    final Set<Task> reached = new HashSet<>();
+	    final ArrayDeque<Task> queue = new ArrayDeque<>(task.dependents);
+	    for (Task next; (next = queue.poll()) != null;) {
+		if (reached.add(next)) {
+		    queue.addAll(next.dependents);
+		}
+	    }
+	    task.weight = reached.size();
+	}
+	return tasks;
+    }
+
+    /**
+     * @return true when all projects are compiled without errors
+     */
+    boolean compile(final Collection<Project> projects) throws Exception {
+	final List<Task> tasks = this.buildTasks(projects);
+	final int threads = Math.max(1, this.javaCompiler.threads);
+
+	this.javaCompiler.log("RUN: Scheduler, projects: " + projects.size() + ", tasks: " + tasks.size()
+		+ ", threads: " + threads);
+
+	final PriorityQueue<Task> ready = new PriorityQueue<>((a, b) -> {
+	    final int weight = Integer.compare(b.weight, a.weight);
+	    return weight != 0
+		    ? weight
+		    : a.name.compareTo(b.name);
+	});
+	for (final Task task : tasks) {
+	    if (task.waiting == 0) {
+		ready.add(task);
+	    }
+	}
+
+	final long started = System.nanoTime();
+	final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+	    final Thread thread = new Thread(runnable, "compile");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	final CompletionService<Task> completion = new ExecutorCompletionService<>(executor);
+	final List<Task> failed = new ArrayList<>();
+	Throwable error = null;
+	try {
+	    int running = 0;
+	    for (;;) {
+		while (running < threads && !ready.isEmpty()) {
+		    final Task task = ready.poll();
+		    completion.submit(() -> this.run(task));
+		    ++running;
+		}
+		if (running == 0) {
+		    break;
+		}
+		// run() catches everything, failures are in the task
+		final Task task = completion.take().get();
+		--running;
+		if (task.failed) {
+		    failed.add(task);
+		    if (error == null && task.error != null) {
+			error = task.error;
+		    }
+		}
+		this.complete(task, ready, failed);
+	    }
+	} finally {
+	    executor.shutdownNow();
+	}
+
+	this.report(tasks, failed, (System.nanoTime() - started) / 1_000_000L);
+
+	if (error != null) {
+	    if (error instanceof Exception) {
+		throw (Exception) error;
+	    }
+	    throw new RuntimeException(error);
+	}
+	return failed.isEmpty();
+    }
+
+    /**
+     * Provider tasks are done, starts or skips dependents that are ready.
+     */
+    private void complete(final Task task, final PriorityQueue<Task> ready, final List<Task> failed) {
+	final ArrayDeque<Task> done = new ArrayDeque<>();
+	done.add(task);
+	for (Task current; (current = done.poll()) != null;) {
+	    for (final Task dependent : current.dependents) {
+		if (--dependent.waiting != 0) {
+		    continue;
+		}
+		boolean blocked = false;
+		long criticalMillis = -1;
+		for (final Task provider : dependent.providers) {
+		    blocked |= provider.failed || provider.skipped;
+		    if (provider.criticalMillis > criticalMillis) {
+			criticalMillis = provider.criticalMillis;
+			dependent.critical = provider;
+		    }
+		}
+		if (blocked) {
+		    dependent.skipped = true;
+		    failed.add(dependent);
+		    this.javaCompiler.log("RUN: Scheduler, skipped: " + dependent.name);
+		    done.add(dependent);
+		} else {
+		    ready.add(dependent);
+		}
+	    }
+	}
+    }
+
+    private void connect(final Project project, final Map<Project, Set<Project>> providers,
+	    final Map<Project, Integer> index, final Map<Project, Integer> lowLink, final ArrayDeque<Project> stack,
+	    final Set<Project> onStack, final Map<Project, Task> taskOf, final List<Task> tasks) {
+	index.put(project, index.size());
+	lowLink.put(project, index.get(project));
+	stack.push(project);
+	onStack.add(project);
+	for (final Project provider : providers.get(project)) {
+	    if (!index.containsKey(provider)) {
+		this.connect(provider, providers, index, lowLink, stack, onStack, taskOf, tasks);
+		lowLink.put(project, Math.min(lowLink.get(project), lowLink.get(provider)));
+	    } else if (onStack.contains(provider)) {
+		lowLink.put(project, Math.min(lowLink.get(project), index.get(provider)));
+	    }
+	}
+	if (!lowLink.get(project).equals(index.get(project))) {
+	    return;
+	}
+	final List<Project> component = new ArrayList<>();
+	for (Project member;;) {
+	    member = stack.pop();
+	    onStack.remove(member);
+	    component.add(member);
+	    if (member == project) {
+		break;
+	    }
+	}
+	component.sort((a, b) -> a.getFullName().compareTo(b.getFullName()));
+	final StringBuilder name = new StringBuilder();
+	for (final Project member : component) {
+	    if (name.length() > 0) {
+		name.append(',');
+	    }
+	    name.append(member.getFullName());
+	}
+	final Task task = new Task(name.toString());
+	task.projects.addAll(component);
+	for (final Project member : component) {
+	    taskOf.put(member, task);
+	}
+	tasks.add(task);
+	if (component.size() > 1) {
+	    this.javaCompiler.log("RUN: Scheduler, cyclic requirements, compiled in sequence: " + task.name);
+	}
+    }
+
+    private void report(final List<Task> tasks, final List<Task> failed, final long wallMillis) {
+	Task last = null;
+	long total = 0;
+	for (final Task task : tasks) {
+	    total += task.millis;
+	    if (!task.skipped && (last == null || task.criticalMillis > last.criticalMillis)) {
+		last = task;
+	    }
+	}
+	final ArrayDeque<String> chain = new ArrayDeque<>();
+	for (Task task = last; task != null; task = task.critical) {
+	    chain.push(task.name + " (" + task.millis + "ms)");
+	}
+	final String path = String.join(" -> ", chain);
+
+	final String summary = "compile: tasks: " + tasks.size() + ", failed or skipped: " + failed.size()
+		+ ", wall: " + wallMillis + "ms, sum: " + total + "ms, critical path: " + (last == null
+			? 0
+			: last.criticalMillis)
+		+ "ms";
+	this.javaCompiler.log("RUN: Scheduler, " + summary);
+	this.javaCompiler.log("RUN: Scheduler, critical path: " + path);
+	for (final Task task : failed) {
+	    this.javaCompiler.log("RUN: Scheduler, " + (task.skipped
+		    ? "skipped: "
+		    : "failed: ") + task.name);
+	}
+	if (this.javaCompiler.console != null) {
+	    this.javaCompiler.console.outInfo(summary);
+	    this.javaCompiler.console.outInfo("critical path: " + path);
+	    for (final Task task : failed) {
+		if (!task.skipped) {
+		    this.javaCompiler.console.outError("compile failed: " + task.name);
+		}
+	    }
+	}
+    }
+
+    private Task run(final Task task) {
+	final long started = System.nanoTime();
+	try {
+	    for (final Project project : task.projects) {
+		if (!project.compileAllJavaSource(this.javaCompiler)) {
+		    task.failed = true;
+		}
+	    }
+	} catch (final Throwable e) {
+	    task.failed = true;
+	    task.error = e;
+	}
+	task.millis = (System.nanoTime() - started) / 1_000_000L;
+	task.criticalMillis = task.millis + (task.critical == null
+		? 0
+		: task.critical.criticalMillis);
+	return task;
+    }
+}
@@ -0,0 +1,357 @@
+package ru.myx.distro.prepare;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * Classes of one project compiled by {@link MakeCompileJava} in
+ * '--compile-to-jar' mode. javac output is kept in memory, later batches of
+ * the project see it in class path, and when the project is done it is
+ * written to 'java.jar' next to the output folder together with entries of
+ * the previous jar that are still valid, these are copied without
+ * recompression. Other files of the source folder (like 'META-INF/services'
+ * or '.properties') are written to the jar as well. The output folder gets
+ * class files only when exploded output is requested.
+ *
+ * @author myx
+ *
+ */
+final class JavaJarSession implements AutoCloseable {
+
+    final class MemoryClass extends SimpleJavaFileObject {
+	/**
+	 * Internal name
+	 */
+	final String name;
+
+	private byte[] bytes = null;
+
+	private long modified = 0;
+
+	MemoryClass(final String name) {
+	    super(URI.create("mem:///" + name + JavaFileObject.Kind.CLASS.extension), JavaFileObject.Kind.CLASS);
+	    this.name = name;
+	}
+
+	String getBinaryName() {
+	    return this.name.replace('/', '.');
+	}
+
+	byte[] getBytes() {
+	    return this.bytes;
+	}
+
+	@Override
+	public long getLastModified() {
+	    return this.modified;
+	}
+
+	@Override
+	public InputStream openInputStream() throws IOException {
+	    if (this.bytes == null) {
+		throw new IOException("class is not written yet: " + this.name);
+	    }
+	    return new ByteArrayInputStream(this.bytes);
+	}
+
+	@Override
+	public OutputStream openOutputStream() {
+	    return new ByteArrayOutputStream() {
+		@Override
+		public void close() throws IOException {
+		    MemoryClass.this.written(this.toByteArray());
+		}
+	    };
+	}
+
+	void written(final byte[] bytes) throws IOException {
+	    this.bytes = bytes;
+	    this.modified = System.currentTimeMillis();
+	    final Path explodedFolder = JavaJarSession.this.explodedFolder;
+	    if (explodedFolder != null) {
+		final Path file = explodedFolder.resolve(this.name + JavaFileObject.Kind.CLASS.extension);
+		Files.createDirectories(file.getParent());
+		Files.write(file, bytes);
+	    }
+	}
+    }
+
+    private final Path jarFile;
+
+    /**
+     * null when exploded output is not requested
+     */
+    private final Path explodedFolder;
+
+    /**
+     * Files other than sources and classes are resources, null when there are
+     * none
+     */
+    private final Path resourceFolder;
+
+    /**
+     * null when there is no previous jar or it is not valid
+     */
+    private final ZipFile previous;
+
+    /**
+     * internal name -> class
+     */
+    private final Map<String, MemoryClass> classes = new TreeMap<>();
+
+    /**
+     * Internal names of classes deleted, entries of the previous jar not to be
+     * used
+     */
+    private final Set<String> hidden = new HashSet<>();
+
+    private boolean changed = false;
+
+    /**
+     * ZipFile(File) is deprecated in later commons-compress, its builder is not
+     * available in versions still used at runtime.
+     */
+    @SuppressWarnings("deprecation")
+    private static ZipFile openZipFile(final Path file) throws IOException {
+	return new ZipFile(file.toFile());
+    }
+
+    /**
+     * @param resourceFolder
+     *            source folder, null when there are no resources
+     * @param reusePrevious
+     *            previous jar entries are kept unless hidden or replaced
+     */
+    JavaJarSession(final Path jarFile, final Path explodedFolder, final Path resourceFolder,
+	    final boolean reusePrevious) throws IOException {
+	this.jarFile = jarFile;
+	this.explodedFolder = explodedFolder;
+	this.resourceFolder = resourceFolder;
+	this.previous = reusePrevious && Files.isRegularFile(jarFile)
+		? JavaJarSession.openZipFile(jarFile)
+		: null;
+	if (this.previous == null) {
+	    // whole jar is written anew
+	    this.changed = true;
+	}
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (this.previous != null) {
+	    this.previous.close();
+	}
+    }
+
+    synchronized MemoryClass getClass(final String name) {
+	return this.classes.get(name);
+    }
+
+    synchronized void hide(final String name) {
+	this.classes.remove(name);
+	this.hidden.add(name);
+	this.changed = true;
+    }
+
+    /**
+     * @return true when the class is deleted or replaced by one in memory
+     */
+    synchronized boolean isOverridden(final String name) {
+	return this.hidden.contains(name) || this.classes.containsKey(name);
+    }
+
+    /**
+     * Classes of the package written so far, for class path listing.
+     *
+     * @param packageName
+     *            with dots
+     */
+    synchronized List<JavaFileObject> list(final String packageName) {
+	final String prefix = packageName.isEmpty()
+		? ""
+		: packageName.replace('.', '/') + '/';
+	final List<JavaFileObject> result = new ArrayList<>();
+	for (final MemoryClass memoryClass : this.classes.values()) {
+	    if (memoryClass.bytes != null && memoryClass.name.startsWith(prefix)
+		    && memoryClass.name.indexOf('/', prefix.length()) == -1) {
+		result.add(memoryClass);
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * New class for javac to write.
+     */
+    synchronized MemoryClass output(final String name) {
+	final MemoryClass memoryClass = new MemoryClass(name);
+	this.classes.put(name, memoryClass);
+	this.hidden.remove(name);
+	this.changed = true;
+	return memoryClass;
+    }
+
+    /**
+     * @return true when the entry of the previous jar has the same contents
+     */
+    private static boolean isSameContents(final ZipArchiveEntry entry, final Path file) throws IOException {
+	if (entry.getSize() != Files.size(file) || entry.getCrc() == -1) {
+	    return false;
+	}
+	final CRC32 crc = new CRC32();
+	try (final InputStream in = Files.newInputStream(file)) {
+	    final byte[] buffer = new byte[8192];
+	    for (int read; (read = in.read(buffer)) != -1;) {
+		crc.update(buffer, 0, read);
+	    }
+	}
+	return crc.getValue() == entry.getCrc();
+    }
+
+    /**
+     * Resources of the source folder: unchanged ones are entries of the
+     * previous jar, others are files.
+     *
+     * @return name -> entry or file
+     */
+    private Map<String, Object> getResources() throws IOException {
+	final Map<String, Object> resources = new TreeMap<>();
+	if (this.resourceFolder == null || !Files.isDirectory(this.resourceFolder)) {
+	    return resources;
+	}
+	final List<Path> files = new ArrayList<>();
+	try (final Stream<Path> stream = Files.walk(this.resourceFolder)) {
+	    stream.filter(Files::isRegularFile).forEach(files::add);
+	}
+	for (final Path file : files) {
+	    final String name = this.resourceFolder.relativize(file).toString().replace(File.separatorChar, '/');
+	    if (name.endsWith(JavaFileObject.Kind.SOURCE.extension) || name.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+		continue;
+	    }
+	    final ZipArchiveEntry entry = this.previous == null
+		    ? null
+		    : this.previous.getEntry(name);
+	    resources.put(name, entry != null && JavaJarSession.isSameContents(entry, file)
+		    ? entry
+		    : file);
+	}
+	return resources;
+    }
+
+    /**
+     * Writes the jar when anything has changed, classes or resources.
+     *
+     * @return true when written
+     */
+    synchronized boolean write() throws Exception {
+	final Map<String, Object> entries = this.getResources();
+	boolean changed = this.changed;
+	for (final Object value : entries.values()) {
+	    if (value instanceof Path) {
+		changed = true;
+		break;
+	    }
+	}
+	if (this.previous != null) {
+	    for (final Enumeration<ZipArchiveEntry> e = this.previous.getEntries(); e.hasMoreElements();) {
+		final ZipArchiveEntry entry = e.nextElement();
+		final String name = entry.getName();
+		if (!name.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+		    if (!entry.isDirectory() && !entries.containsKey(name)) {
+			// resource removed
+			changed = true;
+		    }
+		    continue;
+		}
+		final String className = name.substring(0, name.length() - JavaFileObject.Kind.CLASS.extension.length());
+		if (!this.isOverridden(className)) {
+		    entries.put(name, entry);
+		}
+	    }
+	}
+	if (!changed) {
+	    return false;
+	}
+	for (final MemoryClass memoryClass : this.classes.values()) {
+	    if (memoryClass.bytes != null) {
+		entries.put(memoryClass.name + JavaFileObject.Kind.CLASS.extension, memoryClass);
+	    }
+	}
+
+	final Path folder = this.jarFile.toAbsolutePath().getParent();
+	Files.createDirectories(folder);
+	// temp files are owner-only by default
+	final Path tempFile = folder.getFileSystem().supportedFileAttributeViews().contains("posix")
+		? Files.createTempFile(folder, "." + this.jarFile.getFileName() + ".", ".tmp",
+			PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")))
+		: Files.createTempFile(folder, "." + this.jarFile.getFileName() + ".", ".tmp");
+	try {
+	    try (final JarArchiveOutputStream jos = new JarArchiveOutputStream(Files.newOutputStream(tempFile))) {
+		jos.setLevel(9);
+		for (final Map.Entry<String, Object> record : entries.entrySet()) {
+		    final Object value = record.getValue();
+		    if (value instanceof ZipArchiveEntry) {
+			final ZipArchiveEntry entry = (ZipArchiveEntry) value;
+			try (final InputStream raw = this.previous.getRawInputStream(entry)) {
+			    jos.addRawArchiveEntry(entry, raw);
+			}
+			continue;
+		    }
+		    if (value instanceof Path) {
+			final Path file = (Path) value;
+			final JarArchiveEntry entry = new JarArchiveEntry(record.getKey());
+			entry.setSize(Files.size(file));
+			entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+			jos.putArchiveEntry(entry);
+			Files.copy(file, jos);
+			jos.closeArchiveEntry();
+			continue;
+		    }
+		    final MemoryClass memoryClass = (MemoryClass) value;
+		    final JarArchiveEntry entry = new JarArchiveEntry(record.getKey());
+		    entry.setSize(memoryClass.bytes.length);
+		    entry.setLastModifiedTime(FileTime.fromMillis(memoryClass.modified));
+		    jos.putArchiveEntry(entry);
+		    jos.write(memoryClass.bytes);
+		    jos.closeArchiveEntry();
+		}
+	    }
+	    if (this.previous != null) {
+		// windows would not replace an open file
+		this.previous.close();
+	    }
+	    Files.move(tempFile, this.jarFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    Files.deleteIfExists(tempFile);
+	}
+	this.changed = false;
+	return true;
+    }
+}
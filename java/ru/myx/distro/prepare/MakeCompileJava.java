@@ -1,29 +1,47 @@
 package ru.myx.distro.prepare;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.annotation.processing.Processor;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
-public class MakeCompileJava {
+import com.sun.source.util.JavacTask;
+
+import ru.myx.distro.Utils;
+
+public class MakeCompileJava implements AutoCloseable {
     final class DiagnosticOutput implements DiagnosticListener<JavaFileObject> {
 	private final MakeCompileJava compileLog;
 
@@ -34,7 +52,7 @@ public class MakeCompileJava {
 	}
 
 	@Override
-	public void report(final Diagnostic<? extends JavaFileObject> d) {
+	public synchronized void report(final Diagnostic<? extends JavaFileObject> d) {
 	    final Diagnostic.Kind kind = d.getKind();
 	    switch (kind) {
 	    case ERROR:
@@ -63,6 +81,17 @@ public class MakeCompileJava {
 	}
     }
 
+    private static final class FileManagerEntry {
+	final StandardJavaFileManager fileManager;
+
+	final int generation;
+
+	FileManagerEntry(final StandardJavaFileManager fileManager, final int generation) {
+	    this.fileManager = fileManager;
+	    this.generation = generation;
+	}
+    }
+
     static class OutputWriter extends Writer {
 	private final MakeCompileJava compileLog;
 
@@ -89,6 +118,21 @@ public class MakeCompileJava {
 
     }
 
+    private static String getRelativeName(final Path folder, final Path file) {
+	return folder.relativize(file.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @param javaFolder
+     *            'java' folder of a project in 'cached'
+     * @return true when the last compilation of the project has written its
+     *         classes to 'java.jar' next to the folder, so the folder is not to
+     *         be packed
+     */
+    public static boolean isCompiledToJar(final Path javaFolder) throws Exception {
+	return JavaCompileIndex.isJar(javaFolder.resolveSibling(JavaCompileIndex.FILE_NAME));
+    }
+
     public static void main(final String[] args) throws Exception {
 	if (args.length < 2) {
 	    System.err.println(MakeCompileJava.class.getSimpleName() + ": 'source-root' 'output-root'");
@@ -110,12 +154,62 @@ public class MakeCompileJava {
 	    return;
 	}
 
-	new MakeCompileJava(sourceRoot, outputRoot);
+	final MakeCompileJava compiler = new MakeCompileJava(sourceRoot, outputRoot);
+	compiler.close();
     }
 
+    /**
+     * internal name -> {@link JavaClassFile#apiHash}, "" when not found
+     */
+    private final Map<String, String> apiHashes = new ConcurrentHashMap<>();
+
+    /**
+     * internal name -> {@link JavaClassFile#supertypes}, set with
+     * {@link #apiHashes}
+     */
+    private final Map<String, List<String>> supertypes = new ConcurrentHashMap<>();
+
+    /**
+     * internal name -> API hash with API hashes of supertypes, "" when not
+     * found. Cleared when {@link #apiHashes} change.
+     */
+    private final Map<String, String> inheritedHashes = new ConcurrentHashMap<>();
+
+    /**
+     * index file -> {@link JavaCompileIndex#getConstantsDigest()}, of projects
+     * compiled by this run or read once
+     */
+    private final Map<Path, String> constantsDigests = new ConcurrentHashMap<>();
+
+    /**
+     * Jars opened by {@link #getApiHash}, closed when replaced
+     */
+    private final Map<Path, ZipFile> jarReaders = new HashMap<>();
+
+    /**
+     * File managers not in use, class path archives they have opened stay open
+     * and indexed
+     */
+    private final ArrayDeque<FileManagerEntry> fileManagers = new ArrayDeque<>();
+
+    /**
+     * Incremented when class path archives change
+     */
+    private int fileManagersGeneration = 0;
+
+    /**
+     * 'make-java-compile.report.jsonl' next to {@link #compileLog}
+     */
+    private final JavaCompileReport report;
+
     final List<File> classPaths = new ArrayList<>();
     final Path compileLog;
 
+    /**
+     * Keeps {@link #compileLog} open, rotates it at 64 MiB
+     */
+    private final AsyncLogWriter logWriter;
+
     final JavaCompiler compiler;
 
     final DiagnosticOutput diagnostics;
@@ -127,6 +221,29 @@ public class MakeCompileJava {
 
     boolean sourcesFromOutput = false;
 
+    /**
+     * Classes are kept in memory and written to 'java.jar' next to the target
+     * folder, see {@link JavaJarSession}
+     */
+    boolean compileToJar = false;
+
+    /**
+     * With {@link #compileToJar}, class files are written to the target folder
+     * as well
+     */
+    boolean writeExploded = false;
+
+    /**
+     * Projects compiled at once by {@link JavaCompileScheduler}
+     */
+    int threads = 1;
+
+    /**
+     * Number of slowest projects and files printed on {@link #close()}, none
+     * when 0
+     */
+    int reportSlowest = 0;
+
     ConsoleOutput console = null;
 
     MakeCompileJava(final Path sourceRoot, final Path outputRoot) throws Exception {
@@ -136,6 +253,8 @@ public class MakeCompileJava {
 	this.compiler = ToolProvider.getSystemJavaCompiler();
 
 	this.compileLog = outputRoot.resolve("make-java-compile.log.txt");
+	this.logWriter = new AsyncLogWriter(this.compileLog, 64L * 1024 * 1024, 3);
+	this.report = new JavaCompileReport(outputRoot.resolve("make-java-compile.report.jsonl"));
 
 	this.diagnostics = new DiagnosticOutput(this);
 
@@ -158,16 +277,154 @@ public class MakeCompileJava {
 	}
     }
 
+    /**
+     * Closes file managers, logs compile times of projects, slowest first, and
+     * closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    this.invalidateClassPath();
+	    synchronized (this.jarReaders) {
+		for (final ZipFile reader : this.jarReaders.values()) {
+		    reader.close();
+		}
+		this.jarReaders.clear();
+	    }
+	    this.logProjectTimes();
+	} finally {
+	    this.report.close();
+	    this.logWriter.close();
+	}
+    }
+
+    private void logProjectTimes() {
+	final List<JavaCompileReport.ProjectRecord> projects = this.report.getProjects();
+	if (projects.isEmpty()) {
+	    return;
+	}
+	long total = 0;
+	long totalCpu = 0;
+	for (final JavaCompileReport.ProjectRecord project : projects) {
+	    total += project.wallMillis;
+	    totalCpu += project.cpuMillis;
+	}
+	this.log("RUN: Compile times, projects: " + projects.size() + ", total: " + total + "ms, cpu: " + totalCpu
+		+ "ms");
+	for (final JavaCompileReport.ProjectRecord project : projects) {
+	    this.log("      " + project.wallMillis + "ms " + project.name);
+	}
+	if (this.console == null) {
+	    return;
+	}
+	this.console.outDebug("compiled projects: ", projects.size(), ", ms: ", total, ", slowest: ",
+		projects.get(0).name, ", ms: ", projects.get(0).wallMillis);
+	if (this.reportSlowest <= 0) {
+	    return;
+	}
+	this.console.outInfo("slowest projects, wall ms / cpu ms / files compiled:");
+	for (final JavaCompileReport.ProjectRecord project : projects.subList(0,
+		Math.min(this.reportSlowest, projects.size()))) {
+	    this.console.outInfo(
+		    "  " + project.wallMillis + " / " + project.cpuMillis + " / " + project.files + "  " + project.name);
+	}
+	final List<Map.Entry<String, Long>> files = this.report.getFiles();
+	if (files.isEmpty()) {
+	    return;
+	}
+	this.console.outInfo("slowest source files, ms:");
+	for (final Map.Entry<String, Long> file : files.subList(0, Math.min(this.reportSlowest, files.size()))) {
+	    this.console.outInfo("  " + file.getValue() + "  " + file.getKey());
+	}
+    }
+
     boolean compileBatch(final Path targetPath, final Iterable<File> sourcePaths, final Iterable<File> fileNames)
 	    throws Exception {
-	boolean result = true;
-	try (final StandardJavaFileManager fileManager = this.compiler.getStandardFileManager(this.diagnostics, null,
-		StandardCharsets.UTF_8)) {
+	return this.compileBatch(targetPath, sourcePaths, fileNames, null, null, null);
+    }
+
+    /**
+     * One task for all files given, javac does not share symbols between tasks.
+     * The file manager is taken from ones left by previous batches.
+     *
+     * @param outputs
+     *            when not null, gets internal names of classes written with
+     *            paths of their sources
+     * @param project
+     *            report record to add the batch to, may be null
+     * @param session
+     *            when not null, classes are written to it and ones it has
+     *            replaced or deleted are not seen in class path
+     */
+    boolean compileBatch(final Path targetPath, final Iterable<File> sourcePaths, final Iterable<File> fileNames,
+	    final Map<String, Path> outputs, final JavaCompileReport.ProjectRecord project,
+	    final JavaJarSession session) throws Exception {
+	final FileManagerEntry entry = this.takeFileManager();
+	try {
+	    final StandardJavaFileManager fileManager = entry.fileManager;
+	    final JavaFileManager taskManager = outputs == null && session == null
+		    ? fileManager
+		    : new ForwardingJavaFileManager<JavaFileManager>(fileManager) {
+			@Override
+			public void close() {
+			    // shared, closed by MakeCompileJava
+			}
+
+			@Override
+			public JavaFileObject getJavaFileForOutput(final Location location, final String className,
+				final JavaFileObject.Kind kind, final FileObject sibling) throws IOException {
+			    if (kind == JavaFileObject.Kind.CLASS && sibling != null && outputs != null) {
+				synchronized (outputs) {
+				    outputs.put(className.replace('.', '/'), Paths.get(sibling.toUri()));
+				}
+			    }
+			    if (kind == JavaFileObject.Kind.CLASS && session != null) {
+				return session.output(className.replace('.', '/'));
+			    }
+			    return super.getJavaFileForOutput(location, className, kind, sibling);
+			}
+
+			@Override
+			public String inferBinaryName(final Location location, final JavaFileObject file) {
+			    if (file instanceof JavaJarSession.MemoryClass) {
+				return ((JavaJarSession.MemoryClass) file).getBinaryName();
+			    }
+			    return super.inferBinaryName(location, file);
+			}
+
+			@Override
+			public boolean isSameFile(final FileObject a, final FileObject b) {
+			    if (a instanceof JavaJarSession.MemoryClass || b instanceof JavaJarSession.MemoryClass) {
+				return a == b;
+			    }
+			    return super.isSameFile(a, b);
+			}
+
+			@Override
+			public Iterable<JavaFileObject> list(final Location location, final String packageName,
+				final Set<JavaFileObject.Kind> kinds, final boolean recurse) throws IOException {
+			    final Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+			    if (session == null || location != StandardLocation.CLASS_PATH
+				    || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+				return listed;
+			    }
+			    final List<JavaFileObject> result = new ArrayList<>();
+			    for (final JavaFileObject file : listed) {
+				if (file.getKind() != JavaFileObject.Kind.CLASS || !session
+					.isOverridden(super.inferBinaryName(location, file).replace('.', '/'))) {
+				    result.add(file);
+				}
+			    }
+			    result.addAll(session.list(packageName));
+			    return result;
+			}
+		    };
 
-	    fileManager.setLocation(StandardLocation.CLASS_PATH, this.classPaths);
 	    // fileManager.setLocation(StandardLocation.SOURCE_PATH,
 	    // this.sourcePaths);
 	    fileManager.setLocation(StandardLocation.SOURCE_PATH, sourcePaths);
+	    // must exist, even when classes are written to a session
+	    Files.createDirectories(targetPath);
 	    fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(targetPath.toFile()));
 
 	    this.log("RUN: Compiler Task   target-folder:" + targetPath);
@@ -186,110 +443,515 @@ public class MakeCompileJava {
 		    "-target", "8" //
 	    );
 
-	    boolean itemResult = true;
-	    if (true) {
-		final List<Processor> EMPTY_PROC = Collections.emptyList();
+	    final List<JavaFileObject> fileObjects = new ArrayList<>();
+	    for (final File file : fileNames) {
+		this.log("RUN: Compiler file: " + file);
 
-		final List<JavaFileObject> fileObjects = new ArrayList<>();
-		for (final Iterator<File> fileIterator = fileNames.iterator();;) {
+		for (final JavaFileObject fileObject : fileManager.getJavaFileObjects(file)) {
+		    fileObjects.add(fileObject);
+		}
+		System.err.print('+');
+	    }
 
-		    if (!fileIterator.hasNext() || fileObjects.size() >= 1024) {
+	    this.log("RUN: Compiler Flush: count: " + fileObjects.size());
 
-			this.log("RUN: Compiler Flush: count: " + fileObjects.size());
+	    if (fileObjects.isEmpty()) {
+		return true;
+	    }
 
-			if (fileObjects.size() > 0) {
-			    final JavaCompiler.CompilationTask compileTask = this.compiler.getTask(//
-				    new OutputWriter(this), //
-				    fileManager, //
-				    this.diagnostics, //
-				    options, //
-				    null, //
-				    fileObjects//
-			    );
+	    final JavaCompileReport.Batch batch = this.report.batch(project, fileObjects.size(), this.diagnostics);
+	    final JavaCompiler.CompilationTask compileTask = this.compiler.getTask(//
+		    new OutputWriter(this), //
+		    taskManager, //
+		    batch, //
+		    options, //
+		    null, //
+		    fileObjects//
+	    );
+	    if (compileTask instanceof JavacTask) {
+		((JavacTask) compileTask).addTaskListener(batch);
+	    }
 
-			    compileTask.setProcessors(EMPTY_PROC);
-			    itemResult = compileTask.call();
-			    System.err.print(itemResult ? 'o' : 'E');
-			    if (result && !itemResult) {
-				result = false;
-			    }
+	    compileTask.setProcessors(Collections.<Processor> emptyList());
+	    boolean result = false;
+	    try {
+		result = compileTask.call();
+	    } finally {
+		batch.finish(result);
+	    }
+	    System.err.print(result
+		    ? 'o'
+		    : 'E');
 
-			    this.log("RUN: Compiler flushed: count: " + fileObjects.size());
-			    fileObjects.clear();
-			}
+	    this.log("RUN: Compiler flushed: count: " + fileObjects.size());
+	    return result;
+	} finally {
+	    this.releaseFileManager(entry);
+	}
+    }
 
-			if (!fileIterator.hasNext()) {
-			    return result;
-			}
+    /**
+     * Compiles sources of a project folder that have changed since the last run
+     * and then, round by round, sources using classes whose API is not the same
+     * as when they were compiled, this includes classes of other projects in
+     * class path folders. Classes of removed sources and of sources to be
+     * recompiled are deleted first.
+     *
+     * All sources are compiled when there is no index yet, and when visible
+     * constants of a class change, since javac copies constant values and
+     * leaves no reference to their class. For the same reason all sources are
+     * compiled when constants of projects required have changed.
+     *
+     * @param providerIndexFiles
+     *            project name -> index file, of projects required, directly or
+     *            not
+     *
+     * With {@link #compileToJar} the previous 'java.jar' is updated instead of
+     * the target folder, an index of another mode makes all sources to be
+     * compiled.
+     */
+    boolean compileIncremental(final String projectName, final Path targetPath, final Path sourcePath,
+	    final List<File> fileNames, final Path indexFile, final Map<String, Path> providerIndexFiles)
+	    throws Exception {
+	final long started = System.nanoTime();
+	final long startedCpu = JavaCompileReport.getCpuTime();
+	final JavaCompileReport.ProjectRecord project = this.report.project(projectName);
+	project.sources = fileNames.size();
+	boolean result = false;
+	try {
+	    result = this.compileIncrementalImpl(project, targetPath, sourcePath, fileNames, indexFile,
+		    providerIndexFiles);
+	    return result;
+	} finally {
+	    final long nanos = System.nanoTime() - started;
+	    this.log("RUN: Project compiled: " + projectName + ", time: " + nanos / 1_000_000L + "ms");
+	    this.report.projectFinished(project, result, nanos, JavaCompileReport.getCpuTime() - startedCpu);
+	}
+    }
+
+    private boolean compileIncrementalImpl(final JavaCompileReport.ProjectRecord project, final Path targetPath,
+	    final Path sourcePath, final List<File> fileNames, final Path indexFile,
+	    final Map<String, Path> providerIndexFiles) throws Exception {
+	final JavaCompileIndex loaded = JavaCompileIndex.load(indexFile);
+	final boolean exploded = this.compileToJar && this.writeExploded;
+	final JavaCompileIndex previous = loaded == null || loaded.jar != this.compileToJar
+		|| loaded.exploded != exploded
+			? null
+			: loaded;
+	final JavaCompileIndex index = previous == null
+		? new JavaCompileIndex()
+		: previous;
+	index.jar = this.compileToJar;
+	index.exploded = exploded;
+
+	final String providersConstants = this.getProvidersConstants(providerIndexFiles);
+	final boolean compileAll = previous == null || !providersConstants.equals(previous.providersConstants);
+	if (previous != null && compileAll) {
+	    this.log("RUN: Incremental, constants of required projects changed: " + project.name);
+	}
+	index.providersConstants = providersConstants;
+
+	if (!this.compileToJar) {
+	    final boolean result = this.compileRounds(project, targetPath, sourcePath, fileNames, compileAll, index,
+		    null);
+	    this.saveIndex(index, indexFile);
+	    return result;
+	}
+	final Path jarFile = targetPath.resolveSibling(targetPath.getFileName() + ".jar");
+	try (final JavaJarSession session = new JavaJarSession(jarFile, exploded
+		? targetPath
+		: null, sourcePath, previous != null)) {
+	    final boolean result = this.compileRounds(project, targetPath, sourcePath, fileNames, compileAll, index,
+		    session);
+	    if (session.write()) {
+		this.log("RUN: Incremental, jar written: " + jarFile);
+		this.closeJarReader(jarFile);
+		this.invalidateClassPath();
+	    }
+	    this.saveIndex(index, indexFile);
+	    return result;
+	}
+    }
+
+    /**
+     * @param compileAll
+     *            all sources are compiled in the first round
+     */
+    private boolean compileRounds(final JavaCompileReport.ProjectRecord project, final Path targetPath,
+	    final Path sourcePath, final List<File> fileNames, final boolean compileAll,
+	    final JavaCompileIndex index, final JavaJarSession session) throws Exception {
+	final Path sourceFolder = sourcePath.toAbsolutePath().normalize();
+
+	final Map<String, File> files = new TreeMap<>();
+	for (final File file : fileNames) {
+	    files.put(MakeCompileJava.getRelativeName(sourceFolder, file.toPath()), file);
+	}
+
+	for (final Iterator<Map.Entry<String, JavaCompileIndex.Source>> iterator = index.sources.entrySet()
+		.iterator(); iterator.hasNext();) {
+	    final Map.Entry<String, JavaCompileIndex.Source> entry = iterator.next();
+	    if (!files.containsKey(entry.getKey())) {
+		this.log("RUN: Incremental, source removed: " + entry.getKey());
+		this.deleteClasses(targetPath, entry.getValue(), session);
+		iterator.remove();
+	    }
+	}
+
+	Set<String> dirty = new TreeSet<>();
+	for (final Map.Entry<String, File> entry : files.entrySet()) {
+	    final JavaCompileIndex.Source known = index.sources.get(entry.getKey());
+	    final File file = entry.getValue();
+	    if (compileAll || known == null || known.size != file.length()
+		    || known.modified != file.lastModified()) {
+		dirty.add(entry.getKey());
+	    }
+	}
+
+	boolean result = true;
+	boolean compiledAll = compileAll;
+	for (int round = 0;; ++round) {
+	    for (final Map.Entry<String, JavaCompileIndex.Source> entry : index.sources.entrySet()) {
+		if (dirty.contains(entry.getKey())) {
+		    continue;
+		}
+		for (final Map.Entry<String, String> reference : entry.getValue().references.entrySet()) {
+		    final String apiHash = this.getApiHash(targetPath, reference.getKey());
+		    if (!reference.getValue().equals(apiHash)) {
+			this.log("RUN: Incremental, source: " + entry.getKey() + ", api changed: " + reference.getKey());
+			dirty.add(entry.getKey());
+			break;
 		    }
+		}
+	    }
+	    if (dirty.isEmpty()) {
+		break;
+	    }
 
-		    final File file = fileIterator.next();
+	    this.log("RUN: Incremental, round: " + round + ", sources: " + dirty.size() + " of " + files.size());
 
-		    this.log("RUN: Compiler file: " + file);
+	    final List<File> compileFiles = new ArrayList<>(dirty.size());
+	    for (final String name : dirty) {
+		final JavaCompileIndex.Source known = index.sources.get(name);
+		if (known != null) {
+		    this.deleteClasses(targetPath, known, session);
+		}
+		compileFiles.add(files.get(name));
+	    }
 
-		    for (final JavaFileObject fileObject : fileManager.getJavaFileObjects(file)) {
-			fileObjects.add(fileObject);
+	    final Map<String, Path> outputs = new TreeMap<>();
+	    final boolean compiled = this.compileBatch(targetPath, Arrays.asList(sourcePath.toFile()), compileFiles,
+		    outputs, project, session);
+	    final Map<String, JavaClassFile> classFiles = new TreeMap<>();
+	    for (final String name : outputs.keySet()) {
+		final JavaJarSession.MemoryClass memoryClass = session == null
+			? null
+			: session.getClass(name);
+		final JavaClassFile classFile;
+		if (memoryClass == null) {
+		    final Path file = targetPath.resolve(name + ".class");
+		    if (!Files.isRegularFile(file)) {
+			this.apiHashes.remove(name);
+			this.supertypes.remove(name);
+			continue;
+		    }
+		    classFile = JavaClassFile.read(file);
+		} else {
+		    if (memoryClass.getBytes() == null) {
+			continue;
 		    }
-		    System.err.print('+');
+		    classFile = JavaClassFile.read(new ByteArrayInputStream(memoryClass.getBytes()));
 		}
+		classFiles.put(name, classFile);
+		this.apiHashes.put(name, classFile.apiHash);
+		this.supertypes.put(name, classFile.supertypes);
+	    }
+	    this.inheritedHashes.clear();
+
+	    final Map<String, JavaCompileIndex.Source> updated = new TreeMap<>();
+	    for (final String name : dirty) {
+		final File file = files.get(name);
+		updated.put(name, compiled
+			? new JavaCompileIndex.Source(file.length(), file.lastModified())
+			: new JavaCompileIndex.Source(-1, -1));
 	    }
-	    if (true) {
-		final Iterable<? extends JavaFileObject> fileObjects = fileManager
-			.getJavaFileObjectsFromFiles(fileNames);
-
-		final JavaCompiler.CompilationTask compileTask = this.compiler.getTask(//
-			null, //
-			fileManager, //
-			this.diagnostics, //
-			options, //
-			null, //
-			fileObjects//
-		);
-
-		itemResult = compileTask.call();
-		if (result && !itemResult) {
-		    result = false;
+	    boolean constantsChanged = false;
+	    for (final Map.Entry<String, Path> output : outputs.entrySet()) {
+		final Path sourceFile = output.getValue().toAbsolutePath().normalize();
+		if (!sourceFile.startsWith(sourceFolder)) {
+		    continue;
+		}
+		final String name = MakeCompileJava.getRelativeName(sourceFolder, sourceFile);
+		final File file = files.get(name);
+		if (file == null) {
+		    continue;
+		}
+		JavaCompileIndex.Source source = updated.get(name);
+		if (source == null) {
+		    // compiled implicitly
+		    source = new JavaCompileIndex.Source(file.length(), file.lastModified());
+		    updated.put(name, source);
+		}
+		final String className = output.getKey();
+		final JavaClassFile classFile = classFiles.get(className);
+		if (classFile == null) {
+		    continue;
+		}
+		source.classes.put(className, classFile.constantsHash);
+		final JavaCompileIndex.Source known = index.sources.get(name);
+		final String knownConstants = known == null
+			? null
+			: known.classes.get(className);
+		if (knownConstants != null && !knownConstants.equals(classFile.constantsHash)) {
+		    this.log("RUN: Incremental, constants changed: " + className);
+		    constantsChanged = true;
+		}
+		for (final String reference : classFile.references) {
+		    final String apiHash = this.getApiHash(targetPath, reference);
+		    if (apiHash != null) {
+			source.references.put(reference, apiHash);
+		    }
 		}
-		return result;
 	    }
-	    for (final File file : fileNames) {
-		final Iterable<? extends JavaFileObject> fileObjects = fileManager
-			.getJavaFileObjectsFromFiles(Arrays.asList(file));
-
-		final JavaCompiler.CompilationTask compileTask = this.compiler.getTask(//
-			null, //
-			fileManager, //
-			this.diagnostics, //
-			options, //
-			null, //
-			fileObjects//
-		);
-
-		itemResult = compileTask.call();
-		if (result && !itemResult) {
-		    result = false;
+	    for (final JavaCompileIndex.Source source : updated.values()) {
+		source.references.keySet().removeAll(source.classes.keySet());
+	    }
+	    index.sources.putAll(updated);
+
+	    if (!compiled) {
+		// sources are marked, next run starts over from them
+		result = false;
+		break;
+	    }
+
+	    dirty = new TreeSet<>();
+	    if (constantsChanged && !compiledAll) {
+		compiledAll = true;
+		dirty.addAll(files.keySet());
+		dirty.removeAll(updated.keySet());
+	    }
+	}
+
+	return result;
+    }
+
+    private void closeJarReader(final Path jarFile) throws IOException {
+	final ZipFile reader;
+	synchronized (this.jarReaders) {
+	    reader = this.jarReaders.remove(jarFile.toAbsolutePath().normalize());
+	}
+	if (reader != null) {
+	    reader.close();
+	}
+    }
+
+    private void deleteClasses(final Path targetPath, final JavaCompileIndex.Source source,
+	    final JavaJarSession session) throws Exception {
+	for (final String name : source.classes.keySet()) {
+	    Files.deleteIfExists(targetPath.resolve(name + ".class"));
+	    this.supertypes.remove(name);
+	    if (session == null) {
+		this.apiHashes.remove(name);
+	    } else {
+		// the previous jar still has it
+		session.hide(name);
+		this.apiHashes.put(name, "");
+	    }
+	}
+	this.inheritedHashes.clear();
+    }
+
+    /**
+     * @return class path folders, each one preceded by the 'java.jar' next to
+     *         it in {@link #compileToJar} mode
+     */
+    private List<File> getClassPath() {
+	if (!this.compileToJar) {
+	    return this.classPaths;
+	}
+	final List<File> result = new ArrayList<>(this.classPaths.size() * 2);
+	for (final File classPath : this.classPaths) {
+	    result.add(new File(classPath.getPath() + ".jar"));
+	    result.add(classPath);
+	}
+	return result;
+    }
+
+    /**
+     * Makes file managers in use to be closed when released and idle ones
+     * closed now, call when archives in class path are replaced.
+     */
+    void invalidateClassPath() throws IOException {
+	synchronized (this.fileManagers) {
+	    for (final FileManagerEntry entry : this.fileManagers) {
+		entry.fileManager.close();
+	    }
+	    this.fileManagers.clear();
+	    ++this.fileManagersGeneration;
+	}
+    }
+
+    /**
+     * A class compiled against a subclass (javac records methods and fields
+     * inherited on the subclass) depends on supertypes of it as well, so API
+     * hashes of supertypes are folded in, all the way up.
+     *
+     * @return API hash of the class with its supertypes, null when there is
+     *         no such class
+     */
+    private String getApiHash(final Path targetPath, final String name) throws Exception {
+	return this.getApiHash(targetPath, name, 0);
+    }
+
+    private String getApiHash(final Path targetPath, final String name, final int depth) throws Exception {
+	final String known = this.inheritedHashes.get(name);
+	if (known != null) {
+	    return known.isEmpty()
+		    ? null
+		    : known;
+	}
+	if (depth > 256) {
+	    throw new IllegalStateException("class hierarchy is cyclic, class: " + name);
+	}
+	String inherited = "";
+	final String own = this.getOwnApiHash(targetPath, name);
+	if (own != null) {
+	    final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	    digest.update(own.getBytes(StandardCharsets.UTF_8));
+	    for (final String supertype : this.supertypes.getOrDefault(name, Collections.emptyList())) {
+		final String hash = this.getApiHash(targetPath, supertype, depth + 1);
+		digest.update((' ' + supertype + '=' + (hash == null
+			? ""
+			: hash)).getBytes(StandardCharsets.UTF_8));
+	    }
+	    inherited = Utils.toHex(digest.digest());
+	}
+	this.inheritedHashes.put(name, inherited);
+	return inherited.isEmpty()
+		? null
+		: inherited;
+    }
+
+    /**
+     * @return {@link JavaClassFile#apiHash} of the class from the target
+     *         folder or class path, null when there is no such class there
+     */
+    private String getOwnApiHash(final Path targetPath, final String name) throws Exception {
+	final String known = this.apiHashes.get(name);
+	if (known != null) {
+	    return known.isEmpty()
+		    ? null
+		    : known;
+	}
+	JavaClassFile classFile = null;
+	search: {
+	    final Path own = targetPath.resolve(name + ".class");
+	    // in jar mode the folder may have classes of another mode
+	    if (!this.compileToJar && Files.isRegularFile(own)) {
+		classFile = JavaClassFile.read(own);
+		break search;
+	    }
+	    for (final File classPath : this.getClassPath()) {
+		if (classPath.isFile()) {
+		    final byte[] bytes = this.readJarEntry(classPath.toPath(), name + ".class");
+		    if (bytes != null) {
+			classFile = JavaClassFile.read(new ByteArrayInputStream(bytes));
+			break search;
+		    }
+		    continue;
+		}
+		final File file = new File(classPath, name + ".class");
+		if (file.isFile()) {
+		    classFile = JavaClassFile.read(file.toPath());
+		    break search;
 		}
 	    }
-	    return result;
+	}
+	if (classFile == null) {
+	    this.apiHashes.put(name, "");
+	    return null;
+	}
+	this.supertypes.put(name, classFile.supertypes);
+	this.apiHashes.put(name, classFile.apiHash);
+	return classFile.apiHash;
+    }
+
+    /**
+     * @return null when there is no such entry
+     */
+    private byte[] readJarEntry(final Path jarFile, final String entryName) throws IOException {
+	final Path key = jarFile.toAbsolutePath().normalize();
+	synchronized (this.jarReaders) {
+	    ZipFile reader = this.jarReaders.get(key);
+	    if (reader == null) {
+		reader = new ZipFile(key.toFile());
+		this.jarReaders.put(key, reader);
+	    }
+	    final ZipEntry entry = reader.getEntry(entryName);
+	    if (entry == null) {
+		return null;
+	    }
+	    try (final InputStream in = reader.getInputStream(entry)) {
+		return in.readAllBytes();
+	    }
 	}
     }
 
+    /**
+     * @return hash of {@link JavaCompileIndex#getConstantsDigest()} of the
+     *         projects
+     */
+    private String getProvidersConstants(final Map<String, Path> providerIndexFiles) throws Exception {
+	final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	for (final Map.Entry<String, Path> provider : new TreeMap<>(providerIndexFiles).entrySet()) {
+	    final Path indexFile = provider.getValue().toAbsolutePath().normalize();
+	    String known = this.constantsDigests.get(indexFile);
+	    if (known == null) {
+		final JavaCompileIndex index = JavaCompileIndex.load(indexFile);
+		known = index == null
+			? ""
+			: index.getConstantsDigest();
+		this.constantsDigests.put(indexFile, known);
+	    }
+	    digest.update((provider.getKey() + '=' + known + '\n').getBytes(StandardCharsets.UTF_8));
+	}
+	return Utils.toHex(digest.digest());
+    }
+
+    private void releaseFileManager(final FileManagerEntry entry) throws IOException {
+	synchronized (this.fileManagers) {
+	    if (entry.generation == this.fileManagersGeneration) {
+		this.fileManagers.push(entry);
+		return;
+	    }
+	}
+	entry.fileManager.close();
+    }
+
+    private void saveIndex(final JavaCompileIndex index, final Path indexFile) throws Exception {
+	index.save(this.console, indexFile);
+	this.constantsDigests.put(indexFile.toAbsolutePath().normalize(), index.getConstantsDigest());
+    }
+
+    private FileManagerEntry takeFileManager() throws IOException {
+	final int generation;
+	synchronized (this.fileManagers) {
+	    final FileManagerEntry entry = this.fileManagers.poll();
+	    if (entry != null) {
+		return entry;
+	    }
+	    generation = this.fileManagersGeneration;
+	}
+	final StandardJavaFileManager fileManager = this.compiler.getStandardFileManager(this.diagnostics, null,
+		StandardCharsets.UTF_8);
+	fileManager.setLocation(StandardLocation.CLASS_PATH, this.getClassPath());
+	return new FileManagerEntry(fileManager, generation);
+    }
+
     boolean log(final String message) {
 	if (this.compileLog == null) {
 	    return false;
 	}
-	final String x = System.currentTimeMillis() + ": " + message;
-	synchronized (this.compileLog) {
-	    try {
-		Files.write(this.compileLog, //
-			Arrays.asList(x), //
-			// message.getBytes(StandardCharsets.UTF_8), //
-			StandardOpenOption.APPEND, //
-			StandardOpenOption.CREATE);
-	    } catch (final IOException e) {
-		throw new RuntimeException(e);
-	    }
-	}
+	this.logWriter.write(System.currentTimeMillis() + ": " + message);
 	return true;
     }
 
@@ -32,13 +32,43 @@ public class MakeCompileSources extends AbstractDistroCommand {
 	    return true;
 	}, "--import-from-source");
 	AbstractCommand.registerOperation(operations, context -> {
-	    final MakeCompileJava javaCompiler = new MakeCompileJava(//
+	    if (!context.arguments.hasNext()) {
+		throw new IllegalArgumentException("number of threads is expected");
+	    }
+	    context.compileThreads = Integer.parseInt(context.arguments.next().trim());
+	    return true;
+	}, "--threads");
+	AbstractCommand.registerOperation(operations, context -> {
+	    if (!context.arguments.hasNext()) {
+		throw new IllegalArgumentException("number of projects is expected");
+	    }
+	    context.reportSlowest = Integer.parseInt(context.arguments.next().trim());
+	    return true;
+	}, "--report-slowest");
+	AbstractCommand.registerOperation(operations, context -> {
+	    context.compileToJar = true;
+	    return true;
+	}, "--compile-to-jar");
+	AbstractCommand.registerOperation(operations, context -> {
+	    context.writeExploded = true;
+	    return true;
+	}, "--write-exploded");
+	AbstractCommand.registerOperation(operations, context -> {
+	    try (final MakeCompileJava javaCompiler = new MakeCompileJava(//
 		    context.sourceRoot.normalize(), //
 		    context.outputRoot.normalize()//
-	    );
-	    javaCompiler.sourcesFromOutput = context.classesFromOutput;
-	    javaCompiler.console = context.console;
-	    context.repositories.compileAllJavaSource(javaCompiler);
+	    )) {
+		javaCompiler.sourcesFromOutput = context.classesFromOutput;
+		javaCompiler.threads = context.compileThreads;
+		javaCompiler.reportSlowest = context.reportSlowest;
+		javaCompiler.compileToJar = context.compileToJar;
+		javaCompiler.writeExploded = context.writeExploded;
+		javaCompiler.console = context.console;
+		if (!context.repositories.compileAllJavaSource(javaCompiler)) {
+		    context.okState = false;
+		    return false;
+		}
+	    }
 	    return true;
 	}, "--all");
 	AbstractCommand.registerOperation(operations, context -> {
@@ -48,17 +78,25 @@ public class MakeCompileSources extends AbstractDistroCommand {
 
 	    final String repositoryName = context.arguments.next();
 
-	    final MakeCompileJava javaCompiler = new MakeCompileJava(//
-		    context.sourceRoot.normalize(), //
-		    context.outputRoot.normalize()//
-	    );
-	    javaCompiler.sourcesFromOutput = context.classesFromOutput;
-	    javaCompiler.console = context.console;
 	    final Repository repo = context.repositories.getRepository(repositoryName);
 	    if (repo == null) {
 		throw new IllegalArgumentException("repository is unknown, name: " + repositoryName);
 	    }
-	    repo.compileAllJavaSource(javaCompiler);
+	    try (final MakeCompileJava javaCompiler = new MakeCompileJava(//
+		    context.sourceRoot.normalize(), //
+		    context.outputRoot.normalize()//
+	    )) {
+		javaCompiler.sourcesFromOutput = context.classesFromOutput;
+		javaCompiler.threads = context.compileThreads;
+		javaCompiler.reportSlowest = context.reportSlowest;
+		javaCompiler.compileToJar = context.compileToJar;
+		javaCompiler.writeExploded = context.writeExploded;
+		javaCompiler.console = context.console;
+		if (!repo.compileAllJavaSource(javaCompiler)) {
+		    context.okState = false;
+		    return false;
+		}
+	    }
 
 	    return true;
 	}, "--repository");
@@ -72,17 +110,25 @@ public class MakeCompileSources extends AbstractDistroCommand {
 	    context.doSelectProject(projectName);
 	    context.doSelectRequired();
 
-	    final MakeCompileJava javaCompiler = new MakeCompileJava(//
-		    context.sourceRoot.normalize(), //
-		    context.outputRoot.normalize()//
-	    );
-	    javaCompiler.sourcesFromOutput = context.classesFromOutput;
-	    javaCompiler.console = context.console;
 	    final Project proj = context.repositories.getProject(projectName);
 	    if (proj == null) {
 		throw new IllegalArgumentException("project is unknown, name: " + projectName);
 	    }
-	    proj.compileAllJavaSource(javaCompiler);
+	    try (final MakeCompileJava javaCompiler = new MakeCompileJava(//
+		    context.sourceRoot.normalize(), //
+		    context.outputRoot.normalize()//
+	    )) {
+		javaCompiler.sourcesFromOutput = context.classesFromOutput;
+		javaCompiler.threads = context.compileThreads;
+		javaCompiler.reportSlowest = context.reportSlowest;
+		javaCompiler.compileToJar = context.compileToJar;
+		javaCompiler.writeExploded = context.writeExploded;
+		javaCompiler.console = context.console;
+		if (!proj.compileAllJavaSource(javaCompiler)) {
+		    context.okState = false;
+		    return false;
+		}
+	    }
 
 	    return true;
 	}, "--project");
@@ -101,7 +147,9 @@ public class MakeCompileSources extends AbstractDistroCommand {
 	    return;
 	}
 
-	context.execute(context);
+	if (!context.execute(context)) {
+	    Runtime.getRuntime().exit(-1);
+	}
     }
 
     @Override
@@ -128,4 +176,23 @@ public class MakeCompileSources extends AbstractDistroCommand {
 
     protected boolean classesFromOutput = false;
 
+    /**
+     * Projects compiled at once by '--all' and '--repository'
+     */
+    protected int compileThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Slowest projects and source files to print after compiling, see
+     * 'make-java-compile.report.jsonl' for all of them
+     */
+    protected int reportSlowest = 0;
+
+    /**
+     * Classes go to 'java.jar' of a project without being written to its
+     * 'java' folder, unless {@link #writeExploded} is set as well
+     */
+    protected boolean compileToJar = false;
+
+    protected boolean writeExploded = false;
+
 }
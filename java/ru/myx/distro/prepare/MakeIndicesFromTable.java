@@ -0,0 +1,103 @@
+package ru.myx.distro.prepare;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import ru.myx.distro.OperationContext;
+import ru.myx.distro.Utils;
+
+/**
+ * Makes text index files from {@link DistroIndexTable}:
+ *
+ * <code>MakeIndicesFromTable 'table-file' 'output-folder'</code> writes all of
+ * them, like '--prepare-build-distro-index' does,
+ *
+ * <code>MakeIndicesFromTable 'table-file' --print 'file-name' ['repository' or
+ * 'repository/project']</code> prints one file of the distro, a repository or
+ * a project, like 'distro-index.env.inf', 'repository-provides.txt' or
+ * 'project-sequence.txt'.
+ *
+ * @author myx
+ *
+ */
+public final class MakeIndicesFromTable {
+
+    /**
+     *
+     * @param args
+     */
+    public static void main(final String[] args) throws Throwable {
+	final boolean print = args.length >= 3 && "--print".equals(args[1]);
+	if (args.length < 2 || args.length == 2 && "--print".equals(args[1]) || args.length > (print
+		? 4
+		: 2)) {
+	    System.err.println("MakeIndicesFromTable 'table-file' 'output-folder'");
+	    System.err.println("MakeIndicesFromTable 'table-file' --print 'file-name' ['repository' | 'repository/project']");
+	    Runtime.getRuntime().exit(-1);
+	    return;
+	}
+
+	final OperationContext context = new OperationContext();
+	context.console = new ConsoleOutput(true, false);
+
+	final Distro distro = new Distro();
+	if (!DistroIndexTable.load(context, distro, Paths.get(args[0]))) {
+	    System.err.println(MakeIndicesFromTable.class.getSimpleName() + ": index table is missing or unknown");
+	    Runtime.getRuntime().exit(-3);
+	    return;
+	}
+
+	if (!print) {
+	    final Path outputRoot = Paths.get(args[1]);
+	    Files.createDirectories(outputRoot);
+	    distro.buildPrepareDistroIndex(context, outputRoot, true, true);
+	    return;
+	}
+
+	final String name = args.length == 4
+		? args[3]
+		: null;
+	final Repository repository = name == null || name.indexOf('/') != -1
+		? null
+		: distro.getRepository(name);
+	final Project project = name == null || name.indexOf('/') == -1
+		? null
+		: distro.getProject(name);
+	if (name != null && repository == null && project == null) {
+	    System.err.println(MakeIndicesFromTable.class.getSimpleName() + ": repository or project is unknown: " + name);
+	    Runtime.getRuntime().exit(-4);
+	    return;
+	}
+
+	final byte[] contents;
+	final Path temp = Files.createTempDirectory("myx.distro-table");
+	try {
+	    if (project != null) {
+		project.buildPrepareDistroIndex(context, temp, true, true);
+	    } else if (repository != null) {
+		repository.buildPrepareDistroIndex(context, distro, temp, true);
+	    } else {
+		distro.buildPrepareDistroIndex(context, temp, false, true);
+	    }
+	    final Path file = temp.resolve(args[2]);
+	    contents = args[2].indexOf('/') == -1 && Files.isRegularFile(file)
+		    ? Files.readAllBytes(file)
+		    : null;
+	} finally {
+	    Utils.clearFolderContents(context.console, temp);
+	    Files.deleteIfExists(temp);
+	}
+	if (contents == null) {
+	    System.err.println(MakeIndicesFromTable.class.getSimpleName() + ": no such index file: " + args[2]);
+	    Runtime.getRuntime().exit(-4);
+	    return;
+	}
+	System.out.write(contents);
+	System.out.flush();
+    }
+
+    private MakeIndicesFromTable() {
+	//
+    }
+}
@@ -1,25 +1,78 @@
 package ru.myx.distro.prepare;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-public class OptionList extends LinkedHashSet<OptionListItem> {
+public class OptionList extends AbstractSet<OptionListItem> {
 
-    private static final long serialVersionUID = 4464004437970547444L;
+    /**
+     * Items by name, keys of items added with the same name are merged
+     */
+    private final Map<String, OptionListItem> byName = new LinkedHashMap<>();
+
+    /**
+     * null when items are kept as given
+     */
+    private final TokenDictionary tokens;
 
     public OptionList() {
+	this.tokens = null;
+    }
+
+    /**
+     * Items added are interned by the dictionary.
+     */
+    OptionList(final TokenDictionary tokens) {
+	this.tokens = tokens;
     }
 
     @Override
     public boolean add(final OptionListItem item) {
-	// final OptionListItem existing = this.floor(item);
-	for (OptionListItem existing : this) {
-	    if (existing != null && existing.getName().equals(item.getName())) {
-		return existing.keys.addAll(item.keys);
-	    }
+	if (this.tokens != null) {
+	    item.intern(this.tokens);
+	}
+	final OptionListItem existing = this.byName.putIfAbsent(item.getName(), item);
+	if (existing != null) {
+	    return existing.addKeys(item.keys);
+	}
+	return true;
+    }
+
+    @Override
+    public void clear() {
+	this.byName.clear();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+	if (!(o instanceof OptionListItem)) {
+	    return false;
 	}
-	return super.add(item);
+	final OptionListItem existing = this.byName.get(((OptionListItem) o).getName());
+	return existing != null && existing.equals(o);
+    }
+
+    @Override
+    public Iterator<OptionListItem> iterator() {
+	return this.byName.values().iterator();
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+	if (!this.contains(o)) {
+	    return false;
+	}
+	this.byName.remove(((OptionListItem) o).getName());
+	return true;
+    }
+
+    @Override
+    public int size() {
+	return this.byName.size();
     }
 
     @Override
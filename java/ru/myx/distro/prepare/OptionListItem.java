@@ -1,6 +1,7 @@
 package ru.myx.distro.prepare;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.StringTokenizer;
@@ -16,11 +17,16 @@ import java.util.StringTokenizer;
  *
  */
 public class OptionListItem implements Comparable<OptionListItem> {
+    /**
+     * Keys of items without keys, most of them, replaced when a key is added
+     */
+    private static final Collection<String> NO_KEYS = Collections.emptySet();
+
     String name;
     Collection<String> keys;
 
     public OptionListItem(final String listItemSpec) {
-	this.keys = new LinkedHashSet<>();
+	this.keys = OptionListItem.NO_KEYS;
 	final int pos = listItemSpec.indexOf(':');
 	if (pos == -1) {
 	    this.name = listItemSpec;
@@ -29,32 +35,50 @@ public class OptionListItem implements Comparable<OptionListItem> {
 	    final String listItemKeywords = listItemSpec.substring(pos + 1);
 	    final StringTokenizer st = new StringTokenizer(listItemKeywords, "|");
 	    for (; st.hasMoreTokens();) {
-		this.keys.add(st.nextToken().trim());
+		this.addKey(st.nextToken().trim());
 	    }
 	}
     }
 
     public OptionListItem(final String listItemName, final String listItemKeywords) {
-	this.keys = new LinkedHashSet<>();
+	this.keys = OptionListItem.NO_KEYS;
 	this.name = listItemName;
 	if (listItemKeywords != null) {
 	    final StringTokenizer st = new StringTokenizer(listItemKeywords, "|");
 	    for (; st.hasMoreTokens();) {
-		this.keys.add(st.nextToken().trim());
+		this.addKey(st.nextToken().trim());
 	    }
 	}
     }
 
     public OptionListItem(final String listItemName, final String... listItemKeywords) {
-	this.keys = new LinkedHashSet<>();
+	this.keys = OptionListItem.NO_KEYS;
 	this.name = listItemName;
 	if (listItemKeywords != null) {
 	    for (final String key : listItemKeywords) {
-		this.keys.add(key.trim());
+		this.addKey(key.trim());
 	    }
 	}
     }
 
+    private boolean addKey(final String key) {
+	if (this.keys == OptionListItem.NO_KEYS) {
+	    this.keys = new LinkedHashSet<>();
+	}
+	return this.keys.add(key);
+    }
+
+    /**
+     * Merges keys of an item with the same name.
+     */
+    boolean addKeys(final Collection<String> keys) {
+	boolean changed = false;
+	for (final String key : keys) {
+	    changed |= this.addKey(key);
+	}
+	return changed;
+    }
+
     @Override
     public int compareTo(final OptionListItem o) {
 	if (o == null) {
@@ -109,8 +133,24 @@ public class OptionListItem implements Comparable<OptionListItem> {
 	return this.keys.contains(key);
     }
 
+    /**
+     * Name and keys are replaced with instances kept by the dictionary.
+     */
+    void intern(final TokenDictionary tokens) {
+	this.name = tokens.intern(this.name);
+	if (this.keys.isEmpty()) {
+	    this.keys = OptionListItem.NO_KEYS;
+	    return;
+	}
+	final Collection<String> interned = new LinkedHashSet<>();
+	for (final String key : this.keys) {
+	    interned.add(tokens.intern(key));
+	}
+	this.keys = interned;
+    }
+
     public void resetKeys() {
-	this.keys.clear();
+	this.keys = OptionListItem.NO_KEYS;
     }
 
     public void fillList(final String prefix, final Collection<String> target) {
@@ -18,6 +18,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import ru.myx.distro.ClasspathBuilder;
 import ru.myx.distro.OperationContext;
@@ -80,6 +81,11 @@ public class Project {
 	try (final InputStream in = Files.newInputStream(infPath)) {
 	    info.load(in);
 	}
+	return Project.staticLoadFromLocalSource(console, repo, packageName, projectPath, info);
+    }
+
+    static Project staticLoadFromLocalSource(final ConsoleOutput console, final Repository repo,
+	    final String packageName, final Path projectPath, final Properties info) {
 	final String checkName = info.getProperty("Name", "").trim();
 	if (checkName.length() == 0) {
 	    // 'Name' is mandatory
@@ -118,18 +124,23 @@ public class Project {
 
     private final List<String> lstContains = new ArrayList<>();
 
-    private final OptionList lstDeclares = new OptionList();
+    private final OptionList lstDeclares;
 
-    private final OptionList lstKeywords = new OptionList();
+    private final OptionList lstKeywords;
 
-    private final OptionList lstProvides = new OptionList();
+    private final OptionList lstProvides;
 
-    private final OptionList lstRequires = new OptionList();
+    private final OptionList lstRequires;
 
-    private final OptionList lstAugments = new OptionList();
+    private final OptionList lstAugments;
 
     public final String name;
 
+    /**
+     * 'repository/name', used as a key a lot
+     */
+    private final String fullName;
+
     /**
      * Initialized only for projects loaded from local source
      */
@@ -138,8 +149,21 @@ public class Project {
     public final Repository repo;
 
     Project(final String name, final Properties info, final Repository repo) {
+	final TokenDictionary tokens = repo == null || repo.distro == null
+		? null
+		: repo.distro.tokens;
 	this.repo = repo;
-	this.name = name.trim();
+	this.name = tokens == null
+		? name.trim()
+		: tokens.intern(name.trim());
+	this.fullName = tokens == null
+		? this.repo.name + '/' + this.name
+		: tokens.intern(this.repo.name + '/' + this.name);
+	this.lstDeclares = new OptionList(tokens);
+	this.lstKeywords = new OptionList(tokens);
+	this.lstProvides = new OptionList(tokens);
+	this.lstRequires = new OptionList(tokens);
+	this.lstAugments = new OptionList(tokens);
 	this.lstDeclares.add(new OptionListItem(this.getFullName()));
 	this.lstKeywords.add(new OptionListItem(this.getName()));
 	this.lstProvides.add(new OptionListItem(this.getName()));
@@ -215,13 +239,26 @@ public class Project {
 
     public void buildPrepareCompileIndex(final OperationContext context, final Path projectOutput,
 	    final List<String> compileJava) throws Exception {
-	this.buildPrepareDistroIndex(context, projectOutput, false, false);
+	this.buildPrepareCompileIndex(context, projectOutput, compileJava, null);
+    }
 
-	Utils.save(//
-		context.console, //
-		projectOutput.resolve("project-classpath.txt"), //
-		this.buildPrepareCompileIndexMakeClasspath(new ClasspathBuilder())//
-	);
+    void buildPrepareCompileIndex(final OperationContext context, final Path projectOutput,
+	    final List<String> compileJava, final DistroIndexFingerprints fingerprints) throws Exception {
+	if (fingerprints == null) {
+	    this.buildPrepareDistroIndex(context, projectOutput, false, false);
+	} else {
+	    this.buildPrepareDistroIndex(context, projectOutput, false, fingerprints);
+	}
+
+	final Path classpathFile = projectOutput.resolve("project-classpath.txt");
+	final ClasspathBuilder classpath = this.buildPrepareCompileIndexMakeClasspath(new ClasspathBuilder());
+	final String classpathKey = "project-classpath " + this.getFullName();
+	if (fingerprints == null) {
+	    Utils.save(context.console, classpathFile, classpath);
+	} else if (fingerprints.checkLines(classpathKey, classpathFile, classpath)) {
+	    Utils.save(context.console, classpathFile, classpath);
+	    fingerprints.generatedLines(classpathKey, classpathFile, classpath);
+	}
 
 	if (this.projectSourceRoot == null) {
 	    return;
@@ -384,6 +421,36 @@ public class Project {
 	}
     }
 
+    /**
+     * Index files are generated only when the fingerprint of the project differs
+     * from the one they were generated for.
+     */
+    void buildPrepareDistroIndex(final OperationContext context, final Path packageOutput, final boolean full,
+	    final DistroIndexFingerprints fingerprints) throws Exception {
+	if (!fingerprints.checkProject(context, this, packageOutput, full)) {
+	    return;
+	}
+	this.buildPrepareDistroIndex(context, packageOutput, true, full);
+	fingerprints.generatedProject(context, this, packageOutput, full);
+    }
+
+    /**
+     * Everything the index files of the project are generated from, see
+     * {@link DistroIndexFingerprints}.
+     */
+    void buildPrepareDistroIndexFingerprint(final OperationContext context, final Consumer<String> target) {
+	target.accept(this.getFullName());
+	target.accept(this.lstDeclares.toString());
+	target.accept(this.lstKeywords.toString());
+	target.accept(this.lstAugments.toString());
+	target.accept(this.lstRequires.toString());
+	target.accept(this.lstProvides.toString());
+	target.accept(String.join(" ", this.lstContains));
+	for (final Project project : this.getBuildSequence(context)) {
+	    target.accept(project.getFullName());
+	}
+    }
+
     void buildPrepareDistroIndexFillProjectInfo(final OperationContext context, final Properties info)
 	    throws Exception {
 	info.setProperty("PRJ-DCL-" + this.getFullName(), //
@@ -501,7 +568,10 @@ public class Project {
 	return true;
     }
 
-    void compileAllJavaSource(final MakeCompileJava javaCompiler) throws Exception {
+    /**
+     * @return false when javac has reported errors
+     */
+    boolean compileAllJavaSource(final MakeCompileJava javaCompiler) throws Exception {
 
 	{
 	    final Path source = javaCompiler.sourceRoot.resolve(this.repo.name).resolve(this.name).resolve("jars");
@@ -526,6 +596,7 @@ public class Project {
 			}
 			Files.createDirectories(target.getParent());
 			Files.copy(path, target, StandardCopyOption.REPLACE_EXISTING);
+			javaCompiler.invalidateClassPath();
 			System.err.print("c");
 		    }
 		}
@@ -543,26 +614,75 @@ public class Project {
 	    }
 	    if (Files.isDirectory(source)) {
 		final List<File> fileNames = new ArrayList<>();
-		this.iterateJavaFiles(fileNames, source, null, target);
+		this.iterateJavaFiles(fileNames, source, null, null);
 
 		System.err.print("@");
 
-		javaCompiler.compileBatch(//
+		// projects required, directly or not: their constants may be
+		// copied into classes of this one
+		final Map<String, Path> providerIndexFiles = new TreeMap<>();
+		{
+		    final Set<Project> providers = new LinkedHashSet<>();
+		    final LinkedList<Project> queue = new LinkedList<>();
+		    queue.add(this);
+		    for (Project project; (project = queue.poll()) != null;) {
+			for (final OptionListItem requires : project.getRequires()) {
+			    final Set<Project> provides = this.repo.distro.getProvides(requires);
+			    if (provides == null) {
+				continue;
+			    }
+			    for (final Project provider : provides) {
+				if (provider != this && providers.add(provider)) {
+				    queue.add(provider);
+				}
+			    }
+			}
+		    }
+		    for (final Project provider : providers) {
+			providerIndexFiles.put(provider.repo.name + '/' + provider.name,
+				javaCompiler.outputRoot.resolve("cached").resolve(provider.repo.name)
+					.resolve(provider.name).resolve(JavaCompileIndex.FILE_NAME));
+		    }
+		}
+
+		final boolean result = javaCompiler.compileIncremental(//
+			this.repo.name + '/' + this.name, //
 			target, //
-			Arrays.asList(source.toFile()), //
-			fileNames);
+			source, //
+			fileNames, //
+			target.resolveSibling(JavaCompileIndex.FILE_NAME), //
+			providerIndexFiles);
 
 		{
 		    final Path distro = javaCompiler.outputRoot.resolve("distro").resolve(this.repo.name)
 			    .resolve(this.name).resolve("java");
 
+		    final List<Path> syncRoots = new ArrayList<>();
+		    if (!javaCompiler.compileToJar || javaCompiler.writeExploded || source == target) {
+			syncRoots.add(target);
+		    }
+		    if (source != target) {
+			syncRoots.add(source);
+		    }
 		    Utils.sync(javaCompiler.console, //
-			    source == target ? Arrays.asList(target) : Arrays.asList(target, source), //
+			    syncRoots, //
 			    distro//
 		    );
+		    if (javaCompiler.compileToJar) {
+			final Path jar = target.resolveSibling("java.jar");
+			final Path distroJar = distro.resolveSibling("java.jar");
+			if (Files.isRegularFile(jar) && (!Files.isRegularFile(distroJar) || Files
+				.getLastModifiedTime(distroJar).compareTo(Files.getLastModifiedTime(jar)) != 0)) {
+			    Files.createDirectories(distroJar.getParent());
+			    Files.copy(jar, distroJar, StandardCopyOption.REPLACE_EXISTING,
+				    StandardCopyOption.COPY_ATTRIBUTES);
+			}
+		    }
 		}
+		return result;
 	    }
 	}
+	return true;
     }
 
     @Override
@@ -595,13 +715,20 @@ public class Project {
     }
 
     public List<Project> getBuildSequence(final OperationContext context) {
+	if (this.repo != null && this.repo.distro != null) {
+	    return this.repo.distro.getBuildSequence(context, this);
+	}
 	final Map<String, Project> checked = new HashMap<>();
 	final List<Project> sequence = new ArrayList<>();
 	return this.buildCalculateSequence(context, sequence, checked);
     }
 
+    List<String> getContains() {
+	return this.lstContains;
+    }
+
     public final String getFullName() {
-	return this.repo.name + '/' + this.name;
+	return this.fullName;
     }
 
     public final String getName() {
@@ -707,6 +834,10 @@ public class Project {
 	Project.updateList(info.getProperty("PRJ-REQ-" + this.name, "").split("\\s+"), this.lstRequires);
 	Project.updateList(info.getProperty("PRJ-GET-" + this.name, "").split("\\s+"), this.lstContains);
 
+	this.registerIndexItems();
+    }
+
+    void registerIndexItems() {
 	for (final OptionListItem declares : this.lstDeclares) {
 	    this.repo.addDeclares(this, declares);
 	    this.repo.distro.addDeclares(this, declares);
@@ -726,6 +857,10 @@ public class Project {
 	    this.repo.addProvides(this, provides);
 	    this.repo.distro.addProvides(this, provides);
 	}
+
+	for (final OptionListItem requires : this.lstRequires) {
+	    this.repo.distro.addRequires(this, requires);
+	}
     }
 
     public void loadFromLocalSource(final ConsoleOutput console, final Repository repository, final Path projectRoot)
@@ -746,6 +881,10 @@ public class Project {
 	    this.repo.distro.addProvides(this, provides);
 	}
 
+	for (final OptionListItem requires : this.lstRequires) {
+	    this.repo.distro.addRequires(this, requires);
+	}
+
 	{
 	    final Path source = projectRoot.resolve("jars");
 	    if (Files.isDirectory(source)) {
@@ -9,6 +9,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -104,6 +105,14 @@ public class Repository {
 	return true;
     }
 
+    void removeKnown(final Project project) {
+	this.byName.remove(project.getFullName(), project);
+	Distro.removeItems(this.byDeclares, project.getDeclares(), project);
+	Distro.removeItems(this.byKeywords, project.getKeywords(), project);
+	Distro.removeItems(this.byAugments, project.getAugments(), project);
+	Distro.removeItems(this.byProvides, project.getProvides(), project);
+    }
+
     public void addDeclares(final Project project, final OptionListItem declares) {
 	Set<Project> set = this.byDeclares.get(declares.getName());
 	if (set == null) {
@@ -261,12 +270,22 @@ public class Repository {
 	}
     }
 
-    void compileAllJavaSource(final MakeCompileJava javaCompiler) throws Exception {
-
-	for (final Project project : this.byName.values()) {
-	    project.compileAllJavaSource(javaCompiler);
+    /**
+     * Index files are generated only when the fingerprint of the repository
+     * differs from the one they were generated for.
+     */
+    void buildPrepareDistroIndex(final OperationContext context, final Distro repositories,
+	    final Path repositoryOutput, final boolean full, final DistroIndexFingerprints fingerprints)
+	    throws Exception {
+	if (!fingerprints.checkRepository(context, this, repositoryOutput, full)) {
+	    return;
 	}
+	this.buildPrepareDistroIndex(context, repositories, repositoryOutput, full);
+	fingerprints.generatedRepository(context, this, repositoryOutput, full);
+    }
 
+    boolean compileAllJavaSource(final MakeCompileJava javaCompiler) throws Exception {
+	return new JavaCompileScheduler(this.distro, javaCompiler).compile(this.byName.values());
     }
 
     @Override
@@ -377,6 +396,24 @@ public class Repository {
 	}
     }
 
+    void loadFromLocalSource(final ConsoleOutput console, final List<RepositorySourceScan.ProjectSource> projects)
+	    throws Exception {
+
+	for (final RepositorySourceScan.ProjectSource source : projects) {
+	    final Project project = Project.staticLoadFromLocalSource(//
+		    console, //
+		    this, //
+		    source.packageName, //
+		    source.projectRoot, //
+		    source.info//
+	    );
+	    if (project != null) {
+		project.loadFromLocalSource(console, this, source.projectRoot);
+		console.outProgress('p');
+	    }
+	}
+    }
+
     public void loadFromLocalSource(final ConsoleOutput console, final Distro repositories, final Path repositoryRoot)
 	    throws Exception {
 
@@ -0,0 +1,121 @@
+package ru.myx.distro.prepare;
+
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Same walk as {@link Repository#loadFromLocalSource(ConsoleOutput, Distro, Path, Path)}
+ * but every folder entry is a forked task and 'project.inf' files are parsed
+ * concurrently. Nothing is registered here, result lists projects in the order
+ * the serial walk would visit them.
+ *
+ * @author myx
+ *
+ */
+final class RepositorySourceScan extends RecursiveTask<List<RepositorySourceScan.ProjectSource>> {
+
+    static final class ProjectSource {
+	final String packageName;
+
+	final Path projectRoot;
+
+	final Properties info;
+
+	ProjectSource(final String packageName, final Path projectRoot, final Properties info) {
+	    this.packageName = packageName;
+	    this.projectRoot = projectRoot;
+	    this.info = info;
+	}
+    }
+
+    private static final long serialVersionUID = -2786032463140358413L;
+
+    private static ProjectSource loadProjectSource(final Path repositoryRoot, final Path projectRoot)
+	    throws Exception {
+	final Properties info = new Properties();
+	try (final InputStream in = Files.newInputStream(projectRoot.resolve("project.inf"))) {
+	    info.load(in);
+	}
+	return new ProjectSource(repositoryRoot.relativize(projectRoot).toString(), projectRoot, info);
+    }
+
+    private final Path repositoryRoot;
+
+    private final Path currentRoot;
+
+    private final boolean folderEntry;
+
+    RepositorySourceScan(final Path repositoryRoot, final Path currentRoot, final boolean folderEntry) {
+	this.repositoryRoot = repositoryRoot;
+	this.currentRoot = currentRoot;
+	this.folderEntry = folderEntry;
+    }
+
+    @Override
+    protected List<ProjectSource> compute() {
+	try {
+	    return this.folderEntry ? this.computeEntry() : this.computeFolder();
+	} catch (final RuntimeException e) {
+	    throw e;
+	} catch (final Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    private List<ProjectSource> computeEntry() throws Exception {
+	final Path projectRoot = this.currentRoot;
+
+	if (Project.checkIfProject(projectRoot)) {
+	    final List<ProjectSource> result = new ArrayList<>();
+	    result.add(RepositorySourceScan.loadProjectSource(this.repositoryRoot, projectRoot));
+
+	    final Path subProjectsRoot = projectRoot.resolve("source-projects");
+	    if (Files.isDirectory(subProjectsRoot)) {
+		try (final DirectoryStream<Path> subProjects = Files.newDirectoryStream(subProjectsRoot)) {
+		    for (final Path subProjectRoot : subProjects) {
+			if (Project.checkIfProject(subProjectRoot)) {
+			    result.add(RepositorySourceScan.loadProjectSource(this.repositoryRoot, subProjectRoot));
+			}
+		    }
+		}
+	    }
+	    return result;
+	}
+
+	final String folderName = projectRoot.getFileName().toString();
+	if (folderName.length() < 2 || folderName.charAt(0) == '.') {
+	    // not a user-folder, hidden
+	    return Collections.emptyList();
+	}
+	if (!Files.isDirectory(projectRoot)) {
+	    return Collections.emptyList();
+	}
+
+	return new RepositorySourceScan(this.repositoryRoot, projectRoot, false).compute();
+    }
+
+    private List<ProjectSource> computeFolder() throws Exception {
+	final List<RepositorySourceScan> entries = new ArrayList<>();
+	try (final DirectoryStream<Path> projects = Files.newDirectoryStream(this.currentRoot)) {
+	    for (final Path projectRoot : projects) {
+		entries.add(new RepositorySourceScan(this.repositoryRoot, projectRoot, true));
+	    }
+	}
+
+	ForkJoinTask.invokeAll(entries);
+
+	final List<ProjectSource> result = new ArrayList<>();
+	for (final RepositorySourceScan entry : entries) {
+	    result.addAll(entry.join());
+	}
+	return result;
+    }
+}
@@ -0,0 +1,35 @@
+package ru.myx.distro.prepare;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names and keys of {@link OptionListItem}s of one {@link Distro}. The same
+ * name is repeated by many projects ('classpath.jars', repository and project
+ * names), items added to project lists share one instance of it, so maps
+ * keyed by item names hash each string once and mostly compare by reference.
+ *
+ * @author myx
+ *
+ */
+final class TokenDictionary {
+
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * @return the instance of the token kept by the dictionary
+     */
+    String intern(final String token) {
+	if (token == null) {
+	    return null;
+	}
+	final String known = this.tokens.putIfAbsent(token, token);
+	return known == null
+		? token
+		: known;
+    }
+
+    int size() {
+	return this.tokens.size();
+    }
+}
@@ -35,6 +35,16 @@ DistroSourceCommand(){
 
 	local CLS_PATH="$MDLT_ORIGIN/lib/lib.tukaani-xz-java/jars/org.tukaani.xz_1.10.0.jar:$MDLT_ORIGIN/lib/lib.apache-commons-compress/jars/commons-compress-1.12.jar"
 
+	# queries go to a running DistroDaemonCommand, exit code 3: not a query or no daemon
+	if [ -n "$MDSC_DAEMON_SOCKET" ] && [ -S "$MDSC_DAEMON_SOCKET" ] ; then
+		CHECK_DIR="$MDLT_ORIGIN/myx/myx.distro-system"
+		if [ -f "$CHECK_DIR/bin/ru/myx/distro/DistroDaemonClient.class" ] ; then
+			local DAEMON_CODE=0
+			java -cp "$CHECK_DIR/bin" ru.myx.distro.DistroDaemonClient "$MDSC_DAEMON_SOCKET" "$@" || DAEMON_CODE=$?
+			[ "$DAEMON_CODE" = 3 ] || { set +e ; return $DAEMON_CODE ; }
+		fi
+	fi
+
 	CHECK_DIR="$MDLT_ORIGIN/myx/myx.distro-system"
 	if [ -f "$CHECK_DIR/bin/ru/myx/distro/DistroSourceCommand.class" ] ; then
 		[ full != "$MDSC_DETAIL" ] || echo "> DistroSourceCommand: running java origin + local tools bin/" >&2